@@ -0,0 +1,514 @@
+package interdroid.cuckoo.base;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.ShortBuffer;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * The default {@link Codec}. Primitives, primitive arrays, Strings, Classes,
+ * arrays of these and {@link Marshallable}s are written as a type tag followed
+ * by the raw data, without class descriptors or reflection. Primitive arrays
+ * are copied in large chunks. Any other value, and object arrays that nest
+ * other object arrays or hold the same object twice, are written using the
+ * {@link SerializationCodec}.
+ */
+public class BinaryCodec implements Codec {
+
+	/**
+	 * Type tags
+	 */
+	private static final int TAG_NULL = 0;
+	private static final int TAG_BOOLEAN = 1;
+	private static final int TAG_BYTE = 2;
+	private static final int TAG_SHORT = 3;
+	private static final int TAG_CHAR = 4;
+	private static final int TAG_INT = 5;
+	private static final int TAG_LONG = 6;
+	private static final int TAG_FLOAT = 7;
+	private static final int TAG_DOUBLE = 8;
+	private static final int TAG_STRING = 9;
+	private static final int TAG_CLASS = 10;
+	private static final int TAG_BOOLEAN_ARRAY = 11;
+	private static final int TAG_BYTE_ARRAY = 12;
+	private static final int TAG_SHORT_ARRAY = 13;
+	private static final int TAG_CHAR_ARRAY = 14;
+	private static final int TAG_INT_ARRAY = 15;
+	private static final int TAG_LONG_ARRAY = 16;
+	private static final int TAG_FLOAT_ARRAY = 17;
+	private static final int TAG_DOUBLE_ARRAY = 18;
+	private static final int TAG_OBJECT_ARRAY = 19;
+	private static final int TAG_MARSHALLABLE = 20;
+	private static final int TAG_SERIALIZED = 21;
+
+	/**
+	 * Primitive arrays are converted to bytes in chunks of at most this size
+	 */
+	private static final int CHUNK_SIZE = 64 * 1024;
+
+	private static final Map<String, Class<?>> PRIMITIVES = new HashMap<String, Class<?>>();
+	static {
+		PRIMITIVES.put("boolean", boolean.class);
+		PRIMITIVES.put("byte", byte.class);
+		PRIMITIVES.put("short", short.class);
+		PRIMITIVES.put("char", char.class);
+		PRIMITIVES.put("int", int.class);
+		PRIMITIVES.put("long", long.class);
+		PRIMITIVES.put("float", float.class);
+		PRIMITIVES.put("double", double.class);
+		PRIMITIVES.put("void", void.class);
+	}
+
+	private final Codec mFallback = new SerializationCodec();
+
+	@Override
+	public void writeValue(DataOutput out, Object value) throws IOException {
+		if (value == null) {
+			out.write(TAG_NULL);
+		} else if (value instanceof String) {
+			out.write(TAG_STRING);
+			writeString(out, (String) value);
+		} else if (value instanceof Integer) {
+			out.write(TAG_INT);
+			out.writeInt((Integer) value);
+		} else if (value instanceof Long) {
+			out.write(TAG_LONG);
+			out.writeLong((Long) value);
+		} else if (value instanceof Boolean) {
+			out.write(TAG_BOOLEAN);
+			out.writeBoolean((Boolean) value);
+		} else if (value instanceof Double) {
+			out.write(TAG_DOUBLE);
+			out.writeDouble((Double) value);
+		} else if (value instanceof Float) {
+			out.write(TAG_FLOAT);
+			out.writeFloat((Float) value);
+		} else if (value instanceof Byte) {
+			out.write(TAG_BYTE);
+			out.writeByte((Byte) value);
+		} else if (value instanceof Short) {
+			out.write(TAG_SHORT);
+			out.writeShort((Short) value);
+		} else if (value instanceof Character) {
+			out.write(TAG_CHAR);
+			out.writeChar((Character) value);
+		} else if (value instanceof Class<?>) {
+			out.write(TAG_CLASS);
+			out.writeUTF(((Class<?>) value).getName());
+		} else if (value instanceof byte[]) {
+			out.write(TAG_BYTE_ARRAY);
+			byte[] array = (byte[]) value;
+			out.writeInt(array.length);
+			out.write(array);
+		} else if (value instanceof int[]) {
+			out.write(TAG_INT_ARRAY);
+			writeIntArray(out, (int[]) value);
+		} else if (value instanceof float[]) {
+			out.write(TAG_FLOAT_ARRAY);
+			writeFloatArray(out, (float[]) value);
+		} else if (value instanceof double[]) {
+			out.write(TAG_DOUBLE_ARRAY);
+			writeDoubleArray(out, (double[]) value);
+		} else if (value instanceof long[]) {
+			out.write(TAG_LONG_ARRAY);
+			writeLongArray(out, (long[]) value);
+		} else if (value instanceof short[]) {
+			out.write(TAG_SHORT_ARRAY);
+			writeShortArray(out, (short[]) value);
+		} else if (value instanceof char[]) {
+			out.write(TAG_CHAR_ARRAY);
+			writeCharArray(out, (char[]) value);
+		} else if (value instanceof boolean[]) {
+			out.write(TAG_BOOLEAN_ARRAY);
+			boolean[] array = (boolean[]) value;
+			out.writeInt(array.length);
+			byte[] bytes = new byte[array.length];
+			for (int i = 0; i < array.length; i++) {
+				bytes[i] = (byte) (array[i] ? 1 : 0);
+			}
+			out.write(bytes);
+		} else if (value instanceof Object[] && isFlat((Object[]) value)) {
+			out.write(TAG_OBJECT_ARRAY);
+			Object[] array = (Object[]) value;
+			out.writeUTF(array.getClass().getComponentType().getName());
+			out.writeInt(array.length);
+			for (Object element : array) {
+				writeValue(out, element);
+			}
+		} else if (value instanceof Marshallable) {
+			out.write(TAG_MARSHALLABLE);
+			out.writeUTF(value.getClass().getName());
+			((Marshallable) value).writeTo(out);
+		} else {
+			out.write(TAG_SERIALIZED);
+			mFallback.writeValue(out, value);
+		}
+	}
+
+	@Override
+	public Object readValue(DataInput in) throws IOException,
+			ClassNotFoundException {
+		return readValue(in, in.readUnsignedByte());
+	}
+
+	private Object readValue(DataInput in, int tag) throws IOException,
+			ClassNotFoundException {
+		switch (tag) {
+		case TAG_NULL:
+			return null;
+		case TAG_BOOLEAN:
+			return in.readBoolean();
+		case TAG_BYTE:
+			return in.readByte();
+		case TAG_SHORT:
+			return in.readShort();
+		case TAG_CHAR:
+			return in.readChar();
+		case TAG_INT:
+			return in.readInt();
+		case TAG_LONG:
+			return in.readLong();
+		case TAG_FLOAT:
+			return in.readFloat();
+		case TAG_DOUBLE:
+			return in.readDouble();
+		case TAG_STRING:
+			return readString(in);
+		case TAG_CLASS:
+			return resolveClass(in.readUTF());
+		case TAG_BOOLEAN_ARRAY: {
+			byte[] bytes = new byte[readLength(in, 1)];
+			in.readFully(bytes);
+			boolean[] array = new boolean[bytes.length];
+			for (int i = 0; i < bytes.length; i++) {
+				array[i] = bytes[i] != 0;
+			}
+			return array;
+		}
+		case TAG_BYTE_ARRAY: {
+			byte[] array = new byte[readLength(in, 1)];
+			in.readFully(array);
+			return array;
+		}
+		case TAG_SHORT_ARRAY:
+			return readShortArray(in);
+		case TAG_CHAR_ARRAY:
+			return readCharArray(in);
+		case TAG_INT_ARRAY:
+			return readIntArray(in);
+		case TAG_LONG_ARRAY:
+			return readLongArray(in);
+		case TAG_FLOAT_ARRAY:
+			return readFloatArray(in);
+		case TAG_DOUBLE_ARRAY:
+			return readDoubleArray(in);
+		case TAG_OBJECT_ARRAY: {
+			Class<?> componentType = resolveClass(in.readUTF());
+			Object[] array = (Object[]) Array.newInstance(componentType,
+					readLength(in, 1));
+			for (int i = 0; i < array.length; i++) {
+				int elementTag = in.readUnsignedByte();
+				// object arrays are only written flat, see isFlat
+				if (elementTag == TAG_OBJECT_ARRAY) {
+					throw new IOException("Nested object array");
+				}
+				array[i] = readValue(in, elementTag);
+			}
+			return array;
+		}
+		case TAG_MARSHALLABLE: {
+			Class<?> type = resolveClass(in.readUTF());
+			// don't construct arbitrary classes that a peer names
+			if (!Marshallable.class.isAssignableFrom(type)) {
+				throw new IOException(type.getName() + " is not Marshallable");
+			}
+			try {
+				Marshallable value = (Marshallable) type.newInstance();
+				value.readFrom(in);
+				return value;
+			} catch (InstantiationException e) {
+				throw new IOException("Cannot instantiate " + type.getName()
+						+ ": " + e);
+			} catch (IllegalAccessException e) {
+				throw new IOException("Cannot instantiate " + type.getName()
+						+ ": " + e);
+			}
+		}
+		case TAG_SERIALIZED:
+			return mFallback.readValue(in);
+		default:
+			throw new IOException("Invalid type tag: " + tag);
+		}
+	}
+
+	/**
+	 * Finds the class with the given name, which may also be the name of a
+	 * primitive type.
+	 *
+	 * @param name
+	 *            the class name as returned by {@link Class#getName()}
+	 * @return the class
+	 * @throws ClassNotFoundException
+	 */
+	protected Class<?> resolveClass(String name) throws ClassNotFoundException {
+		Class<?> primitive = PRIMITIVES.get(name);
+		if (primitive != null) {
+			return primitive;
+		}
+		ClassLoader loader = Thread.currentThread().getContextClassLoader();
+		if (loader != null) {
+			try {
+				return Class.forName(name, false, loader);
+			} catch (ClassNotFoundException e) {
+				// try our own class loader below
+			}
+		}
+		return Class.forName(name, false, BinaryCodec.class.getClassLoader());
+	}
+
+	private static void writeString(DataOutput out, String value)
+			throws IOException {
+		// writeUTF is limited to 64K, so write the length ourselves
+		byte[] bytes = value.getBytes("UTF-8");
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(DataInput in) throws IOException {
+		byte[] bytes = new byte[readLength(in, 1)];
+		in.readFully(bytes);
+		return new String(bytes, "UTF-8");
+	}
+
+	/**
+	 * Reads the length of an array, which has to fit in a frame.
+	 *
+	 * @param elementSize
+	 *            the size of an element in bytes
+	 * @throws IOException
+	 *             if the length is invalid
+	 */
+	private static int readLength(DataInput in, int elementSize)
+			throws IOException {
+		int length = in.readInt();
+		if (length < 0 || (long) length * elementSize > Frame.MAX_PAYLOAD) {
+			throw new IOException("Invalid array length: " + length);
+		}
+		return length;
+	}
+
+	/**
+	 * Returns whether an object array can be written element by element: it
+	 * doesn't hold object arrays and no object of which the identity matters
+	 * occurs twice. Other arrays are serialized, which keeps the shared and
+	 * nested objects as they are.
+	 */
+	private static boolean isFlat(Object[] array) {
+		Map<Object, Boolean> seen = null;
+		for (Object element : array) {
+			if (element == null || element instanceof String
+					|| element instanceof Integer || element instanceof Long
+					|| element instanceof Boolean || element instanceof Double
+					|| element instanceof Float || element instanceof Byte
+					|| element instanceof Short
+					|| element instanceof Character
+					|| element instanceof Class<?>) {
+				continue;
+			}
+			if (element instanceof Object[]) {
+				return false;
+			}
+			if (seen == null) {
+				seen = new IdentityHashMap<Object, Boolean>();
+			}
+			if (seen.put(element, Boolean.TRUE) != null) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static ByteBuffer chunk(int length, int elementSize) {
+		return ByteBuffer.allocate((int) Math.min(CHUNK_SIZE, (long) length
+				* elementSize));
+	}
+
+	private static void writeShortArray(DataOutput out, short[] array)
+			throws IOException {
+		out.writeInt(array.length);
+		ByteBuffer bytes = chunk(array.length, 2);
+		ShortBuffer view = bytes.asShortBuffer();
+		for (int offset = 0; offset < array.length;) {
+			int count = Math.min(view.capacity(), array.length - offset);
+			view.clear();
+			view.put(array, offset, count);
+			out.write(bytes.array(), 0, count * 2);
+			offset += count;
+		}
+	}
+
+	private static short[] readShortArray(DataInput in) throws IOException {
+		short[] array = new short[readLength(in, 2)];
+		ByteBuffer bytes = chunk(array.length, 2);
+		ShortBuffer view = bytes.asShortBuffer();
+		for (int offset = 0; offset < array.length;) {
+			int count = Math.min(view.capacity(), array.length - offset);
+			in.readFully(bytes.array(), 0, count * 2);
+			view.clear();
+			view.get(array, offset, count);
+			offset += count;
+		}
+		return array;
+	}
+
+	private static void writeCharArray(DataOutput out, char[] array)
+			throws IOException {
+		out.writeInt(array.length);
+		ByteBuffer bytes = chunk(array.length, 2);
+		CharBuffer view = bytes.asCharBuffer();
+		for (int offset = 0; offset < array.length;) {
+			int count = Math.min(view.capacity(), array.length - offset);
+			view.clear();
+			view.put(array, offset, count);
+			out.write(bytes.array(), 0, count * 2);
+			offset += count;
+		}
+	}
+
+	private static char[] readCharArray(DataInput in) throws IOException {
+		char[] array = new char[readLength(in, 2)];
+		ByteBuffer bytes = chunk(array.length, 2);
+		CharBuffer view = bytes.asCharBuffer();
+		for (int offset = 0; offset < array.length;) {
+			int count = Math.min(view.capacity(), array.length - offset);
+			in.readFully(bytes.array(), 0, count * 2);
+			view.clear();
+			view.get(array, offset, count);
+			offset += count;
+		}
+		return array;
+	}
+
+	private static void writeIntArray(DataOutput out, int[] array)
+			throws IOException {
+		out.writeInt(array.length);
+		ByteBuffer bytes = chunk(array.length, 4);
+		IntBuffer view = bytes.asIntBuffer();
+		for (int offset = 0; offset < array.length;) {
+			int count = Math.min(view.capacity(), array.length - offset);
+			view.clear();
+			view.put(array, offset, count);
+			out.write(bytes.array(), 0, count * 4);
+			offset += count;
+		}
+	}
+
+	private static int[] readIntArray(DataInput in) throws IOException {
+		int[] array = new int[readLength(in, 4)];
+		ByteBuffer bytes = chunk(array.length, 4);
+		IntBuffer view = bytes.asIntBuffer();
+		for (int offset = 0; offset < array.length;) {
+			int count = Math.min(view.capacity(), array.length - offset);
+			in.readFully(bytes.array(), 0, count * 4);
+			view.clear();
+			view.get(array, offset, count);
+			offset += count;
+		}
+		return array;
+	}
+
+	private static void writeLongArray(DataOutput out, long[] array)
+			throws IOException {
+		out.writeInt(array.length);
+		ByteBuffer bytes = chunk(array.length, 8);
+		LongBuffer view = bytes.asLongBuffer();
+		for (int offset = 0; offset < array.length;) {
+			int count = Math.min(view.capacity(), array.length - offset);
+			view.clear();
+			view.put(array, offset, count);
+			out.write(bytes.array(), 0, count * 8);
+			offset += count;
+		}
+	}
+
+	private static long[] readLongArray(DataInput in) throws IOException {
+		long[] array = new long[readLength(in, 8)];
+		ByteBuffer bytes = chunk(array.length, 8);
+		LongBuffer view = bytes.asLongBuffer();
+		for (int offset = 0; offset < array.length;) {
+			int count = Math.min(view.capacity(), array.length - offset);
+			in.readFully(bytes.array(), 0, count * 8);
+			view.clear();
+			view.get(array, offset, count);
+			offset += count;
+		}
+		return array;
+	}
+
+	private static void writeFloatArray(DataOutput out, float[] array)
+			throws IOException {
+		out.writeInt(array.length);
+		ByteBuffer bytes = chunk(array.length, 4);
+		FloatBuffer view = bytes.asFloatBuffer();
+		for (int offset = 0; offset < array.length;) {
+			int count = Math.min(view.capacity(), array.length - offset);
+			view.clear();
+			view.put(array, offset, count);
+			out.write(bytes.array(), 0, count * 4);
+			offset += count;
+		}
+	}
+
+	private static float[] readFloatArray(DataInput in) throws IOException {
+		float[] array = new float[readLength(in, 4)];
+		ByteBuffer bytes = chunk(array.length, 4);
+		FloatBuffer view = bytes.asFloatBuffer();
+		for (int offset = 0; offset < array.length;) {
+			int count = Math.min(view.capacity(), array.length - offset);
+			in.readFully(bytes.array(), 0, count * 4);
+			view.clear();
+			view.get(array, offset, count);
+			offset += count;
+		}
+		return array;
+	}
+
+	private static void writeDoubleArray(DataOutput out, double[] array)
+			throws IOException {
+		out.writeInt(array.length);
+		ByteBuffer bytes = chunk(array.length, 8);
+		DoubleBuffer view = bytes.asDoubleBuffer();
+		for (int offset = 0; offset < array.length;) {
+			int count = Math.min(view.capacity(), array.length - offset);
+			view.clear();
+			view.put(array, offset, count);
+			out.write(bytes.array(), 0, count * 8);
+			offset += count;
+		}
+	}
+
+	private static double[] readDoubleArray(DataInput in) throws IOException {
+		double[] array = new double[readLength(in, 8)];
+		ByteBuffer bytes = chunk(array.length, 8);
+		DoubleBuffer view = bytes.asDoubleBuffer();
+		for (int offset = 0; offset < array.length;) {
+			int count = Math.min(view.capacity(), array.length - offset);
+			in.readFully(bytes.array(), 0, count * 8);
+			view.clear();
+			view.get(array, offset, count);
+			offset += count;
+		}
+		return array;
+	}
+
+}
@@ -0,0 +1,15 @@
+package interdroid.cuckoo.base;
+
+/**
+ * Thrown by the server if an invocation refers to a blob that is not (or no
+ * longer) in its blob cache, see {@link BlobParameter}.
+ */
+public class BlobMissingException extends Exception {
+
+	private static final long serialVersionUID = 1L;
+
+	public BlobMissingException(String string) {
+		super(string);
+	}
+
+}
@@ -0,0 +1,114 @@
+package interdroid.cuckoo.base;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.Serializable;
+
+/**
+ * Takes the place of a large parameter in an invoke request. The parameter is
+ * identified by the hash of its encoded value, so the server can keep it in
+ * its blob cache for later invocations. Before invoking, the client asks the
+ * server which of the hashes it holds with {@link Protocol#OPCODE_QUERY_BLOBS}
+ * (a count followed by the hashes, answered with a boolean per hash), only
+ * the encoded values of the blobs that the server doesn't hold are included.
+ * If a blob is evicted before the invocation arrives, the server responds
+ * with a {@link BlobMissingException}.
+ */
+public class BlobParameter implements Marshallable, Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Length of the hash (SHA-1)
+	 */
+	public static final int HASH_LENGTH = 20;
+
+	/**
+	 * Name of the hash algorithm
+	 */
+	public static final String HASH_ALGORITHM = "SHA-1";
+
+	private byte[] mHash;
+
+	private byte[] mData;
+
+	private int mLength;
+
+	public BlobParameter() {
+	}
+
+	/**
+	 * @param hash
+	 *            the hash of the encoded value
+	 * @param data
+	 *            buffer with the encoded value, or null if the server holds
+	 *            the blob
+	 * @param length
+	 *            the length of the encoded value in the buffer
+	 */
+	public BlobParameter(byte[] hash, byte[] data, int length) {
+		mHash = hash;
+		mData = data;
+		mLength = length;
+	}
+
+	public byte[] getHash() {
+		return mHash;
+	}
+
+	/**
+	 * Returns the buffer with the encoded value, or null if it was not sent.
+	 */
+	public byte[] getData() {
+		return mData;
+	}
+
+	public int getLength() {
+		return mLength;
+	}
+
+	public void writeTo(DataOutput out) throws IOException {
+		out.write(mHash);
+		out.writeBoolean(mData != null);
+		if (mData != null) {
+			out.writeInt(mLength);
+			out.write(mData, 0, mLength);
+		}
+	}
+
+	public void readFrom(DataInput in) throws IOException {
+		mHash = new byte[HASH_LENGTH];
+		in.readFully(mHash);
+		if (in.readBoolean()) {
+			mLength = in.readInt();
+			if (mLength < 0 || mLength > Frame.MAX_PAYLOAD) {
+				throw new IOException("Invalid blob length: " + mLength);
+			}
+			mData = new byte[mLength];
+			in.readFully(mData);
+		} else {
+			mData = null;
+			mLength = 0;
+		}
+	}
+
+	/**
+	 * Returns the hash as a hexadecimal string.
+	 */
+	public static String toHex(byte[] hash) {
+		StringBuilder result = new StringBuilder(hash.length * 2);
+		for (byte b : hash) {
+			result.append(Character.forDigit((b >> 4) & 0xF, 16));
+			result.append(Character.forDigit(b & 0xF, 16));
+		}
+		return result.toString();
+	}
+
+	@Override
+	public String toString() {
+		return "blob " + toHex(mHash)
+				+ (mData == null ? "" : " (" + mLength + " bytes)");
+	}
+
+}
@@ -0,0 +1,44 @@
+package interdroid.cuckoo.base;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * A Codec converts the values that travel between the Cuckoo client and the
+ * server (parameter types, parameter values, out parameters and results) to
+ * and from bytes. Both sides of a connection have to use the same Codec, see
+ * {@link Protocol#createCodec()}.
+ *
+ * Implementations should be stateless, so that a single instance can be
+ * shared by multiple connections.
+ */
+public interface Codec {
+
+	/**
+	 * Writes a single value, which may be null.
+	 *
+	 * @param out
+	 *            the output to write to
+	 * @param value
+	 *            the value to write
+	 * @throws IOException
+	 *             if writing fails or the value cannot be encoded
+	 */
+	public void writeValue(DataOutput out, Object value) throws IOException;
+
+	/**
+	 * Reads a single value as written by {@link #writeValue(DataOutput, Object)}.
+	 *
+	 * @param in
+	 *            the input to read from
+	 * @return the value, which may be null
+	 * @throws IOException
+	 *             if reading fails
+	 * @throws ClassNotFoundException
+	 *             if the class of the value cannot be found at this side
+	 */
+	public Object readValue(DataInput in) throws IOException,
+			ClassNotFoundException;
+
+}
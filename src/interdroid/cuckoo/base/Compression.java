@@ -0,0 +1,302 @@
+package interdroid.cuckoo.base;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compression of frame payloads. A compressed frame has the
+ * {@link Protocol#FLAG_COMPRESSED} flag set, its payload is the length of the
+ * original payload followed by the deflated original payload.
+ *
+ * The level is chosen per frame by comparing the estimated time to send the
+ * payload as is with the time to compress it and send the compressed payload.
+ * The throughput of every level is measured on the payloads that are actually
+ * compressed. The ratio depends on the data, so it is measured per kind of
+ * payload, such as the requests or results of a method: payloads that don't
+ * compress well (such as JPEG data) quickly stop being compressed, without
+ * keeping other kinds from being compressed. Every {@link #PROBE_INTERVAL}
+ * frames of a kind the level that was measured longest ago is used instead,
+ * so a kind that stopped being compressed notices when its data changes.
+ */
+public class Compression {
+
+	/**
+	 * Compression levels
+	 */
+	public static final int LEVEL_NONE = 0;
+	public static final int LEVEL_FAST = 1;
+	public static final int LEVEL_STRONG = 2;
+
+	/**
+	 * Payloads smaller than this are never compressed
+	 */
+	public static final int MIN_SIZE = 1024;
+
+	/**
+	 * The deflater level for each compression level
+	 */
+	private static final int[] DEFLATER_LEVEL = { Deflater.NO_COMPRESSION,
+			Deflater.BEST_SPEED, Deflater.BEST_COMPRESSION };
+
+	/**
+	 * Weight of a new measurement in the running averages
+	 */
+	private static final double ALPHA = 0.2;
+
+	/**
+	 * Running average of the compression throughput (uncompressed bytes per
+	 * ms) per level, starting with conservative guesses for a phone
+	 */
+	private static final double[] sThroughput = { 0, 20000, 2000 };
+
+	/**
+	 * Every this many frames of a kind the level that was measured longest
+	 * ago is probed
+	 */
+	public static final int PROBE_INTERVAL = 32;
+
+	/**
+	 * The number of kinds of payloads that are kept, the least recently used
+	 * kinds are forgotten
+	 */
+	private static final int MAX_KINDS = 256;
+
+	/**
+	 * The compressed size / original size per level that a new kind starts
+	 * with, so it is compressed until its own ratio shows it doesn't pay off
+	 */
+	private static final double[] DEFAULT_RATIO = { 1, 0.6, 0.5 };
+
+	/**
+	 * Running average of the compressed size / original size per level over
+	 * all kinds
+	 */
+	private static final double[] sRatio = DEFAULT_RATIO.clone();
+
+	/**
+	 * The ratios of a kind of payload
+	 */
+	private static class Ratios {
+		final double[] ratio = DEFAULT_RATIO.clone();
+
+		/**
+		 * The frame count at which each level was last measured
+		 */
+		final long[] measured = new long[DEFLATER_LEVEL.length];
+
+		long frames;
+	}
+
+	/**
+	 * The ratios by kind, in the order they were used
+	 */
+	private static final Map<String, Ratios> sRatios = new LinkedHashMap<String, Ratios>(
+			16, 0.75f, true);
+
+	/**
+	 * Chooses the compression level for a payload.
+	 *
+	 * @param kind
+	 *            the kind of the payload, such as the method it belongs to
+	 * @param size
+	 *            the size of the payload
+	 * @param bandwidth
+	 *            the estimated bandwidth of the link in bytes per ms, or 0 if
+	 *            unknown
+	 * @return the level with the lowest estimated time to compress and send
+	 *         the payload, or the level that is probed
+	 */
+	public static synchronized int chooseLevel(String kind, long size,
+			double bandwidth) {
+		if (size < MIN_SIZE || bandwidth <= 0) {
+			return LEVEL_NONE;
+		}
+		Ratios ratios = getRatios(kind);
+		ratios.frames++;
+		int best = LEVEL_NONE;
+		double bestTime = size / bandwidth;
+		for (int level = LEVEL_FAST; level <= LEVEL_STRONG; level++) {
+			double time = size / sThroughput[level] + size
+					* ratios.ratio[level] / bandwidth;
+			if (time < bestTime) {
+				best = level;
+				bestTime = time;
+			}
+		}
+		if (ratios.frames % PROBE_INTERVAL != 0) {
+			return best;
+		}
+		// probe the level other than the best that was measured longest ago
+		long fast = ratios.measured[LEVEL_FAST];
+		long strong = ratios.measured[LEVEL_STRONG];
+		if (best == LEVEL_FAST || (best == LEVEL_NONE && strong < fast)) {
+			return LEVEL_STRONG;
+		}
+		return LEVEL_FAST;
+	}
+
+	/**
+	 * Returns the average compressed size / original size of a level.
+	 */
+	public static synchronized double getRatio(int level) {
+		return sRatio[level];
+	}
+
+	private static Ratios getRatios(String kind) {
+		Ratios ratios = sRatios.get(kind);
+		if (ratios == null) {
+			ratios = new Ratios();
+			sRatios.put(kind, ratios);
+			if (sRatios.size() > MAX_KINDS) {
+				Iterator<String> eldest = sRatios.keySet().iterator();
+				eldest.next();
+				eldest.remove();
+			}
+		}
+		return ratios;
+	}
+
+	private static synchronized void update(String kind, int level,
+			long size, long compressedSize, long time) {
+		double ratio = (double) compressedSize / size;
+		sRatio[level] = (1 - ALPHA) * sRatio[level] + ALPHA * ratio;
+		Ratios ratios = getRatios(kind);
+		ratios.ratio[level] = (1 - ALPHA) * ratios.ratio[level] + ALPHA
+				* ratio;
+		ratios.measured[level] = ratios.frames;
+		// time is in ms, a fast compression of a small payload takes 0 ms
+		sThroughput[level] = (1 - ALPHA) * sThroughput[level] + ALPHA * size
+				/ Math.max(time, 0.5);
+	}
+
+	/**
+	 * Compresses the payload of a frame. If compression doesn't make the
+	 * payload smaller the frame itself is returned.
+	 *
+	 * @param frame
+	 *            the frame
+	 * @param level
+	 *            the compression level
+	 * @param kind
+	 *            the kind of the payload, the measured ratio is kept for it
+	 * @return the compressed frame
+	 */
+	public static Frame compress(Frame frame, int level, String kind) {
+		if (level == LEVEL_NONE) {
+			return frame;
+		}
+		long start = System.currentTimeMillis();
+		int length = frame.getLength();
+		Deflater deflater = new Deflater(DEFLATER_LEVEL[level]);
+		deflater.setInput(frame.getPayload(), 0, length);
+		deflater.finish();
+		byte[] compressed = new byte[length];
+		int size = 4;
+		while (!deflater.finished() && size < compressed.length) {
+			size += deflater.deflate(compressed, size, compressed.length
+					- size);
+		}
+		boolean smaller = deflater.finished() && size < length;
+		deflater.end();
+		update(kind, level, length, smaller ? size : length,
+				System.currentTimeMillis() - start);
+		if (!smaller) {
+			return frame;
+		}
+		compressed[0] = (byte) (length >>> 24);
+		compressed[1] = (byte) (length >>> 16);
+		compressed[2] = (byte) (length >>> 8);
+		compressed[3] = (byte) length;
+		Frame result = new Frame(frame.getRequestId(), frame.getOpcode(),
+				frame.getFlags() | Protocol.FLAG_COMPRESSED, compressed, size);
+		result.setReceived(frame.getStarted(), frame.getCompleted());
+		return result;
+	}
+
+	/**
+	 * Reads the first int of the original payload of a frame, only as much
+	 * of a compressed payload is inflated as needed for it.
+	 *
+	 * @param frame
+	 *            the frame
+	 * @return the int
+	 * @throws IOException
+	 *             if the payload is too short or corrupt
+	 */
+	public static int readInt(Frame frame) throws IOException {
+		byte[] original = frame.getPayload();
+		if (frame.hasFlag(Protocol.FLAG_COMPRESSED)) {
+			if (frame.getLength() < 4) {
+				throw new IOException("Invalid compressed " + frame);
+			}
+			original = new byte[4];
+			inflate(frame, original);
+		} else if (frame.getLength() < 4) {
+			throw new IOException("Invalid " + frame);
+		}
+		return ((original[0] & 0xFF) << 24) | ((original[1] & 0xFF) << 16)
+				| ((original[2] & 0xFF) << 8) | (original[3] & 0xFF);
+	}
+
+	/**
+	 * Decompresses the payload of a frame if it is compressed.
+	 *
+	 * @param frame
+	 *            the frame
+	 * @return the frame with the original payload
+	 * @throws IOException
+	 *             if the payload is corrupt
+	 */
+	public static Frame decompress(Frame frame) throws IOException {
+		if (!frame.hasFlag(Protocol.FLAG_COMPRESSED)) {
+			return frame;
+		}
+		byte[] payload = frame.getPayload();
+		if (frame.getLength() < 4) {
+			throw new IOException("Invalid compressed " + frame);
+		}
+		int length = ((payload[0] & 0xFF) << 24) | ((payload[1] & 0xFF) << 16)
+				| ((payload[2] & 0xFF) << 8) | (payload[3] & 0xFF);
+		if (length < 0 || length > Frame.MAX_PAYLOAD) {
+			throw new IOException("Invalid compressed " + frame);
+		}
+		byte[] original = new byte[length];
+		inflate(frame, original);
+		Frame result = new Frame(frame.getRequestId(), frame.getOpcode(),
+				frame.getFlags() & ~Protocol.FLAG_COMPRESSED, original);
+		result.setReceived(frame.getStarted(), frame.getCompleted());
+		return result;
+	}
+
+	/**
+	 * Inflates the compressed payload of a frame until the buffer is full.
+	 */
+	private static void inflate(Frame frame, byte[] original)
+			throws IOException {
+		Inflater inflater = new Inflater();
+		inflater.setInput(frame.getPayload(), 4, frame.getLength() - 4);
+		try {
+			int size = 0;
+			while (size < original.length) {
+				int inflated = inflater.inflate(original, size,
+						original.length - size);
+				if (inflated == 0
+						&& (inflater.needsInput() || inflater.needsDictionary())) {
+					throw new IOException("Truncated compressed " + frame);
+				}
+				size += inflated;
+			}
+		} catch (DataFormatException e) {
+			throw new IOException("Corrupt compressed " + frame + ": "
+					+ e.getMessage());
+		} finally {
+			inflater.end();
+		}
+	}
+
+}
@@ -0,0 +1,183 @@
+package interdroid.cuckoo.base;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.Serializable;
+
+/**
+ * Takes the place of a parameter that is sent as the difference with the
+ * value of the same parameter in an earlier invocation. The earlier value is
+ * a blob in the cache of the server (see {@link BlobParameter}), identified
+ * by its hash. The server applies the difference to it, checks the hash of
+ * the result and adds the result to the cache as the base of the next
+ * difference. If the base is not in the cache or the result doesn't match,
+ * the server responds with a {@link BlobMissingException} and the client
+ * sends the full value.
+ *
+ * The difference is the length of the new value followed by runs of changed
+ * bytes (offset, length and the bytes), ending with an offset of -1. All
+ * other bytes are the same as in the base.
+ */
+public class DeltaParameter implements Marshallable, Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Unchanged gaps shorter than this are included in a run, because the
+	 * header of a new run is just as large
+	 */
+	private static final int MIN_GAP = 8;
+
+	private byte[] mBaseHash;
+
+	private byte[] mHash;
+
+	private byte[] mDelta;
+
+	public DeltaParameter() {
+	}
+
+	/**
+	 * @param baseHash
+	 *            the hash of the value the difference is against
+	 * @param hash
+	 *            the hash of the new value
+	 * @param delta
+	 *            the difference, see {@link #diff(byte[], int, byte[], int)}
+	 */
+	public DeltaParameter(byte[] baseHash, byte[] hash, byte[] delta) {
+		mBaseHash = baseHash;
+		mHash = hash;
+		mDelta = delta;
+	}
+
+	public byte[] getBaseHash() {
+		return mBaseHash;
+	}
+
+	public byte[] getHash() {
+		return mHash;
+	}
+
+	public byte[] getDelta() {
+		return mDelta;
+	}
+
+	/**
+	 * Computes the difference between two encoded values.
+	 *
+	 * @param base
+	 *            buffer with the earlier value
+	 * @param baseLength
+	 *            the length of the earlier value
+	 * @param value
+	 *            buffer with the new value
+	 * @param length
+	 *            the length of the new value
+	 * @return the difference
+	 */
+	public static byte[] diff(byte[] base, int baseLength, byte[] value,
+			int length) throws IOException {
+		FrameOutput out = new FrameOutput();
+		out.writeInt(length);
+		int common = Math.min(baseLength, length);
+		int position = 0;
+		while (position < common) {
+			if (base[position] == value[position]) {
+				position++;
+				continue;
+			}
+			// find the end of the run, including short unchanged gaps
+			int start = position;
+			int end = position + 1;
+			int scan = end;
+			while (scan < common && scan - end < MIN_GAP) {
+				if (base[scan] != value[scan]) {
+					end = scan + 1;
+				}
+				scan++;
+			}
+			if (scan == common && common < length) {
+				// the run continues into the part that is not in the base
+				end = length;
+			}
+			out.writeInt(start);
+			out.writeInt(end - start);
+			out.write(value, start, end - start);
+			position = end;
+		}
+		if (position < length) {
+			out.writeInt(position);
+			out.writeInt(length - position);
+			out.write(value, position, length - position);
+		}
+		out.writeInt(-1);
+		Frame frame = out.toFrame(0, 0, 0);
+		byte[] result = new byte[frame.getLength()];
+		System.arraycopy(frame.getPayload(), 0, result, 0, result.length);
+		return result;
+	}
+
+	/**
+	 * Applies a difference to an encoded value.
+	 *
+	 * @param base
+	 *            the earlier value
+	 * @param delta
+	 *            the difference
+	 * @return the new value
+	 * @throws IOException
+	 *             if the difference is corrupt
+	 */
+	public static byte[] patch(byte[] base, byte[] delta) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+				delta));
+		int length = in.readInt();
+		if (length < 0 || length > Frame.MAX_PAYLOAD) {
+			throw new IOException("Invalid delta length: " + length);
+		}
+		byte[] result = new byte[length];
+		System.arraycopy(base, 0, result, 0, Math.min(base.length, length));
+		int offset;
+		while ((offset = in.readInt()) >= 0) {
+			int size = in.readInt();
+			if (size < 0 || offset + size > length || offset + size < 0) {
+				throw new IOException("Invalid delta run: " + offset + ", "
+						+ size);
+			}
+			in.readFully(result, offset, size);
+		}
+		return result;
+	}
+
+	public void writeTo(DataOutput out) throws IOException {
+		out.write(mBaseHash);
+		out.write(mHash);
+		out.writeInt(mDelta.length);
+		out.write(mDelta);
+	}
+
+	public void readFrom(DataInput in) throws IOException {
+		mBaseHash = new byte[BlobParameter.HASH_LENGTH];
+		in.readFully(mBaseHash);
+		mHash = new byte[BlobParameter.HASH_LENGTH];
+		in.readFully(mHash);
+		int length = in.readInt();
+		if (length < 0 || length > Frame.MAX_PAYLOAD) {
+			throw new IOException("Invalid delta length: " + length);
+		}
+		mDelta = new byte[length];
+		in.readFully(mDelta);
+	}
+
+	@Override
+	public String toString() {
+		return "delta " + BlobParameter.toHex(mBaseHash) + " -> "
+				+ BlobParameter.toHex(mHash) + " (" + mDelta.length
+				+ " bytes)";
+	}
+
+}
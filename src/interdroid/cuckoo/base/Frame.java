@@ -0,0 +1,173 @@
+package interdroid.cuckoo.base;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * A single message of the framed protocol. On the wire a frame is:
+ *
+ * <pre>
+ * int  length     (number of bytes after this field)
+ * int  request id
+ * byte opcode     (an OPCODE_* or RESULT_* of the {@link Protocol})
+ * byte flags      (FLAG_* of the {@link Protocol})
+ * byte payload[length - 6]
+ * </pre>
+ *
+ * Responses carry the request id of the request they belong to, so that
+ * multiple requests can be in flight on one connection and complete in any
+ * order.
+ */
+public class Frame {
+
+	/**
+	 * Size of the fixed part of a frame, including the length field
+	 */
+	public static final int HEADER_SIZE = 10;
+
+	/**
+	 * Bytes of the header that are counted in the length field
+	 */
+	public static final int LENGTH_OVERHEAD = HEADER_SIZE - 4;
+
+	/**
+	 * Largest payload we accept
+	 */
+	public static final int MAX_PAYLOAD = 512 * 1024 * 1024;
+
+	private final int mRequestId;
+	private final int mOpcode;
+	private final int mFlags;
+	private final byte[] mPayload;
+	private final int mLength;
+
+	/**
+	 * the time the first byte of this frame was received
+	 */
+	private long mStarted;
+
+	/**
+	 * the time the last byte of this frame was received
+	 */
+	private long mCompleted;
+
+	public Frame(int requestId, int opcode, int flags, byte[] payload) {
+		this(requestId, opcode, flags, payload, payload.length);
+	}
+
+	/**
+	 * Creates a frame of which the payload is the first length bytes of the
+	 * given array.
+	 */
+	public Frame(int requestId, int opcode, int flags, byte[] payload,
+			int length) {
+		mRequestId = requestId;
+		mOpcode = opcode;
+		mFlags = flags;
+		mPayload = payload;
+		mLength = length;
+	}
+
+	public int getRequestId() {
+		return mRequestId;
+	}
+
+	public int getOpcode() {
+		return mOpcode;
+	}
+
+	public int getFlags() {
+		return mFlags;
+	}
+
+	public boolean hasFlag(int flag) {
+		return (mFlags & flag) != 0;
+	}
+
+	public byte[] getPayload() {
+		return mPayload;
+	}
+
+	public int getLength() {
+		return mLength;
+	}
+
+	/**
+	 * Returns a stream to read the payload from.
+	 */
+	public DataInputStream getInput() {
+		return new DataInputStream(new ByteArrayInputStream(mPayload, 0,
+				mLength));
+	}
+
+	public long getStarted() {
+		return mStarted;
+	}
+
+	public long getCompleted() {
+		return mCompleted;
+	}
+
+	/**
+	 * Returns the time it took to receive this frame.
+	 */
+	public long getReceiveTime() {
+		return mCompleted - mStarted;
+	}
+
+	public void setReceived(long started, long completed) {
+		mStarted = started;
+		mCompleted = completed;
+	}
+
+	/**
+	 * Writes this frame, the caller is responsible for flushing.
+	 *
+	 * @param out
+	 *            the output to write to
+	 * @throws IOException
+	 */
+	public void write(DataOutput out) throws IOException {
+		out.writeInt(mLength + LENGTH_OVERHEAD);
+		out.writeInt(mRequestId);
+		out.write(mOpcode);
+		out.write(mFlags);
+		out.write(mPayload, 0, mLength);
+	}
+
+	/**
+	 * Reads a frame, blocking until it is complete. The receive times of the
+	 * frame are set.
+	 *
+	 * @param in
+	 *            the input to read from
+	 * @return the frame
+	 * @throws IOException
+	 *             if reading failed or the frame is invalid
+	 */
+	public static Frame read(DataInput in) throws IOException {
+		int length = in.readInt() - LENGTH_OVERHEAD;
+		long started = System.currentTimeMillis();
+		if (length < 0 || length > MAX_PAYLOAD) {
+			throw new IOException("Invalid frame length: " + length);
+		}
+		int requestId = in.readInt();
+		int opcode = in.readUnsignedByte();
+		int flags = in.readUnsignedByte();
+		byte[] payload = new byte[length];
+		in.readFully(payload);
+		Frame frame = new Frame(requestId, opcode, flags, payload);
+		frame.setReceived(started, System.currentTimeMillis());
+		return frame;
+	}
+
+	@Override
+	public String toString() {
+		return "frame " + mRequestId + " " + Protocol.toString(mOpcode) + " ("
+				+ mLength + " bytes)";
+	}
+
+}
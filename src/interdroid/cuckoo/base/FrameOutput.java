@@ -0,0 +1,52 @@
+package interdroid.cuckoo.base;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+
+/**
+ * Stream to write the payload of a {@link Frame} to. The frame shares the
+ * buffer of this stream, so the payload is not copied.
+ */
+public class FrameOutput extends DataOutputStream {
+
+	/**
+	 * ByteArrayOutputStream that gives access to its buffer
+	 */
+	private static class Buffer extends ByteArrayOutputStream {
+
+		Buffer(int size) {
+			super(size);
+		}
+
+		byte[] buffer() {
+			return buf;
+		}
+
+	}
+
+	public FrameOutput() {
+		this(256);
+	}
+
+	public FrameOutput(int initialSize) {
+		super(new Buffer(initialSize));
+	}
+
+	/**
+	 * Creates a frame with what has been written to this stream as payload.
+	 *
+	 * @param requestId
+	 *            the request id of the frame
+	 * @param opcode
+	 *            the opcode of the frame
+	 * @param flags
+	 *            the flags of the frame
+	 * @return the frame
+	 */
+	public Frame toFrame(int requestId, int opcode, int flags) {
+		Buffer buffer = (Buffer) out;
+		return new Frame(requestId, opcode, flags, buffer.buffer(),
+				buffer.size());
+	}
+
+}
@@ -0,0 +1,15 @@
+package interdroid.cuckoo.base;
+
+/**
+ * Thrown by the server if a {@link RemoteHandle} is used that has been
+ * released or has expired.
+ */
+public class HandleExpiredException extends Exception {
+
+	private static final long serialVersionUID = 1L;
+
+	public HandleExpiredException(String string) {
+		super(string);
+	}
+
+}
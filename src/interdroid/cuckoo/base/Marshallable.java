@@ -0,0 +1,37 @@
+package interdroid.cuckoo.base;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Parameter and result types can implement this interface to be written field
+ * by field by the {@link BinaryCodec}, instead of going through Java
+ * serialization. This works like Android's Parcelable, but is also available at
+ * the Cuckoo Server.
+ *
+ * Implementations need a public no-argument constructor, the object is created
+ * with it and then filled using {@link #readFrom(DataInput)}.
+ */
+public interface Marshallable {
+
+	/**
+	 * Writes the state of this object.
+	 *
+	 * @param out
+	 *            the output to write to
+	 * @throws IOException
+	 */
+	public void writeTo(DataOutput out) throws IOException;
+
+	/**
+	 * Reads the state of this object, exactly as it was written by
+	 * {@link #writeTo(DataOutput)}.
+	 *
+	 * @param in
+	 *            the input to read from
+	 * @throws IOException
+	 */
+	public void readFrom(DataInput in) throws IOException;
+
+}
@@ -20,12 +20,65 @@ public class Protocol {
 	public static final int OPCODE_INITIALIZE_SENSOR = 7;
 	public static final int OPCODE_REGISTER_SENSOR = 8;
 	public static final int OPCODE_UNREGISTER_SENSOR = 9;
+	public static final int OPCODE_INVOKE_BATCH = 10;
+	public static final int OPCODE_STREAM_DATA = 11;
+	public static final int OPCODE_QUERY_BLOBS = 12;
+	public static final int OPCODE_REGISTER_METHOD = 13;
+	public static final int OPCODE_INVOKE_REGISTERED = 14;
+	public static final int OPCODE_FETCH_HANDLE = 15;
+	public static final int OPCODE_RELEASE_HANDLE = 16;
+	public static final int OPCODE_INVOKE_PIPELINE = 17;
+	public static final int OPCODE_STAGE_BLOB = 18;
+	public static final int OPCODE_STAGE_STRIPE = 19;
+	public static final int OPCODE_FETCH_RANGE = 20;
+	public static final int OPCODE_PING = 21;
 
 	/**
 	 * Result codes
 	 */
 	public static final int RESULT_OK = 100;
 	public static final int RESULT_EXCEPTION = 101;
+	public static final int RESULT_NEED_FILES = 102;
+
+	/**
+	 * A client that speaks the framed protocol starts its connection with this
+	 * magic number ("CKOO") followed by a single byte with the version. After
+	 * that all messages are {@link Frame}s. Connections that start otherwise
+	 * are handled as sessions of the original stream protocol, which is still
+	 * used for debugging and sensors.
+	 */
+	public static final int FRAMED_MAGIC = 0x434B4F4F;
+	public static final int FRAMED_VERSION = 1;
+
+	/**
+	 * Frame flags, FLAG_COMPRESSED means that the payload is compressed (see
+	 * {@link Compression}), FLAG_MORE means that the frame is a part of a
+	 * response and more frames for the same request follow, FLAG_ENSURE means
+	 * that an invoke or batch request starts with the names of the files of the
+	 * service, so the server can install and initialize the service as part
+	 * of the invocation (see {@link #FILES_STREAM}), FLAG_KEEP_RESULT means
+	 * that the server keeps the result of an invocation and responds with a
+	 * {@link RemoteHandle} instead, FLAG_REGISTER means that the id of the
+	 * method of an {@link #OPCODE_INVOKE_REGISTERED} request is followed by
+	 * the service name, the method name, the parameter types and the out
+	 * parameters, so the server registers the method under the id that the
+	 * client chose as part of the invocation
+	 */
+	public static final int FLAG_COMPRESSED = 1;
+	public static final int FLAG_MORE = 2;
+	public static final int FLAG_ENSURE = 4;
+	public static final int FLAG_KEEP_RESULT = 8;
+	public static final int FLAG_REGISTER = 16;
+
+	/**
+	 * If the service of an invoke or batch request with {@link #FLAG_ENSURE}
+	 * is not installed, the server responds with a {@link #RESULT_NEED_FILES}
+	 * frame with the names of the files it needs and waits for the client to
+	 * send them as a streamed parameter with this index, in the layout of an
+	 * install request without the service name. The invocation continues
+	 * after the installation, so the parameters are sent only once.
+	 */
+	public static final int FILES_STREAM = -1;
 
 	/**
 	 * Default send and receive buffer sizes
@@ -33,6 +86,59 @@ public class Protocol {
 	public static final int SEND_BUFFER = 1024 * 1024;
 	public static final int RECEIVE_BUFFER = 1024 * 1024;
 
+	/**
+	 * System properties that override the default buffer sizes
+	 */
+	public static final String SEND_BUFFER_PROPERTY = "interdroid.cuckoo.sendbuffer";
+	public static final String RECEIVE_BUFFER_PROPERTY = "interdroid.cuckoo.receivebuffer";
+
+	/**
+	 * Bounds of the buffer sizes that are chosen from the bandwidth-delay
+	 * product
+	 */
+	public static final int MIN_BUFFER = 64 * 1024;
+	public static final int MAX_BUFFER = 8 * 1024 * 1024;
+
+	/**
+	 * Returns the socket buffer size for a link, twice the bandwidth-delay
+	 * product so that a single stream can keep the link busy, within
+	 * {@link #MIN_BUFFER} and {@link #MAX_BUFFER}.
+	 * 
+	 * @param bandwidth
+	 *            the bandwidth in bytes per ms
+	 * @param rtt
+	 *            the round trip time in ms
+	 */
+	public static int bufferSize(double bandwidth, long rtt) {
+		return (int) Math.max(MIN_BUFFER,
+				Math.min(MAX_BUFFER, 2 * bandwidth * rtt));
+	}
+
+	/**
+	 * System property with the class name of the {@link Codec} that is used for
+	 * parameters and results. The client and the server have to use the same
+	 * codec.
+	 */
+	public static final String CODEC = "interdroid.cuckoo.codec";
+
+	/**
+	 * Creates the {@link Codec} configured with the {@link #CODEC} property,
+	 * or a {@link BinaryCodec} if the property is not set.
+	 *
+	 * @return the codec
+	 */
+	public static Codec createCodec() {
+		String className = System.getProperty(CODEC);
+		if (className == null) {
+			return new BinaryCodec();
+		}
+		try {
+			return (Codec) Class.forName(className).newInstance();
+		} catch (Exception e) {
+			throw new RuntimeException("Cannot create codec: " + className, e);
+		}
+	}
+
 	/**
 	 * Convenience method to convert a protocol code into a human readable
 	 * string
@@ -57,6 +163,8 @@ public class Protocol {
 			return "OK";
 		case RESULT_EXCEPTION:
 			return "EXCEPTION";
+		case RESULT_NEED_FILES:
+			return "NEED FILES";
 		case OPCODE_INITIALIZE_SENSOR:
 			return "INITIALIZE SENSOR";
 		case OPCODE_INSTALL_SENSOR:
@@ -65,6 +173,30 @@ public class Protocol {
 			return "REGISTER SENSOR";
 		case OPCODE_UNREGISTER_SENSOR:
 			return "UNREGISTER SENSOR";
+		case OPCODE_INVOKE_BATCH:
+			return "invoke batch";
+		case OPCODE_STREAM_DATA:
+			return "stream data";
+		case OPCODE_QUERY_BLOBS:
+			return "query blobs";
+		case OPCODE_REGISTER_METHOD:
+			return "register method";
+		case OPCODE_INVOKE_REGISTERED:
+			return "invoke registered";
+		case OPCODE_FETCH_HANDLE:
+			return "fetch handle";
+		case OPCODE_RELEASE_HANDLE:
+			return "release handle";
+		case OPCODE_INVOKE_PIPELINE:
+			return "invoke pipeline";
+		case OPCODE_STAGE_BLOB:
+			return "stage blob";
+		case OPCODE_STAGE_STRIPE:
+			return "stage stripe";
+		case OPCODE_FETCH_RANGE:
+			return "fetch range";
+		case OPCODE_PING:
+			return "ping";
 		default:
 			return "unknown code: " + code;
 		}
@@ -0,0 +1,79 @@
+package interdroid.cuckoo.base;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.Serializable;
+
+/**
+ * Refers to the result of an invocation that was kept at the server instead
+ * of being sent to the client, see {@link Protocol#FLAG_KEEP_RESULT}. A handle
+ * can be passed as a parameter to later invocations on the same server, which
+ * then get the value itself. The value can be fetched with
+ * {@link Protocol#OPCODE_FETCH_HANDLE} and released with
+ * {@link Protocol#OPCODE_RELEASE_HANDLE}, the payload of both is the id of the
+ * handle. The server releases a handle that hasn't been used for its time to
+ * live, or earlier if it runs out of space for handles, after which using it
+ * results in a {@link HandleExpiredException}.
+ */
+public class RemoteHandle implements Marshallable, Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private long mId;
+
+	private long mSize;
+
+	private long mTimeToLive;
+
+	public RemoteHandle() {
+	}
+
+	/**
+	 * @param id
+	 *            the id of the value at the server
+	 * @param size
+	 *            the size of the encoded value in bytes
+	 * @param timeToLive
+	 *            the time in ms after its last use that the value is
+	 *            released
+	 */
+	public RemoteHandle(long id, long size, long timeToLive) {
+		mId = id;
+		mSize = size;
+		mTimeToLive = timeToLive;
+	}
+
+	public long getId() {
+		return mId;
+	}
+
+	/**
+	 * Returns the size of the encoded value, which is what a fetch downloads.
+	 */
+	public long getSize() {
+		return mSize;
+	}
+
+	public long getTimeToLive() {
+		return mTimeToLive;
+	}
+
+	public void writeTo(DataOutput out) throws IOException {
+		out.writeLong(mId);
+		out.writeLong(mSize);
+		out.writeLong(mTimeToLive);
+	}
+
+	public void readFrom(DataInput in) throws IOException {
+		mId = in.readLong();
+		mSize = in.readLong();
+		mTimeToLive = in.readLong();
+	}
+
+	@Override
+	public String toString() {
+		return "handle " + Long.toHexString(mId) + " (" + mSize + " bytes)";
+	}
+
+}
@@ -0,0 +1,23 @@
+package interdroid.cuckoo.base;
+
+/**
+ * Services can declare a parameter of this type to emit partial results while
+ * they are running, for instance recognized pages or detected faces. The
+ * client passes its own ResultSink for the parameter. For a remote invocation
+ * the partial results are streamed back and given to the client's sink, on the
+ * thread that invoked the method, before the invocation returns.
+ */
+public interface ResultSink {
+
+	/**
+	 * Emits a partial result.
+	 *
+	 * @param result
+	 *            the partial result, encoded with the {@link Codec} for a
+	 *            remote invocation
+	 * @throws Exception
+	 *             if the result could not be delivered
+	 */
+	public void emit(Object result) throws Exception;
+
+}
@@ -0,0 +1,48 @@
+package interdroid.cuckoo.base;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.Serializable;
+
+/**
+ * Takes the place of a {@link ResultSink} parameter in an invoke request. The
+ * partial results are sent back as {@link Protocol#RESULT_OK} frames with
+ * {@link Protocol#FLAG_MORE} set and the request id of the invocation. The
+ * payload of such a frame is the index of the parameter followed by the
+ * partial result.
+ */
+public class ResultSinkParameter implements Marshallable, Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private int mIndex;
+
+	public ResultSinkParameter() {
+	}
+
+	public ResultSinkParameter(int index) {
+		mIndex = index;
+	}
+
+	/**
+	 * Returns the index of the parameter.
+	 */
+	public int getIndex() {
+		return mIndex;
+	}
+
+	public void writeTo(DataOutput out) throws IOException {
+		out.writeInt(mIndex);
+	}
+
+	public void readFrom(DataInput in) throws IOException {
+		mIndex = in.readInt();
+	}
+
+	@Override
+	public String toString() {
+		return "result sink " + mIndex;
+	}
+
+}
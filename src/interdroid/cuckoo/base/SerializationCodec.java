@@ -0,0 +1,43 @@
+package interdroid.cuckoo.base;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+/**
+ * Codec that uses plain Java serialization. Every value is serialized into a
+ * separate length prefixed block, so the Codec doesn't depend on the type of
+ * stream it writes to. The {@link BinaryCodec} uses this Codec for values it
+ * has no fast path for.
+ */
+public class SerializationCodec implements Codec {
+
+	@Override
+	public void writeValue(DataOutput out, Object value) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream objectOut = new ObjectOutputStream(bytes);
+		objectOut.writeObject(value);
+		objectOut.close();
+		out.writeInt(bytes.size());
+		out.write(bytes.toByteArray());
+	}
+
+	@Override
+	public Object readValue(DataInput in) throws IOException,
+			ClassNotFoundException {
+		byte[] bytes = new byte[in.readInt()];
+		in.readFully(bytes);
+		ObjectInputStream objectIn = new ObjectInputStream(
+				new ByteArrayInputStream(bytes));
+		try {
+			return objectIn.readObject();
+		} finally {
+			objectIn.close();
+		}
+	}
+
+}
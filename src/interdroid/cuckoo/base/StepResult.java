@@ -0,0 +1,45 @@
+package interdroid.cuckoo.base;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.Serializable;
+
+/**
+ * Takes the place of a parameter of a step in a pipeline that is the result
+ * of an earlier step, see {@link Protocol#OPCODE_INVOKE_PIPELINE}.
+ */
+public class StepResult implements Marshallable, Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private int mStep;
+
+	public StepResult() {
+	}
+
+	public StepResult(int step) {
+		mStep = step;
+	}
+
+	/**
+	 * Returns the index of the step of which the result is used.
+	 */
+	public int getStep() {
+		return mStep;
+	}
+
+	public void writeTo(DataOutput out) throws IOException {
+		out.writeInt(mStep);
+	}
+
+	public void readFrom(DataInput in) throws IOException {
+		mStep = in.readInt();
+	}
+
+	@Override
+	public String toString() {
+		return "result of step " + mStep;
+	}
+
+}
@@ -0,0 +1,50 @@
+package interdroid.cuckoo.base;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.Serializable;
+
+/**
+ * Takes the place of an {@link java.io.InputStream} parameter in an invoke
+ * request. The contents of the stream follow the request in
+ * {@link Protocol#OPCODE_STREAM_DATA} frames with the same request id, so the
+ * server can start the invocation while the client is still uploading. The
+ * payload of such a frame is the index of the parameter followed by a chunk
+ * of data, the last chunk of a stream doesn't have {@link Protocol#FLAG_MORE}
+ * set.
+ */
+public class StreamParameter implements Marshallable, Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private int mIndex;
+
+	public StreamParameter() {
+	}
+
+	public StreamParameter(int index) {
+		mIndex = index;
+	}
+
+	/**
+	 * Returns the index of the parameter that is streamed.
+	 */
+	public int getIndex() {
+		return mIndex;
+	}
+
+	public void writeTo(DataOutput out) throws IOException {
+		out.writeInt(mIndex);
+	}
+
+	public void readFrom(DataInput in) throws IOException {
+		mIndex = in.readInt();
+	}
+
+	@Override
+	public String toString() {
+		return "stream " + mIndex;
+	}
+
+}
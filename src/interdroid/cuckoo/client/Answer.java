@@ -19,6 +19,8 @@ public class Answer {
 
 	private ArrayList<Resource> offloadResources = new ArrayList<Cuckoo.Resource>();
 	private ArrayList<Resource> unknownResources = new ArrayList<Cuckoo.Resource>();
+	private ArrayList<Resource> closeResources = new ArrayList<Cuckoo.Resource>();
+	private boolean uncertain;
 
 	/**
 	 * Returns the list of {@link Resource}s for which the Oracle considers offloading to be beneficial.
@@ -36,6 +38,31 @@ public class Answer {
 		return unknownResources;
 	}
 
+	/**
+	 * Returns the list of {@link Resource}s for which offloading is estimated
+	 * to be slightly worse than local execution, within
+	 * {@link Oracle#RACE_MARGIN}. These are not offloaded to, but they are
+	 * worth racing against local execution.
+	 * @return the list of {@link Resource}s that are close to being beneficial.
+	 */
+	public ArrayList<Resource> getCloseResources() {
+		return closeResources;
+	}
+
+	/**
+	 * Returns whether the decision is a close call, because there is no
+	 * history yet or the probability that offloading is better is within
+	 * {@link Oracle#RACE_MARGIN} of {@link Oracle#CONFIDENCE}.
+	 * @return true if the decision is uncertain.
+	 */
+	public boolean isUncertain() {
+		return uncertain;
+	}
+
+	void setUncertain(boolean uncertain) {
+		this.uncertain = uncertain;
+	}
+
 	/**
 	 * Returns true if both {@link #getOffloadResources()} and {@link #getUnknownResources()} are empty.
 	 * @return
@@ -0,0 +1,193 @@
+package interdroid.cuckoo.client;
+
+import interdroid.cuckoo.client.Cuckoo.Resource;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+
+import android.util.Log;
+
+/**
+ * Executes asynchronous invocations on a bounded number of threads. The
+ * decision where to run an invocation is made on one of these threads, after
+ * which the invocation is queued for the chosen resource. At most
+ * {@link #PER_RESOURCE_PROPERTY} invocations run at a resource at once, so a
+ * slow resource can't take all the threads. The total number of invocations
+ * in flight is bounded as well, beyond that new invocations are rejected.
+ */
+class AsyncInvoker {
+
+	private static final String TAG = "Cuckoo AsyncInvoker";
+
+	/**
+	 * System property with the number of threads
+	 */
+	static final String THREADS_PROPERTY = "interdroid.cuckoo.async.threads";
+
+	static final int DEFAULT_THREADS = 4;
+
+	/**
+	 * System property with the maximum number of invocations that run at a
+	 * single resource at once
+	 */
+	static final String PER_RESOURCE_PROPERTY = "interdroid.cuckoo.async.perresource";
+
+	static final int DEFAULT_PER_RESOURCE = 2;
+
+	/**
+	 * System property with the maximum number of invocations in flight
+	 */
+	static final String MAX_IN_FLIGHT_PROPERTY = "interdroid.cuckoo.async.max";
+
+	static final int DEFAULT_MAX_IN_FLIGHT = 64;
+
+	/**
+	 * The invocations of a resource that are running or waiting to run.
+	 */
+	private static class ResourceQueue {
+
+		final LinkedList<Runnable> waiting = new LinkedList<Runnable>();
+
+		int running;
+
+	}
+
+	private static ExecutorService sExecutor;
+
+	private static final Map<String, ResourceQueue> sQueues = new HashMap<String, ResourceQueue>();
+
+	private static int sInFlight;
+
+	/**
+	 * Registers a new invocation.
+	 * 
+	 * @throws RejectedExecutionException
+	 *             if there are too many invocations in flight
+	 */
+	static synchronized void started() {
+		if (sInFlight >= Integer.getInteger(MAX_IN_FLIGHT_PROPERTY,
+				DEFAULT_MAX_IN_FLIGHT)) {
+			throw new RejectedExecutionException(sInFlight
+					+ " invocations in flight");
+		}
+		sInFlight++;
+	}
+
+	/**
+	 * Registers that an invocation is done.
+	 */
+	static synchronized void finished() {
+		sInFlight--;
+	}
+
+	/**
+	 * Returns the number of invocations that are not done yet.
+	 */
+	static synchronized int getInFlight() {
+		return sInFlight;
+	}
+
+	/**
+	 * Returns the number of invocations that are running or queued for a
+	 * resource.
+	 */
+	static synchronized int getInFlight(Resource resource) {
+		ResourceQueue queue = sQueues.get(key(resource));
+		return queue == null ? 0 : queue.running + queue.waiting.size();
+	}
+
+	/**
+	 * Executes a task of an invocation that is not bound to a resource yet.
+	 */
+	static void execute(final InvocationFuture future, final Runnable task) {
+		executor().execute(new Runnable() {
+			public void run() {
+				if (!future.isCancelled()) {
+					task.run();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Executes a task of an invocation at a resource, it waits in the queue of
+	 * the resource if there are too many running there.
+	 */
+	static void execute(Resource resource, final InvocationFuture future,
+			final Runnable task) {
+		final String key = key(resource);
+		Runnable queued = new Runnable() {
+			public void run() {
+				try {
+					if (!future.isCancelled()) {
+						task.run();
+					}
+				} finally {
+					next(key);
+				}
+			}
+		};
+		synchronized (AsyncInvoker.class) {
+			ResourceQueue queue = sQueues.get(key);
+			if (queue == null) {
+				queue = new ResourceQueue();
+				sQueues.put(key, queue);
+			}
+			if (queue.running >= Integer.getInteger(PER_RESOURCE_PROPERTY,
+					DEFAULT_PER_RESOURCE)) {
+				Log.d(TAG, "queueing invocation for " + key + " ("
+						+ queue.running + " running)");
+				queue.waiting.add(queued);
+				return;
+			}
+			queue.running++;
+		}
+		executor().execute(queued);
+	}
+
+	/**
+	 * Starts the next invocation of a resource after one is done.
+	 */
+	private static void next(String key) {
+		Runnable next;
+		synchronized (AsyncInvoker.class) {
+			ResourceQueue queue = sQueues.get(key);
+			next = queue.waiting.poll();
+			if (next == null) {
+				queue.running--;
+				if (queue.running == 0) {
+					sQueues.remove(key);
+				}
+				return;
+			}
+		}
+		executor().execute(next);
+	}
+
+	private static synchronized ExecutorService executor() {
+		if (sExecutor == null) {
+			sExecutor = Executors.newFixedThreadPool(Integer.getInteger(
+					THREADS_PROPERTY, DEFAULT_THREADS), new ThreadFactory() {
+				private int mCount;
+
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "Cuckoo invoker "
+							+ mCount++);
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return sExecutor;
+	}
+
+	private static String key(Resource resource) {
+		return resource.getHostname() + ":" + resource.getPort();
+	}
+
+}
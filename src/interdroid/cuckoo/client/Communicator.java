@@ -0,0 +1,1569 @@
+package interdroid.cuckoo.client;
+
+import interdroid.cuckoo.base.AlreadyInitializedException;
+import interdroid.cuckoo.base.AlreadyInstalledException;
+import interdroid.cuckoo.base.BlobMissingException;
+import interdroid.cuckoo.base.BlobParameter;
+import interdroid.cuckoo.base.Codec;
+import interdroid.cuckoo.base.Compression;
+import interdroid.cuckoo.base.DeltaParameter;
+import interdroid.cuckoo.base.Frame;
+import interdroid.cuckoo.base.FrameOutput;
+import interdroid.cuckoo.base.NotInitializedException;
+import interdroid.cuckoo.base.NotInstalledException;
+import interdroid.cuckoo.base.Protocol;
+import interdroid.cuckoo.base.RemoteHandle;
+import interdroid.cuckoo.base.ResultSink;
+import interdroid.cuckoo.base.ResultSinkParameter;
+import interdroid.cuckoo.base.StreamParameter;
+import interdroid.cuckoo.client.Cuckoo.Resource;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import android.content.Context;
+import android.util.Log;
+
+/**
+ * The Communicator object communicates with a single Cuckoo Server using the
+ * framed protocol. Every request gets its own request id, so multiple
+ * invocations from different threads can be in flight on the same connection
+ * and complete in any order. A reader thread dispatches the responses to the
+ * waiting invocations.
+ *
+ * @author rkemp
+ *
+ */
+class Communicator {
+
+	private static final String TAG = "Cuckoo Communicator";
+
+	/**
+	 * System property with the time in ms to wait for a connection to be
+	 * made, 0 waits as long as the operating system does
+	 */
+	static final String CONNECT_TIMEOUT_PROPERTY = "interdroid.cuckoo.connect.timeout";
+
+	static final int DEFAULT_CONNECT_TIMEOUT = 5000;
+
+	/**
+	 * System property with the time in ms to wait for the next frame of a
+	 * response, 0 waits forever. This includes the execution time of the
+	 * method at the resource.
+	 */
+	static final String READ_TIMEOUT_PROPERTY = "interdroid.cuckoo.read.timeout";
+
+	static final long DEFAULT_READ_TIMEOUT = 0;
+
+	private static final int CONNECT_TIMEOUT = Integer.parseInt(System
+			.getProperty(CONNECT_TIMEOUT_PROPERTY, ""
+					+ DEFAULT_CONNECT_TIMEOUT));
+
+	private static final long READ_TIMEOUT = Long.parseLong(System
+			.getProperty(READ_TIMEOUT_PROPERTY, "" + DEFAULT_READ_TIMEOUT));
+
+	/**
+	 * A request that is waiting for its response.
+	 */
+	static class Call {
+
+		private final Communicator mCommunicator;
+
+		private final int mRequestId;
+
+		/**
+		 * Frames for this call, or the IOException that ended the connection
+		 */
+		private final LinkedBlockingQueue<Object> mResponses = new LinkedBlockingQueue<Object>();
+
+		private Call(Communicator communicator, int requestId) {
+			mCommunicator = communicator;
+			mRequestId = requestId;
+		}
+
+		int getRequestId() {
+			return mRequestId;
+		}
+
+		/**
+		 * Whether the final frame of the response, or the failure of the
+		 * connection, has arrived
+		 */
+		private volatile boolean mEnded;
+
+		/**
+		 * Returns whether the final frame of the response has arrived, frames
+		 * with {@link Protocol#FLAG_MORE} don't end the response.
+		 */
+		boolean hasEnded() {
+			return mEnded;
+		}
+
+		/**
+		 * Takes a frame with the given opcode that has arrived, out of the
+		 * order of the response, so that the server can be answered while
+		 * the request is still being sent.
+		 *
+		 * @return the frame, or null if there is none
+		 */
+		Frame take(int opcode) {
+			for (Object response : mResponses) {
+				if (response instanceof Frame
+						&& ((Frame) response).getOpcode() == opcode) {
+					mResponses.remove(response);
+					return (Frame) response;
+				}
+			}
+			return null;
+		}
+
+		private void add(Object response) {
+			if (!(response instanceof Frame)
+					|| !((Frame) response).hasFlag(Protocol.FLAG_MORE)) {
+				mEnded = true;
+			}
+			mResponses.add(response);
+		}
+
+		/**
+		 * Waits for the next frame of the response. If the waiting thread is
+		 * interrupted or the frame doesn't arrive within the read timeout,
+		 * the request is cancelled at the server and the connection stays
+		 * usable.
+		 *
+		 * @return the frame
+		 * @throws SocketTimeoutException
+		 *             if the frame didn't arrive within the read timeout
+		 * @throws InterruptedIOException
+		 *             if the thread was interrupted
+		 * @throws IOException
+		 *             if the connection failed
+		 */
+		Frame next() throws IOException {
+			Object response;
+			try {
+				if (READ_TIMEOUT > 0) {
+					response = mResponses.poll(READ_TIMEOUT,
+							TimeUnit.MILLISECONDS);
+				} else {
+					response = mResponses.take();
+				}
+			} catch (InterruptedException e) {
+				mCommunicator.cancel(mRequestId);
+				throw new InterruptedIOException("Cancelled request "
+						+ mRequestId);
+			}
+			if (response == null) {
+				mCommunicator.cancel(mRequestId);
+				throw new SocketTimeoutException("No response to request "
+						+ mRequestId + " within " + READ_TIMEOUT + " ms");
+			}
+			if (response instanceof IOException) {
+				throw (IOException) response;
+			}
+			return (Frame) response;
+		}
+
+	}
+
+	/**
+	 * The resource information for this Communicator.
+	 */
+	private Resource mResource;
+
+	private Socket mSocket;
+
+	private DataInputStream mIn;
+
+	private DataOutputStream mOut;
+
+	private Codec mCodec = Protocol.createCodec();
+
+	private long mRTT;
+
+	/**
+	 * The calls waiting for a response, by request id
+	 */
+	private final Map<Integer, Call> mCalls = new HashMap<Integer, Call>();
+
+	private int mNextRequestId;
+
+	/**
+	 * Services that are known to be installed and initialized at the server
+	 */
+	private final Set<String> mReadyServices = Collections
+			.synchronizedSet(new HashSet<String>());
+
+	/**
+	 * Size of the chunks of streamed parameters
+	 */
+	private static final int STREAM_CHUNK_SIZE = 64 * 1024;
+
+	/**
+	 * The number of times a request is repeated because the server lost the
+	 * service or a blob in the meantime
+	 */
+	private static final int MAX_RETRIES = 2;
+
+	/**
+	 * Parameters that are at least this large when encoded are sent as blobs,
+	 * see {@link BlobParameter}
+	 */
+	private static final int BLOB_MIN_SIZE = 32 * 1024;
+
+	/**
+	 * The ids that this connection assigned to methods, by service, method,
+	 * parameter types and out parameters
+	 */
+	private final Map<String, Integer> mMethodIds = new HashMap<String, Integer>();
+
+	/**
+	 * The ids of the methods that the server confirmed it registered, the
+	 * other methods are registered along with their next invocation
+	 */
+	private final Set<Integer> mRegisteredIds = new HashSet<Integer>();
+
+	/**
+	 * The values of the delta parameters that were sent last, as blobs with
+	 * their encoded value, by service.method#index
+	 */
+	private final Map<String, BlobParameter> mDeltaBases = new HashMap<String, BlobParameter>();
+
+	/**
+	 * Number of invocations that are using this Communicator
+	 */
+	private int mInFlight;
+
+	/**
+	 * The time the last invocation using this Communicator completed.
+	 */
+	private long mIdleSince;
+
+	/**
+	 * Whether this Communicator has been used for an invocation.
+	 */
+	private boolean mUsed;
+
+	private volatile boolean mClosed;
+
+	/**
+	 * Constructs a Communicator object. This object will be used to
+	 * communicate with the given Resource.
+	 *
+	 * @param resource
+	 *            the resource to communicate with
+	 */
+	Communicator(Resource resource) throws IOException {
+		this(resource, InetAddress.getByName(resource.getHostname()),
+				Protocol.SEND_BUFFER);
+	}
+
+	/**
+	 * Constructs a Communicator object for a resource of which the hostname
+	 * has already been resolved.
+	 *
+	 * @param resource
+	 *            the resource to communicate with
+	 * @param address
+	 *            the address of the resource
+	 * @param bufferSize
+	 *            the size of the socket buffers, the receive buffer is set
+	 *            before connecting so that the window can grow to it
+	 */
+	Communicator(Resource resource, InetAddress address, int bufferSize)
+			throws IOException {
+		mResource = resource;
+		mSocket = new Socket();
+		mSocket.setSendBufferSize(bufferSize);
+		mSocket.setReceiveBufferSize(bufferSize);
+		long start = System.currentTimeMillis();
+		mSocket.connect(new InetSocketAddress(address, resource.getPort()),
+				CONNECT_TIMEOUT);
+		mRTT = System.currentTimeMillis() - start;
+		mIdleSince = System.currentTimeMillis();
+		mSocket.setKeepAlive(true);
+		mSocket.setTcpNoDelay(true);
+		mOut = new DataOutputStream(new BufferedOutputStream(
+				mSocket.getOutputStream(), 64 * 1024));
+		mIn = new DataInputStream(new BufferedInputStream(
+				mSocket.getInputStream(), 64 * 1024));
+		mOut.writeInt(Protocol.FRAMED_MAGIC);
+		mOut.write(Protocol.FRAMED_VERSION);
+		mOut.flush();
+		Thread reader = new Thread("Cuckoo reader " + resource) {
+			public void run() {
+				readResponses();
+			}
+		};
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	Resource getResource() {
+		return mResource;
+	}
+
+	long getRTT() {
+		return mRTT;
+	}
+
+	/**
+	 * Registers an invocation that is going to use this Communicator.
+	 *
+	 * @return true if this Communicator was already used before, and thus
+	 *         the invocation doesn't pay for the connection setup
+	 */
+	synchronized boolean use() {
+		boolean reused = mUsed;
+		mUsed = true;
+		mInFlight++;
+		return reused;
+	}
+
+	/**
+	 * Registers that an invocation no longer uses this Communicator.
+	 */
+	synchronized void done() {
+		mInFlight--;
+		if (mInFlight == 0) {
+			mIdleSince = System.currentTimeMillis();
+		}
+	}
+
+	synchronized int getInFlight() {
+		return mInFlight;
+	}
+
+	synchronized long getIdleSince() {
+		return mIdleSince;
+	}
+
+	boolean isClosed() {
+		return mClosed;
+	}
+
+	void end() {
+		fail(new IOException("Connection to " + mResource + " closed"));
+	}
+
+	/**
+	 * Closes the connection and fails all calls that are waiting.
+	 */
+	private void fail(IOException cause) {
+		List<Call> failed;
+		synchronized (mCalls) {
+			mClosed = true;
+			failed = new ArrayList<Call>(mCalls.values());
+			mCalls.clear();
+		}
+		for (Call call : failed) {
+			call.add(cause);
+		}
+		try {
+			mSocket.close();
+		} catch (IOException e) {
+			// ignore
+		}
+	}
+
+	private void readResponses() {
+		try {
+			while (true) {
+				Frame frame = Frame.read(mIn);
+				Call call;
+				synchronized (mCalls) {
+					if (frame.hasFlag(Protocol.FLAG_MORE)) {
+						call = mCalls.get(frame.getRequestId());
+					} else {
+						call = mCalls.remove(frame.getRequestId());
+					}
+				}
+				if (call == null) {
+					Log.d(TAG, "dropping " + frame + " without a call");
+				} else {
+					call.add(frame);
+				}
+			}
+		} catch (IOException e) {
+			if (!mClosed) {
+				Log.d(TAG, "connection to " + mResource + " failed: " + e);
+			}
+			fail(e);
+		}
+	}
+
+	/**
+	 * Sends a request.
+	 *
+	 * @param opcode
+	 *            the opcode of the request
+	 * @param payload
+	 *            the payload of the request
+	 * @return the call to wait for the response with
+	 * @throws IOException
+	 *             if the connection is closed or sending failed
+	 */
+	Call send(int opcode, FrameOutput payload) throws IOException {
+		Call call = newCall();
+		send(payload.toFrame(call.getRequestId(), opcode, 0));
+		return call;
+	}
+
+	/**
+	 * Cancels a request of which the response is not needed anymore. The
+	 * server interrupts the invocation, whatever it still sends for the
+	 * request is dropped.
+	 */
+	private void cancel(int requestId) {
+		synchronized (mCalls) {
+			mCalls.remove(requestId);
+		}
+		Log.d(TAG, "cancelling request " + requestId);
+		try {
+			send(new FrameOutput().toFrame(requestId, Protocol.OPCODE_CANCEL,
+					0));
+		} catch (IOException e) {
+			// the connection failed, so the request is gone anyway
+		}
+	}
+
+	/**
+	 * Registers a new call, of which the request still has to be sent with
+	 * {@link #send(Frame)}.
+	 *
+	 * @return the call
+	 * @throws IOException
+	 *             if the connection is closed
+	 */
+	private Call newCall() throws IOException {
+		synchronized (mCalls) {
+			if (mClosed) {
+				throw new IOException("Connection to " + mResource + " closed");
+			}
+			Call call = new Call(this, mNextRequestId++);
+			mCalls.put(call.getRequestId(), call);
+			return call;
+		}
+	}
+
+	/**
+	 * Sends a request, compressed if that pays off on the current link.
+	 *
+	 * @param context
+	 *            the context of the request
+	 * @param opcode
+	 *            the opcode of the request
+	 * @param payload
+	 *            the payload of the request
+	 * @param statistics
+	 *            receives the compression level, ratio and time, may be null
+	 * @return the call to wait for the response with
+	 * @throws IOException
+	 *             if the connection is closed or sending failed
+	 */
+	private Call send(Context context, int opcode, FrameOutput payload,
+			Statistics statistics) throws IOException {
+		return send(context, opcode, 0, payload, Protocol.toString(opcode),
+				statistics);
+	}
+
+	/**
+	 * Sends a request with flags, compressed if that pays off on the current
+	 * link. The compression ratio is estimated for the kind of the request,
+	 * such as the method it invokes.
+	 */
+	private Call send(Context context, int opcode, int flags,
+			FrameOutput payload, String kind, Statistics statistics)
+			throws IOException {
+		Call call = newCall();
+		Frame request = payload.toFrame(call.getRequestId(), opcode, flags);
+		long start = System.currentTimeMillis();
+		int level = Compression.chooseLevel(kind, request.getLength(),
+				Oracle.estimateUploadBandwidth(context, mResource,
+						request.getLength()));
+		Frame compressed = Compression.compress(request, level, kind);
+		if (statistics != null) {
+			statistics.compressionLevel = level;
+			statistics.compressionTime = System.currentTimeMillis() - start;
+			statistics.compressionRatio = (double) compressed.getLength()
+					/ request.getLength();
+		}
+		send(compressed);
+		return call;
+	}
+
+	/**
+	 * Decompresses a response, the time it takes is added to the statistics.
+	 */
+	private Frame decompress(Frame frame, Statistics statistics)
+			throws IOException {
+		long start = System.currentTimeMillis();
+		Frame result = Compression.decompress(frame);
+		statistics.compressionTime += System.currentTimeMillis() - start;
+		return result;
+	}
+
+	private void send(Frame frame) throws IOException {
+		try {
+			synchronized (mOut) {
+				frame.write(mOut);
+				mOut.flush();
+			}
+		} catch (IOException e) {
+			fail(e);
+			throw e;
+		}
+	}
+
+	/**
+	 * Throws the exception in the payload of a RESULT_EXCEPTION frame.
+	 */
+	private void throwException(Frame frame) throws Exception {
+		if (frame.getOpcode() != Protocol.RESULT_EXCEPTION) {
+			throw new IOException("Invalid result: " + frame);
+		}
+		Object exception = mCodec.readValue(frame.getInput());
+		if (exception instanceof Exception) {
+			throw (Exception) exception;
+		}
+		throw new Exception((Throwable) exception);
+	}
+
+	/**
+	 * Invokes a method on a service running at the Cuckoo Server.
+	 *
+	 * @param serviceName
+	 *            the name of the service
+	 * @param methodName
+	 *            the name of the method
+	 * @param parameterTypes
+	 *            the types of the parameters
+	 * @param parameters
+	 *            the values of the parameters
+	 * @return the return value of the method
+	 * @throws Exception
+	 *             if the method was not installed, not initialized
+	 */
+	Object invokeMethod(final Context context, final List<Resource> others,
+			final Statistics statistics, String serviceName,
+			final String methodName, Class<?>[] parameterTypes,
+			boolean[] outParameters, Object... parameters) throws Exception {
+		return invokeMethod(context, others, statistics, false, serviceName,
+				methodName, parameterTypes, outParameters, parameters);
+	}
+
+	/**
+	 * Invokes a method on a service running at the Cuckoo Server.
+	 *
+	 * @param keepResult
+	 *            whether the server should keep the result and return a
+	 *            {@link RemoteHandle} to it instead
+	 * @param serviceName
+	 *            the name of the service
+	 * @param methodName
+	 *            the name of the method
+	 * @param parameterTypes
+	 *            the types of the parameters
+	 * @param parameters
+	 *            the values of the parameters
+	 * @return the return value of the method
+	 * @throws Exception
+	 *             if the method was not installed, not initialized
+	 */
+	Object invokeMethod(final Context context, final List<Resource> others,
+			final Statistics statistics, boolean keepResult,
+			String serviceName, final String methodName,
+			Class<?>[] parameterTypes, boolean[] outParameters,
+			Object... parameters) throws Exception {
+		return invokeMethod(context, others, statistics, keepResult,
+				serviceName, methodName, parameterTypes, outParameters,
+				parameters, 0);
+	}
+
+	/**
+	 * Invokes a method, the invocation is repeated at most
+	 * {@link #MAX_RETRIES} times if the server lost the service or a blob.
+	 *
+	 * @param retries
+	 *            the number of times the invocation was repeated
+	 */
+	private Object invokeMethod(final Context context,
+			final List<Resource> others, final Statistics statistics,
+			boolean keepResult, String serviceName, final String methodName,
+			Class<?>[] parameterTypes, boolean[] outParameters,
+			Object[] parameters, int retries) throws Exception {
+		final long invocationStart = System.currentTimeMillis();
+		long start = invocationStart;
+		Log.d(TAG, "invoking method '" + methodName + "' on service '"
+				+ serviceName + "'");
+		// input streams are sent after the request, so that the server can
+		// start while we are still uploading, result sinks receive partial
+		// results while the server is running
+		Object[] values = parameters;
+		boolean streaming = false;
+		for (int i = 0; i < parameters.length; i++) {
+			if (parameters[i] instanceof InputStream
+					|| parameters[i] instanceof ResultSink) {
+				if (!streaming) {
+					values = parameters.clone();
+					streaming = true;
+				}
+				values[i] = parameters[i] instanceof InputStream ? new StreamParameter(
+						i) : new ResultSinkParameter(i);
+			}
+		}
+		statistics.dedupSize = 0;
+		values = replaceDeltas(statistics, serviceName, methodName,
+				parameters, values);
+		values = replaceBlobs(context, statistics, parameters, values);
+		FrameOutput out = new FrameOutput();
+		// if the service may not be ready, the server installs and
+		// initializes it as part of the invocation, so that the parameters
+		// are sent only once. This also makes streamed invocations, which
+		// cannot be repeated, safe.
+		boolean ensure = !mReadyServices.contains(serviceName);
+		if (ensure) {
+			String[] fileNames = context.getAssets().list(serviceName);
+			out.writeInt(fileNames.length);
+			for (String fileName : fileNames) {
+				out.writeUTF(fileName);
+			}
+		}
+		// a method that isn't registered yet is registered by the invocation
+		// itself, so the first invocation is still a single exchange
+		int methodId = getMethodId(serviceName, methodName, parameterTypes,
+				outParameters);
+		boolean register;
+		synchronized (mMethodIds) {
+			register = !mRegisteredIds.contains(methodId);
+		}
+		out.writeInt(methodId);
+		if (register) {
+			out.writeUTF(serviceName);
+			out.writeUTF(methodName);
+			mCodec.writeValue(out, parameterTypes);
+			mCodec.writeValue(out, outParameters);
+		}
+		mCodec.writeValue(out, values);
+		out.writeBoolean(others.size() > 0);
+
+		if (others.size() > 0) {
+			String othersString = "";
+			for (Resource other : others) {
+				othersString += other.getHostname() + ":" + other.getPort()
+						+ ",";
+			}
+			out.writeUTF(othersString.substring(0, othersString.length() - 1));
+		}
+		// the server compresses the result based on our download bandwidth
+		double bandwidth = Oracle.estimateDownloadBandwidth(context,
+				mResource);
+		out.writeFloat((float) bandwidth);
+		// new connections get buffers that fit the link
+		ConnectionPool.updateBufferSize(mResource, Math.max(bandwidth,
+				Oracle.estimateUploadBandwidth(context, mResource,
+						out.size())), mRTT);
+		Call call = send(context, Protocol.OPCODE_INVOKE_REGISTERED,
+				(ensure ? Protocol.FLAG_ENSURE : 0)
+						| (keepResult ? Protocol.FLAG_KEEP_RESULT : 0)
+						| (register ? Protocol.FLAG_REGISTER : 0), out,
+				serviceName + "." + methodName, statistics);
+		if (streaming) {
+			statistics.unrepeatable = true;
+		}
+		for (int i = 0; i < values.length; i++) {
+			if (values[i] instanceof StreamParameter) {
+				sendStream(context, call, serviceName, i,
+						(InputStream) parameters[i], serviceName + "."
+								+ methodName + "#" + i);
+			}
+		}
+		statistics.uploadTime = System.currentTimeMillis() - start;
+		start = System.currentTimeMillis();
+		Log.d(TAG, "  written request " + call.getRequestId() + " (took: "
+				+ statistics.uploadTime + " ms.)");
+		WifiWakeManager.Wake wake = WifiWakeManager.start(context, mResource,
+				serviceName + "." + methodName, statistics.weight);
+
+		Frame frame;
+		long partialSize = 0;
+		statistics.firstResultTime = 0;
+		try {
+			while (true) {
+				frame = call.next();
+				if (!frame.hasFlag(Protocol.FLAG_MORE)) {
+					break;
+				}
+				if (frame.getOpcode() == Protocol.RESULT_NEED_FILES) {
+					sendFiles(context, call, serviceName,
+							decompress(frame, statistics).getInput());
+					continue;
+				}
+				// a partial result for one of the result sinks
+				if (statistics.firstResultTime == 0) {
+					statistics.firstResultTime = System.currentTimeMillis()
+							- invocationStart;
+				}
+				partialSize += frame.getLength();
+				DataInputStream in = decompress(frame, statistics).getInput();
+				int index = in.readInt();
+				((ResultSink) parameters[index]).emit(mCodec.readValue(in));
+			}
+		} finally {
+			WifiWakeManager.stop(wake);
+		}
+		Log.d(TAG, "  result: " + frame);
+		final long waitTime = System.currentTimeMillis() - start;
+		start = System.currentTimeMillis();
+		if (frame.getOpcode() == Protocol.RESULT_OK) {
+			// OK
+			Frame result = decompress(frame, statistics);
+			statistics.resultCompressionRatio = (double) frame.getLength()
+					/ result.getLength();
+			DataInputStream in = result.getInput();
+			Object object = mCodec.readValue(in);
+			if (keepResult) {
+				Cuckoo.bindHandle((RemoteHandle) object, mResource);
+			}
+			for (int i = 0; i < outParameters.length; i++) {
+				if (outParameters[i]) {
+					parameters[i] = mCodec.readValue(in);
+				}
+			}
+			statistics.executionTime = in.readLong();
+			statistics.uploadTime = Math.max(in.readLong(),
+					statistics.uploadTime);
+			statistics.overlapTime = in.readLong();
+			statistics.downloadTime = frame.getReceiveTime()
+					+ System.currentTimeMillis() - start;
+			statistics.returnSize = frame.getLength() + partialSize;
+			mReadyServices.add(serviceName);
+			if (register) {
+				Log.d(TAG, "  registered method '" + methodName + "' as "
+						+ methodId);
+				synchronized (mMethodIds) {
+					mRegisteredIds.add(methodId);
+				}
+			}
+
+			statistics.resource = mResource;
+			// the server does not forward to the other resources yet, so
+			// there are no execution times of others to read here.
+			Log.d(TAG, "wait time: " + waitTime);
+			return object;
+		}
+		try {
+			throwException(frame);
+		} catch (NotInstalledException e) {
+			// the service was ready before, but the server lost it. The next
+			// invocation will ensure the service again.
+			mReadyServices.remove(serviceName);
+			if (streaming || retries == MAX_RETRIES) {
+				throw e;
+			}
+		} catch (NotInitializedException e) {
+			mReadyServices.remove(serviceName);
+			if (streaming || retries == MAX_RETRIES) {
+				throw e;
+			}
+		} catch (BlobMissingException e) {
+			// a blob was evicted after the query, the next query will tell
+			// that the server doesn't hold it anymore, or the base of a delta
+			// is missing or different, then the full values are sent. A
+			// streamed invocation cannot be repeated.
+			synchronized (mDeltaBases) {
+				mDeltaBases.clear();
+			}
+			for (Object parameter : parameters) {
+				if (parameter instanceof StagedValue) {
+					((StagedValue) parameter).evicted();
+				}
+			}
+			if (streaming || retries == MAX_RETRIES) {
+				throw e;
+			}
+		}
+		return invokeMethod(context, others, statistics, keepResult,
+				serviceName, methodName, parameterTypes, outParameters,
+				parameters, retries + 1);
+	}
+
+	/**
+	 * Fetches the value of a handle that was kept at the Cuckoo Server.
+	 *
+	 * @param handle
+	 *            the handle
+	 * @return the value
+	 * @throws Exception
+	 *             if the handle has expired
+	 */
+	Object fetch(Context context, Statistics statistics, RemoteHandle handle)
+			throws Exception {
+		long start = System.currentTimeMillis();
+		FrameOutput out = new FrameOutput();
+		out.writeLong(handle.getId());
+		out.writeFloat((float) Oracle.estimateDownloadBandwidth(context,
+				mResource));
+		int streams = Striping.streams(handle.getSize());
+		Object value;
+		if (streams > 1) {
+			byte[] encoded = Striping.fetch(context, this, handle, streams);
+			value = mCodec.readValue(new DataInputStream(
+					new ByteArrayInputStream(encoded)));
+			statistics.returnSize = encoded.length;
+		} else {
+			Frame frame = send(context, Protocol.OPCODE_FETCH_HANDLE, out,
+					null).next();
+			if (frame.getOpcode() != Protocol.RESULT_OK) {
+				throwException(frame);
+			}
+			value = mCodec.readValue(decompress(frame, statistics).getInput());
+			statistics.returnSize = frame.getLength();
+		}
+		statistics.downloadTime = System.currentTimeMillis() - start;
+		statistics.resource = mResource;
+		return value;
+	}
+
+	/**
+	 * Fetches a range of the encoded value of a handle into the buffer, as a
+	 * stripe of a parallel download.
+	 */
+	void fetchRange(Context context, RemoteHandle handle, byte[] buffer,
+			int offset, int length) throws Exception {
+		FrameOutput out = new FrameOutput();
+		out.writeLong(handle.getId());
+		out.writeInt(offset);
+		out.writeInt(length);
+		out.writeFloat((float) Oracle.estimateDownloadBandwidth(context,
+				mResource));
+		Frame frame = send(context, Protocol.OPCODE_FETCH_RANGE, out, null)
+				.next();
+		if (frame.getOpcode() != Protocol.RESULT_OK) {
+			throwException(frame);
+		}
+		Compression.decompress(frame).getInput().readFully(buffer, offset,
+				length);
+	}
+
+	/**
+	 * Uploads a range of an encoded value to the server, as a stripe of a
+	 * parallel upload. The range is sent in requests of
+	 * {@link Striping#CHUNK_SIZE} that are all sent before waiting for the
+	 * responses.
+	 */
+	void uploadStripe(Context context, byte[] hash, Frame value, int offset,
+			int length) throws Exception {
+		List<Call> calls = new ArrayList<Call>();
+		for (int position = offset; position < offset + length; position += Striping.CHUNK_SIZE) {
+			int chunk = Math.min(Striping.CHUNK_SIZE, offset + length
+					- position);
+			FrameOutput out = new FrameOutput(chunk + 64);
+			out.write(hash);
+			out.writeInt(value.getLength());
+			out.writeInt(position);
+			out.writeInt(chunk);
+			out.write(value.getPayload(), position, chunk);
+			calls.add(send(context, Protocol.OPCODE_STAGE_STRIPE, out, null));
+		}
+		for (Call call : calls) {
+			Frame frame = call.next();
+			if (frame.getOpcode() != Protocol.RESULT_OK) {
+				throwException(frame);
+			}
+		}
+	}
+
+	/**
+	 * Uploads a value to the blob cache of the Cuckoo Server ahead of the
+	 * invocations that use it.
+	 */
+	void stage(Context context, StagedValue staged) throws Exception {
+		long start = System.currentTimeMillis();
+		Frame encoded = staged.getEncoded();
+		if (encoded == null) {
+			FrameOutput value = new FrameOutput();
+			mCodec.writeValue(value, staged.getValue());
+			encoded = value.toFrame(0, 0, 0);
+			staged.encoded(encoded, hash(encoded));
+		}
+		int streams = Striping.streams(encoded.getLength());
+		if (streams > 1) {
+			Striping.upload(context, this, staged.getHash(), encoded, streams);
+		} else {
+			FrameOutput out = new FrameOutput(encoded.getLength() + 64);
+			new BlobParameter(staged.getHash(), encoded.getPayload(),
+					encoded.getLength()).writeTo(out);
+			Frame frame = send(context, Protocol.OPCODE_STAGE_BLOB, out,
+					null).next();
+			if (frame.getOpcode() != Protocol.RESULT_OK) {
+				throwException(frame);
+			}
+		}
+		Log.d(TAG, "staged " + encoded.getLength() + " bytes (took: "
+				+ (System.currentTimeMillis() - start) + " ms.)");
+	}
+
+	/**
+	 * Sends a ping, which the Cuckoo Server answers right away.
+	 *
+	 * @return the round trip time in ms
+	 */
+	long ping() throws IOException {
+		long start = System.currentTimeMillis();
+		send(Protocol.OPCODE_PING, new FrameOutput()).next();
+		return System.currentTimeMillis() - start;
+	}
+
+	/**
+	 * Releases a handle that was kept at the Cuckoo Server.
+	 */
+	void release(RemoteHandle handle) throws Exception {
+		FrameOutput out = new FrameOutput();
+		out.writeLong(handle.getId());
+		Frame frame = send(Protocol.OPCODE_RELEASE_HANDLE, out).next();
+		if (frame.getOpcode() != Protocol.RESULT_OK) {
+			throwException(frame);
+		}
+	}
+
+	/**
+	 * Returns the id of a method for this connection, a method gets the next
+	 * id the first time. Invocations of a registered method only send the id
+	 * instead of the names and the signature.
+	 */
+	private int getMethodId(String serviceName, String methodName,
+			Class<?>[] parameterTypes, boolean[] outParameters) {
+		String key = serviceName + "." + methodName
+				+ Arrays.toString(parameterTypes)
+				+ Arrays.toString(outParameters);
+		synchronized (mMethodIds) {
+			Integer id = mMethodIds.get(key);
+			if (id == null) {
+				id = mMethodIds.size();
+				mMethodIds.put(key, id);
+			}
+			return id;
+		}
+	}
+
+	private static byte[] hash(Frame value) throws Exception {
+		MessageDigest digest = MessageDigest
+				.getInstance(BlobParameter.HASH_ALGORITHM);
+		digest.update(value.getPayload(), 0, value.getLength());
+		return digest.digest();
+	}
+
+	/**
+	 * Replaces the parameters for which delta encoding is enabled by the
+	 * difference with the value that was sent in the previous invocation. The
+	 * first value, and values that differ too much, are sent in full as a
+	 * blob. The size that the difference saves is added to the statistics.
+	 * 
+	 * @return the values to send
+	 */
+	private Object[] replaceDeltas(Statistics statistics, String serviceName,
+			String methodName, Object[] parameters, Object[] values)
+			throws Exception {
+		for (int i = 0; i < values.length; i++) {
+			if (values[i] == null || values[i] != parameters[i]
+					|| values[i] instanceof StagedValue
+					|| !Cuckoo.isDelta(serviceName, methodName, i)) {
+				continue;
+			}
+			FrameOutput out = new FrameOutput();
+			mCodec.writeValue(out, values[i]);
+			Frame value = out.toFrame(0, 0, 0);
+			byte[] hash = hash(value);
+			String key = serviceName + "." + methodName + "#" + i;
+			BlobParameter base;
+			synchronized (mDeltaBases) {
+				base = mDeltaBases.put(key, new BlobParameter(hash,
+						value.getPayload(), value.getLength()));
+			}
+			if (values == parameters) {
+				values = parameters.clone();
+			}
+			if (base == null) {
+				values[i] = new BlobParameter(hash, value.getPayload(),
+						value.getLength());
+				continue;
+			}
+			byte[] delta = DeltaParameter.diff(base.getData(),
+					base.getLength(), value.getPayload(), value.getLength());
+			if (delta.length < value.getLength() / 2) {
+				values[i] = new DeltaParameter(base.getHash(), hash, delta);
+				statistics.dedupSize += value.getLength() - delta.length;
+				Log.d(TAG, "  parameter " + i + " as delta of " + delta.length
+						+ " bytes instead of " + value.getLength());
+			} else {
+				values[i] = new BlobParameter(hash, value.getPayload(),
+						value.getLength());
+			}
+		}
+		return values;
+	}
+
+	/**
+	 * Replaces the parameters that are large when encoded by blobs. The server
+	 * is asked which of these blobs it already holds, only the values of the
+	 * others are included in the request. The size of the values that don't
+	 * have to be uploaded is added to the statistics.
+	 * 
+	 * @param parameters
+	 *            the parameters of the invocation
+	 * @param values
+	 *            the values that will be sent, which may already have
+	 *            placeholders for streams and result sinks
+	 * @return the values to send
+	 */
+	private Object[] replaceBlobs(Context context, Statistics statistics,
+			Object[] parameters, Object[] values) throws Exception {
+		List<Integer> indices = new ArrayList<Integer>();
+		List<Frame> encoded = new ArrayList<Frame>();
+		List<byte[]> hashes = new ArrayList<byte[]>();
+		for (int i = 0; i < values.length; i++) {
+			Object parameter = parameters[i];
+			if (parameter instanceof StagedValue && values[i] == parameter) {
+				StagedValue staged = (StagedValue) parameter;
+				if (values == parameters) {
+					values = parameters.clone();
+				}
+				if (staged.awaitUpload(mResource)) {
+					values[i] = new BlobParameter(staged.getHash(), null, 0);
+					statistics.dedupSize += staged.getSize();
+					continue;
+				}
+				// staged elsewhere or the upload failed, send the value
+				parameter = staged.getValue();
+				values[i] = parameter;
+			}
+			if (values[i] == null || values[i] != parameter
+					|| values[i] instanceof Number
+					|| values[i] instanceof Boolean) {
+				continue;
+			}
+			FrameOutput out = new FrameOutput();
+			mCodec.writeValue(out, values[i]);
+			Frame value = out.toFrame(0, 0, 0);
+			if (value.getLength() < BLOB_MIN_SIZE) {
+				continue;
+			}
+			indices.add(i);
+			encoded.add(value);
+			hashes.add(hash(value));
+		}
+		if (indices.size() == 0) {
+			return values;
+		}
+		FrameOutput query = new FrameOutput();
+		query.writeInt(hashes.size());
+		for (byte[] hash : hashes) {
+			query.write(hash);
+		}
+		Frame frame = send(context, Protocol.OPCODE_QUERY_BLOBS, query, null)
+				.next();
+		if (frame.getOpcode() != Protocol.RESULT_OK) {
+			throwException(frame);
+		}
+		DataInputStream in = Compression.decompress(frame).getInput();
+		if (values == parameters) {
+			values = parameters.clone();
+		}
+		for (int i = 0; i < indices.size(); i++) {
+			Frame value = encoded.get(i);
+			if (in.readBoolean()) {
+				values[indices.get(i)] = new BlobParameter(hashes.get(i),
+						null, 0);
+				statistics.dedupSize += value.getLength();
+			} else if (upload(context, hashes.get(i), value)) {
+				values[indices.get(i)] = new BlobParameter(hashes.get(i),
+						null, 0);
+			} else {
+				values[indices.get(i)] = new BlobParameter(hashes.get(i),
+						value.getPayload(), value.getLength());
+			}
+		}
+		Log.d(TAG, "  " + indices.size() + " blobs, not uploading "
+				+ statistics.dedupSize + " bytes");
+		return values;
+	}
+
+	/**
+	 * Uploads a large blob to the blob cache of the server in parallel
+	 * streams, ahead of the invocation that uses it.
+	 * 
+	 * @return false if the blob is not large enough to be striped or the
+	 *         upload failed, then the blob has to be sent with the invocation
+	 */
+	private boolean upload(Context context, byte[] hash, Frame value) {
+		int streams = Striping.streams(value.getLength());
+		if (streams < 2) {
+			return false;
+		}
+		try {
+			Striping.upload(context, this, hash, value, streams);
+			return true;
+		} catch (Exception e) {
+			Log.d(TAG, "  striped upload failed, sending the blob inline: "
+					+ e);
+			return false;
+		}
+	}
+
+	/**
+	 * Sends the contents of a streamed parameter in chunks. A failure to read
+	 * the stream ends the stream at the server, but doesn't affect the
+	 * connection. If the server sent the final response already, the rest of
+	 * the stream is not needed: it is dropped without ending the stream, the
+	 * caller gets the result or the failure from the response. If the server
+	 * asks for the files of the service while the stream is being sent, they
+	 * are sent right away, because the server installs the service before it
+	 * starts reading the stream.
+	 * 
+	 * @param serviceName
+	 *            the service of the invocation, null if the stream is the
+	 *            {@link Protocol#FILES_STREAM}
+	 * @param kind
+	 *            the kind of the data for the compression of the chunks
+	 */
+	private void sendStream(Context context, Call call, String serviceName,
+			int index, InputStream stream, String kind) throws Exception {
+		double bandwidth = Oracle.estimateUploadBandwidth(context, mResource,
+				STREAM_CHUNK_SIZE);
+		byte[] buffer = new byte[STREAM_CHUNK_SIZE];
+		Exception failure = null;
+		int read = 0;
+		while (read >= 0) {
+			FrameOutput out = new FrameOutput(STREAM_CHUNK_SIZE + 4);
+			out.writeInt(index);
+			Frame needFiles = serviceName == null ? null : call
+					.take(Protocol.RESULT_NEED_FILES);
+			if (needFiles != null) {
+				sendFiles(context, call, serviceName, Compression.decompress(
+						needFiles).getInput());
+			}
+			if (call.hasEnded()) {
+				// for instance because the invocation failed
+				Log.d(TAG, "  request " + call.getRequestId()
+						+ " ended, not sending the rest of stream " + index);
+				return;
+			}
+			try {
+				read = stream.read(buffer);
+			} catch (IOException e) {
+				failure = new Exception("Failed to read streamed parameter "
+						+ index, e);
+				read = -1;
+			}
+			if (read > 0) {
+				out.write(buffer, 0, read);
+			}
+			Frame frame = out.toFrame(call.getRequestId(),
+					Protocol.OPCODE_STREAM_DATA, read < 0 ? 0
+							: Protocol.FLAG_MORE);
+			int level = Compression.chooseLevel(kind, frame.getLength(),
+					bandwidth);
+			send(Compression.compress(frame, level, kind));
+		}
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+	/**
+	 * Sends the files that the server needs to install a service as the
+	 * {@link Protocol#FILES_STREAM} of an invocation.
+	 * 
+	 * @param in
+	 *            the payload of the {@link Protocol#RESULT_NEED_FILES} frame
+	 */
+	private void sendFiles(Context context, Call call, String serviceName,
+			DataInputStream in) throws Exception {
+		String[] fileNames = new String[in.readInt()];
+		for (int i = 0; i < fileNames.length; i++) {
+			fileNames[i] = in.readUTF();
+		}
+		Log.d(TAG, "  server needs " + fileNames.length + " files of '"
+				+ serviceName + "'");
+		FrameOutput files = new FrameOutput(64 * 1024);
+		writeFiles(context, serviceName, fileNames, files);
+		Frame frame = files.toFrame(0, 0, 0);
+		sendStream(context, call, null, Protocol.FILES_STREAM,
+				new ByteArrayInputStream(frame.getPayload(), 0,
+						frame.getLength()), serviceName + " files");
+	}
+
+	/**
+	 * Invokes a method on a service running at the Cuckoo Server for a batch
+	 * of parameter tuples in a single request. The server executes the
+	 * invocations in parallel and streams the results back in order.
+	 *
+	 * @param serviceName
+	 *            the name of the service
+	 * @param methodName
+	 *            the name of the method
+	 * @param parameterTypes
+	 *            the types of the parameters
+	 * @param outParameters
+	 *            which parameters are out parameters
+	 * @param parameters
+	 *            the values of the parameters for each invocation, the
+	 *            values of out parameters are replaced
+	 * @return the return values of the invocations
+	 * @throws Exception
+	 *             if one of the invocations failed
+	 */
+	Object[] invokeBatch(final Context context, final Statistics statistics,
+			String serviceName, String methodName, Class<?>[] parameterTypes,
+			boolean[] outParameters, Object[][] parameters) throws Exception {
+		return invokeBatch(context, statistics, serviceName, methodName,
+				parameterTypes, outParameters, parameters, 0);
+	}
+
+	/**
+	 * Invokes a batch, the batch is repeated at most {@link #MAX_RETRIES}
+	 * times if the server lost the service. If the service may not be ready,
+	 * the server installs and initializes it as part of the batch, like a
+	 * single invocation.
+	 *
+	 * @param retries
+	 *            the number of times the batch was repeated
+	 */
+	private Object[] invokeBatch(final Context context,
+			final Statistics statistics, String serviceName,
+			String methodName, Class<?>[] parameterTypes,
+			boolean[] outParameters, Object[][] parameters, int retries)
+			throws Exception {
+		long start = System.currentTimeMillis();
+		Log.d(TAG, "invoking method '" + methodName + "' on service '"
+				+ serviceName + "' for a batch of " + parameters.length);
+		FrameOutput out = new FrameOutput();
+		boolean ensure = !mReadyServices.contains(serviceName);
+		if (ensure) {
+			String[] fileNames = context.getAssets().list(serviceName);
+			out.writeInt(fileNames.length);
+			for (String fileName : fileNames) {
+				out.writeUTF(fileName);
+			}
+		}
+		out.writeUTF(serviceName);
+		out.writeUTF(methodName);
+		mCodec.writeValue(out, parameterTypes);
+		mCodec.writeValue(out, outParameters);
+		out.writeInt(parameters.length);
+		for (Object[] tuple : parameters) {
+			mCodec.writeValue(out, tuple);
+		}
+		out.writeFloat((float) Oracle.estimateDownloadBandwidth(context,
+				mResource));
+		Call call = send(context, Protocol.OPCODE_INVOKE_BATCH,
+				ensure ? Protocol.FLAG_ENSURE : 0, out, serviceName + "."
+						+ methodName, statistics);
+		statistics.uploadTime = System.currentTimeMillis() - start;
+		Log.d(TAG, "  written request " + call.getRequestId() + " (took: "
+				+ statistics.uploadTime + " ms.)");
+
+		Object[] results = new Object[parameters.length];
+		statistics.downloadTime = 0;
+		statistics.returnSize = 0;
+		long compressed = 0;
+		long uncompressed = 0;
+		Frame frame;
+		WifiWakeManager.Wake wake = WifiWakeManager.start(context, mResource,
+				serviceName + "." + methodName, statistics.weight);
+		try {
+			while (true) {
+				frame = call.next();
+				if (frame.getOpcode() == Protocol.RESULT_NEED_FILES) {
+					sendFiles(context, call, serviceName,
+							decompress(frame, statistics).getInput());
+					continue;
+				}
+				if (frame.getOpcode() != Protocol.RESULT_OK) {
+					break;
+				}
+				start = System.currentTimeMillis();
+				Frame result = decompress(frame, statistics);
+				compressed += frame.getLength();
+				uncompressed += result.getLength();
+				DataInputStream in = result.getInput();
+				if (frame.hasFlag(Protocol.FLAG_MORE)) {
+					// the result of a single invocation
+					int index = in.readInt();
+					results[index] = mCodec.readValue(in);
+					for (int i = 0; i < outParameters.length; i++) {
+						if (outParameters[i]) {
+							parameters[index][i] = mCodec.readValue(in);
+						}
+					}
+				} else {
+					statistics.executionTime = in.readLong();
+					statistics.uploadTime = Math.max(in.readLong(),
+							statistics.uploadTime);
+				}
+				statistics.downloadTime += frame.getReceiveTime()
+						+ System.currentTimeMillis() - start;
+				statistics.returnSize += frame.getLength();
+				if (!frame.hasFlag(Protocol.FLAG_MORE)) {
+					statistics.resultCompressionRatio = (double) compressed
+							/ uncompressed;
+					statistics.resource = mResource;
+					mReadyServices.add(serviceName);
+					return results;
+				}
+			}
+		} finally {
+			WifiWakeManager.stop(wake);
+		}
+		// the last frame is an exception
+		try {
+			throwException(frame);
+		} catch (NotInstalledException e) {
+			// the service was ready before, but the server lost it. The
+			// repeated batch ensures the service.
+			mReadyServices.remove(serviceName);
+			if (retries == MAX_RETRIES) {
+				throw e;
+			}
+		} catch (NotInitializedException e) {
+			mReadyServices.remove(serviceName);
+			if (retries == MAX_RETRIES) {
+				throw e;
+			}
+		}
+		return invokeBatch(context, statistics, serviceName, methodName,
+				parameterTypes, outParameters, parameters, retries + 1);
+	}
+
+	/**
+	 * Invokes a pipeline at the Cuckoo Server in a single request. The
+	 * services of the steps are installed and initialized first if needed.
+	 * The execution time of each step is stored in the statistics.
+	 * 
+	 * @param pipeline
+	 *            the pipeline
+	 * @return the results of the steps by index, null for the steps of which
+	 *         the result was used by another step
+	 * @throws Exception
+	 *             if one of the steps failed
+	 */
+	Object[] invokePipeline(final Context context,
+			final Statistics statistics, Pipeline pipeline) throws Exception {
+		return invokePipeline(context, statistics, pipeline, 0);
+	}
+
+	/**
+	 * Invokes a pipeline, the pipeline is repeated at most
+	 * {@link #MAX_RETRIES} times if the server lost one of the services.
+	 *
+	 * @param retries
+	 *            the number of times the pipeline was repeated
+	 */
+	private Object[] invokePipeline(final Context context,
+			final Statistics statistics, Pipeline pipeline, int retries)
+			throws Exception {
+		long start = System.currentTimeMillis();
+		List<Pipeline.Step> steps = pipeline.getSteps();
+		Log.d(TAG, "invoking a pipeline of " + steps.size() + " steps");
+		for (Pipeline.Step step : steps) {
+			ensureService(context, step.serviceName);
+		}
+		FrameOutput out = new FrameOutput();
+		out.writeInt(steps.size());
+		for (Pipeline.Step step : steps) {
+			out.writeUTF(step.serviceName);
+			out.writeUTF(step.methodName);
+			mCodec.writeValue(out, step.parameterTypes);
+			mCodec.writeValue(out, step.parameters);
+		}
+		out.writeFloat((float) Oracle.estimateDownloadBandwidth(context,
+				mResource));
+		Call call = send(context, Protocol.OPCODE_INVOKE_PIPELINE, 0, out,
+				pipeline.getName(), statistics);
+		statistics.uploadTime = System.currentTimeMillis() - start;
+		Log.d(TAG, "  written request " + call.getRequestId() + " (took: "
+				+ statistics.uploadTime + " ms.)");
+
+		Frame frame;
+		WifiWakeManager.Wake wake = WifiWakeManager.start(context, mResource,
+				pipeline.getName(), statistics.weight);
+		try {
+			frame = call.next();
+		} finally {
+			WifiWakeManager.stop(wake);
+		}
+		Log.d(TAG, "  result: " + frame);
+		start = System.currentTimeMillis();
+		if (frame.getOpcode() == Protocol.RESULT_OK) {
+			Frame result = decompress(frame, statistics);
+			statistics.resultCompressionRatio = (double) frame.getLength()
+					/ result.getLength();
+			DataInputStream in = result.getInput();
+			Object[] results = new Object[steps.size()];
+			int outputs = in.readInt();
+			for (int i = 0; i < outputs; i++) {
+				int index = in.readInt();
+				results[index] = mCodec.readValue(in);
+			}
+			statistics.stepExecutionTimes = new long[in.readInt()];
+			for (int i = 0; i < statistics.stepExecutionTimes.length; i++) {
+				statistics.stepExecutionTimes[i] = in.readLong();
+			}
+			statistics.executionTime = in.readLong();
+			statistics.uploadTime = Math.max(in.readLong(),
+					statistics.uploadTime);
+			statistics.downloadTime = frame.getReceiveTime()
+					+ System.currentTimeMillis() - start;
+			statistics.returnSize = frame.getLength();
+			statistics.resource = mResource;
+			return results;
+		}
+		try {
+			throwException(frame);
+		} catch (NotInstalledException e) {
+			// the server lost a service, ensure all of them again
+			for (Pipeline.Step step : steps) {
+				mReadyServices.remove(step.serviceName);
+			}
+			if (retries == MAX_RETRIES) {
+				throw e;
+			}
+		} catch (NotInitializedException e) {
+			for (Pipeline.Step step : steps) {
+				mReadyServices.remove(step.serviceName);
+			}
+			if (retries == MAX_RETRIES) {
+				throw e;
+			}
+		}
+		return invokePipeline(context, statistics, pipeline, retries + 1);
+	}
+
+	/**
+	 * Makes sure a service is installed and initialized, for requests that
+	 * cannot ensure the service as part of the request itself.
+	 */
+	private void ensureService(Context context, String serviceName)
+			throws Exception {
+		if (mReadyServices.contains(serviceName)) {
+			return;
+		}
+		try {
+			initializeService(serviceName);
+		} catch (NotInstalledException e) {
+			installService(context, serviceName);
+			initializeService(serviceName);
+		}
+		mReadyServices.add(serviceName);
+	}
+
+	/**
+	 * Installs a service on the Cuckoo Server. Assumes that the service is
+	 * available in the assets of the package. A service that has been
+	 * installed in the meantime by a concurrent invocation is fine.
+	 *
+	 * @param context
+	 *            needed to read the assets folder
+	 * @param serviceName
+	 *            the name of the service
+	 * @throws Exception
+	 *             if no files were provided or if the installation failed
+	 */
+	void installService(Context context, String serviceName) throws Exception {
+		Log.d(TAG, "installing service '" + serviceName + "'");
+		FrameOutput out = new FrameOutput(64 * 1024);
+		// the service name
+		out.writeUTF(serviceName);
+		// and the files associated to this service
+		writeFiles(context, serviceName, context.getAssets().list(serviceName),
+				out);
+		Frame frame = send(context, Protocol.OPCODE_INSTALL, out, null).next();
+		Log.d(TAG, "  result: " + frame);
+		if (frame.getOpcode() != Protocol.RESULT_OK) {
+			try {
+				throwException(frame);
+			} catch (AlreadyInstalledException e) {
+				// installed by a concurrent invocation
+			}
+		}
+	}
+
+	/**
+	 * Writes the number of files of a service followed by the name, size and
+	 * contents of each file, as the server expects them for an installation.
+	 * The files are read from the assets of the package.
+	 */
+	private void writeFiles(Context context, String serviceName,
+			String[] fileNames, DataOutputStream out) throws IOException {
+		Log.d(TAG, "  has " + fileNames.length + " associated files");
+		out.writeInt(fileNames.length);
+		// then for each file
+		final byte[] buf = new byte[128 * 1024];
+		for (String fileName : fileNames) {
+			// the file might be compressed, so reading it is the only way of
+			// knowing the size of the file.
+			InputStream fileIn = context.getAssets().open(
+					serviceName + File.separator + fileName);
+			ByteArrayOutputStream file = new ByteArrayOutputStream();
+			int read;
+			while ((read = fileIn.read(buf)) > 0) {
+				file.write(buf, 0, read);
+			}
+			fileIn.close();
+			out.writeUTF(fileName);
+			out.writeInt(file.size());
+			file.writeTo(out);
+			Log.d(TAG, "  written file " + fileName + " (" + file.size()
+					+ " bytes)");
+		}
+	}
+
+	/**
+	 * Initializes a service on the Cuckoo Server. This assumes that the
+	 * service already has been installed. A service that has been
+	 * initialized in the meantime by a concurrent invocation is fine.
+	 *
+	 * @param serviceName
+	 *            the name of the service
+	 * @throws Exception
+	 *             if the service is not installed
+	 */
+	void initializeService(String serviceName) throws Exception {
+		Log.d(TAG, "initializing service '" + serviceName + "'");
+		FrameOutput out = new FrameOutput();
+		out.writeUTF(serviceName);
+		Frame frame = send(Protocol.OPCODE_INITIALIZE, out).next();
+		Log.d(TAG, "  result: " + frame);
+		if (frame.getOpcode() != Protocol.RESULT_OK) {
+			try {
+				throwException(frame);
+			} catch (AlreadyInitializedException e) {
+				// initialized by a concurrent invocation
+			}
+		}
+	}
+}
@@ -0,0 +1,366 @@
+package interdroid.cuckoo.client;
+
+import interdroid.cuckoo.base.Protocol;
+import interdroid.cuckoo.client.Cuckoo.Resource;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import android.util.Log;
+
+/**
+ * Keeps connections to Cuckoo Servers open between invocations, so that an
+ * invocation doesn't have to pay for TCP connection setup every time. There is
+ * a single connection per resource, which is shared by all concurrent
+ * invocations to that resource (invocations that arrive while it is being
+ * made wait for it), and a few extra connections for uploading and
+ * downloading large values in parallel streams (see {@link Striping}).
+ * Hostnames are resolved once per network. Idle connections are closed after
+ * {@link #IDLE_TIMEOUT} and all connections are closed when the network
+ * changes. The socket buffers of new connections are sized from the
+ * bandwidth-delay product of the last invocations on the resource. The
+ * round trip times of the connection setups and probes are kept per network
+ * for the Oracle.
+ */
+class ConnectionPool {
+
+	private static final String TAG = "Cuckoo ConnectionPool";
+
+	/**
+	 * Connections that have not been used for this time are closed. This is
+	 * well below the idle timeout of the server.
+	 */
+	static final long IDLE_TIMEOUT = 60 * 1000;
+
+	/**
+	 * The connection per resource
+	 */
+	private static final Map<String, Communicator> sConnections = new HashMap<String, Communicator>();
+
+	/**
+	 * The socket buffer size per resource
+	 */
+	private static final Map<String, Integer> sBufferSizes = new HashMap<String, Integer>();
+
+	/**
+	 * The resolved addresses per hostname for the current network
+	 */
+	private static final Map<String, InetAddress> sAddresses = new HashMap<String, InetAddress>();
+
+	/**
+	 * The round trip times measured by connection setups and probes, per
+	 * network and resource
+	 */
+	private static final Map<String, Estimate> sRTTs = new HashMap<String, Estimate>();
+
+	/**
+	 * The connections that are being made, concurrent invocations wait for
+	 * them instead of making their own
+	 */
+	private static final Set<String> sConnecting = new HashSet<String>();
+
+	/**
+	 * Identifies the network the pooled connections were made on
+	 */
+	private static String sNetwork;
+
+	/**
+	 * The epoch of the network snapshot the network was last checked in
+	 */
+	private static long sEpoch = -1;
+
+	/**
+	 * Returns the connection to the given resource, a new connection is made
+	 * if there is none yet. The invocation should register itself with
+	 * {@link Communicator#use()} and give the connection back with
+	 * {@link #release(Communicator)} or {@link #discard(Communicator)}.
+	 *
+	 * @param resource
+	 *            the resource to connect to
+	 * @return a connection to the resource
+	 * @throws IOException
+	 *             if a new connection could not be made
+	 */
+	static Communicator acquire(Resource resource) throws IOException {
+		return acquire(resource, 0);
+	}
+
+	/**
+	 * Returns one of the connections to the given resource, a new connection
+	 * is made if there is none yet.
+	 * 
+	 * @param resource
+	 *            the resource to connect to
+	 * @param stream
+	 *            the index of the connection, 0 is the connection that is
+	 *            used for invocations, the others are only used for parallel
+	 *            streams
+	 * @return a connection to the resource
+	 * @throws IOException
+	 *             if a new connection could not be made
+	 */
+	static Communicator acquire(Resource resource, int stream)
+			throws IOException {
+		String key = stream == 0 ? key(resource) : key(resource) + "#"
+				+ stream;
+		InetAddress address;
+		synchronized (ConnectionPool.class) {
+			checkNetwork();
+			evictIdle();
+			boolean waited = false;
+			while (true) {
+				Communicator communicator = sConnections.get(key);
+				if (communicator != null && !communicator.isClosed()) {
+					Log.d(TAG, "reusing connection to " + resource);
+					return communicator;
+				}
+				if (!sConnecting.contains(key)) {
+					if (waited) {
+						throw new IOException("Could not connect to "
+								+ resource);
+					}
+					break;
+				}
+				// wait for the connection a concurrent invocation is making
+				try {
+					ConnectionPool.class.wait();
+				} catch (InterruptedException e) {
+					throw new InterruptedIOException(
+							"interrupted while waiting for a connection to "
+									+ resource);
+				}
+				waited = true;
+			}
+			sConnecting.add(key);
+			address = sAddresses.get(resource.getHostname());
+		}
+		try {
+			return connect(resource, key, address);
+		} finally {
+			synchronized (ConnectionPool.class) {
+				sConnecting.remove(key);
+				ConnectionPool.class.notifyAll();
+			}
+		}
+	}
+
+	private static Communicator connect(Resource resource, String key,
+			InetAddress address) throws IOException {
+		if (address == null) {
+			address = InetAddress.getByName(resource.getHostname());
+			synchronized (ConnectionPool.class) {
+				sAddresses.put(resource.getHostname(), address);
+			}
+		}
+		boolean dormant = RadioTracker.isDormant();
+		Communicator communicator = new Communicator(resource, address,
+				getBufferSize(resource));
+		synchronized (ConnectionPool.class) {
+			if (!dormant) {
+				updateRTT(resource, communicator.getRTT());
+			} else if (sRTTs.containsKey(networkKey(resource))) {
+				// the connection had to wait for the radio to be promoted
+				RadioTracker.promoted(communicator.getRTT()
+						- sRTTs.get(networkKey(resource)).average);
+			}
+			Communicator other = sConnections.get(key);
+			if (other != null && !other.isClosed()) {
+				// a concurrent invocation was first
+				communicator.end();
+				return other;
+			}
+			sConnections.put(key, communicator);
+		}
+		return communicator;
+	}
+
+	/**
+	 * Registers that an invocation is done with a connection.
+	 *
+	 * @param communicator
+	 *            the connection
+	 */
+	static synchronized void release(Communicator communicator) {
+		communicator.done();
+		if (communicator.isClosed()) {
+			remove(communicator);
+		}
+	}
+
+	/**
+	 * Closes a connection that should not be reused because it failed. Other
+	 * invocations using the connection fail as well.
+	 *
+	 * @param communicator
+	 *            the connection
+	 */
+	static void discard(Communicator communicator) {
+		synchronized (ConnectionPool.class) {
+			communicator.done();
+			remove(communicator);
+		}
+		communicator.end();
+	}
+
+	/**
+	 * Returns whether there is an open connection to the given resource, in
+	 * which case an invocation does not need to set up a new connection.
+	 *
+	 * @param resource
+	 *            the resource
+	 * @return true if a connection can be reused
+	 */
+	static synchronized boolean isWarm(Resource resource) {
+		Communicator communicator = sConnections.get(key(resource));
+		return communicator != null
+				&& !communicator.isClosed()
+				&& (communicator.getInFlight() > 0 || System
+						.currentTimeMillis() - communicator.getIdleSince() < IDLE_TIMEOUT);
+	}
+
+	/**
+	 * Returns the socket buffer size for new connections to a resource.
+	 */
+	static synchronized int getBufferSize(Resource resource) {
+		Integer size = sBufferSizes.get(key(resource));
+		return size == null ? Integer.getInteger(
+				Protocol.SEND_BUFFER_PROPERTY, Protocol.SEND_BUFFER) : size;
+	}
+
+	/**
+	 * Sizes the socket buffers of new connections to a resource from the
+	 * estimated bandwidth-delay product of the link.
+	 * 
+	 * @param bandwidth
+	 *            the bandwidth in bytes per ms, 0 if there is no estimate
+	 * @param rtt
+	 *            the round trip time in ms
+	 */
+	static synchronized void updateBufferSize(Resource resource,
+			double bandwidth, long rtt) {
+		if (bandwidth > 0) {
+			sBufferSizes.put(key(resource),
+					Protocol.bufferSize(bandwidth, rtt));
+		}
+	}
+
+	/**
+	 * Returns the round trip time to a resource measured by the connection
+	 * setups and probes on the current network, or null if nothing has been
+	 * measured.
+	 */
+	static synchronized Estimate getRTT(Resource resource) {
+		Estimate rtt = sRTTs.get(networkKey(resource));
+		if (rtt == null) {
+			return null;
+		}
+		Estimate copy = new Estimate();
+		copy.average = rtt.average;
+		copy.variance = rtt.variance;
+		return copy;
+	}
+
+	/**
+	 * Adds a measured round trip time to the smoothed estimate of a resource,
+	 * with the gains TCP uses for its retransmission timer.
+	 */
+	static synchronized void updateRTT(Resource resource, long rtt) {
+		String key = networkKey(resource);
+		Estimate estimate = sRTTs.get(key);
+		if (estimate == null) {
+			estimate = new Estimate();
+			estimate.average = rtt;
+			estimate.variance = (rtt / 2f) * (rtt / 2f);
+			sRTTs.put(key, estimate);
+			return;
+		}
+		double deviation = Math.sqrt(estimate.variance);
+		deviation = 0.75 * deviation + 0.25
+				* Math.abs(estimate.average - rtt);
+		estimate.variance = (float) (deviation * deviation);
+		estimate.average = Math.round(0.875 * estimate.average + 0.125 * rtt);
+	}
+
+	/**
+	 * Closes all pooled connections and forgets the resolved addresses.
+	 */
+	static void evictAll() {
+		List<Communicator> evicted;
+		synchronized (ConnectionPool.class) {
+			evicted = new ArrayList<Communicator>(sConnections.values());
+			sConnections.clear();
+			sAddresses.clear();
+		}
+		for (Communicator communicator : evicted) {
+			communicator.end();
+		}
+	}
+
+	/**
+	 * Evicts everything if we're on another network than the one the pooled
+	 * connections were made on.
+	 */
+	private static void checkNetwork() {
+		NetworkSnapshot snapshot = ContextState.getNetwork();
+		if (snapshot.getEpoch() == sEpoch && sNetwork != null) {
+			return;
+		}
+		sEpoch = snapshot.getEpoch();
+		String network = snapshot.getKey();
+		if (!network.equals(sNetwork)) {
+			if (sNetwork != null) {
+				Log.d(TAG, "network changed from " + sNetwork + " to "
+						+ network + ", closing pooled connections");
+			}
+			sNetwork = network;
+			for (Communicator communicator : sConnections.values()) {
+				communicator.end();
+			}
+			sConnections.clear();
+			sAddresses.clear();
+		}
+	}
+
+	/**
+	 * Closes the connections that have been idle for too long.
+	 */
+	private static void evictIdle() {
+		long now = System.currentTimeMillis();
+		Iterator<Communicator> iterator = sConnections.values().iterator();
+		while (iterator.hasNext()) {
+			Communicator communicator = iterator.next();
+			if (communicator.isClosed()
+					|| (communicator.getInFlight() == 0 && now
+							- communicator.getIdleSince() > IDLE_TIMEOUT)) {
+				iterator.remove();
+				communicator.end();
+			}
+		}
+	}
+
+	private static void remove(Communicator communicator) {
+		// removes the entry of the connection, whichever stream it is
+		sConnections.values().remove(communicator);
+	}
+
+	/**
+	 * Returns the key of a resource on the current network.
+	 */
+	static synchronized String networkKey(Resource resource) {
+		checkNetwork();
+		return sNetwork + "@" + key(resource);
+	}
+
+	private static String key(Resource resource) {
+		return resource.getHostname() + ":" + resource.getPort();
+	}
+
+}
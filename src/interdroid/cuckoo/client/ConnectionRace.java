@@ -0,0 +1,200 @@
+package interdroid.cuckoo.client;
+
+import interdroid.cuckoo.client.Cuckoo.Resource;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.util.Log;
+
+/**
+ * Races the connection setup to the best ranked resources of an answer,
+ * instead of connecting to them one after another when the first ones turn
+ * out to be unreachable. The connects are started with a small stagger, the
+ * next one only if none has succeeded yet. Once a resource is connected, the
+ * better ranked resources that are still connecting get a short grace time,
+ * after that the best ranked resource that connected is tried first. The
+ * connections are made through the {@link ConnectionPool}, so they are
+ * reused by the invocation and the other connections that were made stay
+ * warm for a failover until they are idle too long.
+ */
+class ConnectionRace {
+
+	private static final String TAG = "Cuckoo ConnectionRace";
+
+	/**
+	 * System property with the number of resources to race, 1 connects to
+	 * them one after another
+	 */
+	static final String CANDIDATES_PROPERTY = "interdroid.cuckoo.connect.race";
+
+	static final int DEFAULT_CANDIDATES = 3;
+
+	/**
+	 * System property with the time in ms between the starts of the connects
+	 */
+	static final String STAGGER_PROPERTY = "interdroid.cuckoo.connect.stagger";
+
+	static final long DEFAULT_STAGGER = 50;
+
+	/**
+	 * System property with the time in ms better ranked resources get to
+	 * connect after the first resource connected
+	 */
+	static final String GRACE_PROPERTY = "interdroid.cuckoo.connect.grace";
+
+	static final long DEFAULT_GRACE = 100;
+
+	private static final int CANDIDATES = Integer.parseInt(System
+			.getProperty(CANDIDATES_PROPERTY, "" + DEFAULT_CANDIDATES));
+
+	private static final long STAGGER = Long.parseLong(System.getProperty(
+			STAGGER_PROPERTY, "" + DEFAULT_STAGGER));
+
+	private static final long GRACE = Long.parseLong(System.getProperty(
+			GRACE_PROPERTY, "" + DEFAULT_GRACE));
+
+	private final List<Resource> mCandidates;
+
+	/**
+	 * Per candidate: null while connecting, true if connected, false if the
+	 * connect failed
+	 */
+	private final Boolean[] mConnected;
+
+	private ConnectionRace(List<Resource> candidates) {
+		mCandidates = candidates;
+		mConnected = new Boolean[candidates.size()];
+	}
+
+	/**
+	 * Returns the answer with the resource that should be tried first in
+	 * front. Resources that could not be connected to are left out. If the
+	 * best ranked resource already has a pooled connection, or only one
+	 * resource is raced, the answer is returned as is.
+	 */
+	static Answer reorder(Answer answer) {
+		List<Resource> ranked = new ArrayList<Resource>();
+		ranked.addAll(answer.getOffloadResources());
+		ranked.addAll(answer.getUnknownResources());
+		if (CANDIDATES <= 1 || ranked.size() <= 1
+				|| ConnectionPool.isWarm(ranked.get(0))) {
+			return answer;
+		}
+		ConnectionRace race = new ConnectionRace(ranked.subList(0,
+				Math.min(CANDIDATES, ranked.size())));
+		int winner = race.run();
+		Answer result = new Answer();
+		result.setUncertain(answer.isUncertain());
+		result.getCloseResources().addAll(answer.getCloseResources());
+		if (winner >= 0) {
+			result.getOffloadResources().add(ranked.get(winner));
+		}
+		for (int i = 0; i < ranked.size(); i++) {
+			if (i == winner
+					|| (i < race.mConnected.length && Boolean.FALSE
+							.equals(race.mConnected[i]))) {
+				continue;
+			}
+			if (answer.getOffloadResources().contains(ranked.get(i))) {
+				result.getOffloadResources().add(ranked.get(i));
+			} else {
+				result.getUnknownResources().add(ranked.get(i));
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @return the index of the best ranked candidate that connected, -1 if
+	 *         none did
+	 */
+	private synchronized int run() {
+		long start = System.currentTimeMillis();
+		long deadline = 0;
+		int started = 0;
+		try {
+			while (true) {
+				long now = System.currentTimeMillis();
+				int best = best();
+				if (best >= 0) {
+					if (deadline == 0) {
+						deadline = now + GRACE;
+					}
+					if (connecting(best) == 0 || now >= deadline) {
+						Log.d(TAG, "proceeding with " + mCandidates.get(best)
+								+ " after " + (now - start) + " ms");
+						return best;
+					}
+					wait(deadline - now);
+				} else if (started < mCandidates.size()
+						&& (connecting(started) == 0 || now >= start
+								+ started * STAGGER)) {
+					// the next one is due, or all the others failed
+					connect(started++);
+				} else if (started == mCandidates.size()
+						&& connecting(started) == 0) {
+					Log.d(TAG, "connecting failed for all candidates");
+					return -1;
+				} else if (started < mCandidates.size()) {
+					wait(Math.max(1, start + started * STAGGER - now));
+				} else {
+					wait();
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return best();
+		}
+	}
+
+	/**
+	 * Returns the index of the best ranked candidate that connected.
+	 */
+	private int best() {
+		for (int i = 0; i < mConnected.length; i++) {
+			if (Boolean.TRUE.equals(mConnected[i])) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns the number of candidates ranked better than the given index
+	 * that are still connecting.
+	 */
+	private int connecting(int index) {
+		int count = 0;
+		for (int i = 0; i < index; i++) {
+			if (mConnected[i] == null) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	private void connect(final int index) {
+		final Resource resource = mCandidates.get(index);
+		Thread connect = new Thread("Cuckoo connect " + resource) {
+			public void run() {
+				boolean connected;
+				try {
+					ConnectionPool.acquire(resource);
+					connected = true;
+				} catch (Exception e) {
+					Log.d(TAG, "connecting to " + resource + " failed: " + e);
+					ResourceHealth.failure(resource);
+					connected = false;
+				}
+				synchronized (ConnectionRace.this) {
+					mConnected[index] = connected;
+					ConnectionRace.this.notifyAll();
+				}
+			}
+		};
+		connect.setDaemon(true);
+		connect.start();
+	}
+
+}
@@ -18,7 +18,6 @@ import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
 import android.net.wifi.WifiInfo;
 import android.net.wifi.WifiManager;
-import android.os.Bundle;
 import android.util.Log;
 
 /**
@@ -45,77 +44,96 @@ public class ContextState {
 
 	private static Map<String, Double> items = new HashMap<String, Double>();
 	private static Map<String, List<Double>> arrays = new HashMap<String, List<Double>>();
-	private static NetworkInfo networkInfo;
-	private static WifiInfo wifiInfo;
+	/**
+	 * The current state of the network, replaced by the network receiver.
+	 * Epoch 0 means the network hasn't been observed yet.
+	 */
+	private static volatile NetworkSnapshot network = new NetworkSnapshot(0,
+			null, null);
 
-	private static boolean networkStable = true;
-	private static boolean networkReceiverRegistered = false;
+	private static volatile boolean networkReceiverRegistered = false;
 	private static Location location;
 	private static long lastLocationQuery = 0;
 
 	/**
-	 * Receiver for network information. If the network changed during an
-	 * offload, we cannot trust the statistics anymore and should not store
-	 * them.
+	 * Receiver for network changes, registered once for the lifetime of the
+	 * app. It takes a new snapshot of the network, if the network changed
+	 * (see {@link NetworkSnapshot#getKey()}) the epoch is increased, so that
+	 * statistics that were measured across the change are not stored.
 	 */
-	public static BroadcastReceiver networkReceiver = new BroadcastReceiver() {
+	private static BroadcastReceiver networkReceiver = new BroadcastReceiver() {
 
 		@Override
 		public void onReceive(Context context, Intent intent) {
-			Bundle extras = intent.getExtras();
-			if (extras == null) {
-				Log.d(TAG, "no extras!");
-			} else {
-				if (extras.getBoolean(ConnectivityManager.EXTRA_IS_FAILOVER)
-						|| extras
-								.getBoolean(ConnectivityManager.EXTRA_NO_CONNECTIVITY)) {
-					networkStable = false;
-				}
-			}
+			refreshNetwork(context);
 		}
 	};
 
 	/**
-	 * starts monitoring the network for changes that will be received by the
-	 * {@link #networkReceiver}.
+	 * Starts observing the network, the first time this is called the
+	 * current state of the network is queried. Cheap after that.
 	 * 
 	 * @param context
 	 */
-	public static void startMonitoringNetwork(final Context context) {
-		// do this asynchronous to be faster
-		new Thread() {
-			public void run() {
-				// stop any previous monitoring, just to be sure...
-				stopMonitoringNetwork(context);
-
-				// register a receiver to see whether the network was stable
-				// between
-				// shouldOffload and storeStatistics
-				IntentFilter intentFilter = new IntentFilter();
-				intentFilter.addAction("android.net.conn.CONNECTIVITY_CHANGE");
-				intentFilter
-						.addAction("android.net.wifi.supplicant.CONNECTION_CHANGE");
-				networkStable = true;
-				context.registerReceiver(networkReceiver, intentFilter);
-				networkReceiverRegistered = true;
-
+	public static void observeNetwork(Context context) {
+		if (networkReceiverRegistered) {
+			return;
+		}
+		synchronized (ContextState.class) {
+			if (networkReceiverRegistered) {
+				return;
 			}
-		}.start();
+			Context applicationContext = context.getApplicationContext() == null ? context
+					: context.getApplicationContext();
+			refreshNetwork(applicationContext);
+			IntentFilter intentFilter = new IntentFilter();
+			intentFilter.addAction(ConnectivityManager.CONNECTIVITY_ACTION);
+			intentFilter
+					.addAction(WifiManager.SUPPLICANT_CONNECTION_CHANGE_ACTION);
+			intentFilter.addAction(WifiManager.NETWORK_STATE_CHANGED_ACTION);
+			applicationContext.registerReceiver(networkReceiver, intentFilter);
+			networkReceiverRegistered = true;
+			RadioTracker.start(applicationContext);
+		}
 	}
 
 	/**
-	 * stops monitoring the network.
-	 * 
-	 * @param context
-	 * @return
+	 * Queries the state of the network and replaces the snapshot if it
+	 * changed.
 	 */
-	public static boolean stopMonitoringNetwork(Context context) {
-		if (networkReceiverRegistered) {
-			context.unregisterReceiver(networkReceiver);
-			networkReceiverRegistered = false;
+	private static synchronized void refreshNetwork(Context context) {
+		ConnectivityManager connectivityManager = (ConnectivityManager) context
+				.getSystemService(Context.CONNECTIVITY_SERVICE);
+		NetworkInfo networkInfo = connectivityManager.getActiveNetworkInfo();
+		WifiInfo wifiInfo = null;
+		if (networkInfo != null
+				&& networkInfo.getType() == ConnectivityManager.TYPE_WIFI) {
+			wifiInfo = ((WifiManager) context
+					.getSystemService(Context.WIFI_SERVICE))
+					.getConnectionInfo();
+		}
+		NetworkSnapshot current = network;
+		NetworkSnapshot next = new NetworkSnapshot(current.getEpoch(),
+				networkInfo, wifiInfo);
+		if (next.sameState(current)) {
+			// keep the newest info objects and link speed, the epoch stays
+			network = next;
+			return;
+		}
+		network = next.withEpoch(current.getEpoch() + 1);
+		Log.d(TAG, "network changed to " + network);
+		if (current.getEpoch() > 0) {
+			// pooled connections belong to the previous network
+			ConnectionPool.evictAll();
 		}
-		Log.d(TAG, "stopping monitoring: " + networkStable);
-		return networkStable;
+	}
+
+	/**
+	 * Returns the current snapshot of the network, without any locking or
+	 * system calls.
+	 */
+	public static NetworkSnapshot getNetwork() {
+		return network;
 	}
 
 	/**
@@ -189,29 +207,20 @@ public class ContextState {
 	}
 
 	public static NetworkInfo getNetworkInfo() {
-		return networkInfo;
+		return network.getNetworkInfo();
 	}
 
 	public static WifiInfo getWifiInfo() {
-		return wifiInfo;
+		return network.getWifiInfo();
 	}
 
 	// public for debug purposes
 	public static void ensureNetwork(Context context)
 			throws NoConnectionException {
-		long networkStart = System.currentTimeMillis();
-		// Gather 'context' information
-		ConnectivityManager connectivityManager = (ConnectivityManager) context
-				.getSystemService(Context.CONNECTIVITY_SERVICE);
-		networkInfo = connectivityManager.getActiveNetworkInfo();
-		if (networkInfo == null || !networkInfo.isConnected()) {
+		observeNetwork(context);
+		if (!network.isConnected()) {
 			throw new NoConnectionException("no network");
 		}
-		WifiManager wifi = (WifiManager) context
-				.getSystemService(Context.WIFI_SERVICE);
-		wifiInfo = wifi.getConnectionInfo();
-		Log.d(TAG, "--> network setup: "
-				+ (System.currentTimeMillis() - networkStart));
 	}
 
 	public static Location getLastKnownLocation(Context context) {
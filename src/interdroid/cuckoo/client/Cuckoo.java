@@ -1,27 +1,33 @@
 package interdroid.cuckoo.client;
 
 import interdroid.cuckoo.base.NoResourceAvailableException;
-import interdroid.cuckoo.base.NotInitializedException;
-import interdroid.cuckoo.base.NotInstalledException;
 import interdroid.cuckoo.base.Protocol;
+import interdroid.cuckoo.base.RemoteHandle;
+import interdroid.cuckoo.base.ResultSink;
 import interdroid.swan.cuckoo_sensors.CuckooPoller;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
-import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
-import java.net.InetAddress;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicReference;
 
 import android.content.Context;
 import android.location.Location;
-import android.net.ConnectivityManager;
 import android.net.TrafficStats;
 import android.util.Log;
 
@@ -46,510 +52,10 @@ public class Cuckoo {
 	private static String strategy;
 
 	/**
-	 * The Communicator object communicates with a single Cuckoo Server.
-	 * 
-	 * @author rkemp
-	 * 
+	 * The parameters that are sent as a delta, as service.method#index
 	 */
-	private static class Communicator {
-
-		/**
-		 * The resource information for this Communicator.
-		 */
-		private Resource mResource;
-
-		/**
-		 * The context of the application using the Communicator, this is needed
-		 * to read the assets folder where the remote code is located.
-		 */
-		private Context mContext;
-
-		private Socket mSocket;
-
-		private ObjectInputStream mIn;
-
-		private ObjectOutputStream mOut;
-
-		private int mUid;
-
-		private long mRTT;
-
-		private boolean trafficStatsSet = false;
-
-		/**
-		 * Constructs a Communicator object. This object will be used to
-		 * communicate with the given Resource.
-		 * 
-		 * @param context
-		 *            needed to read the assets folder
-		 * @param resource
-		 *            the resource to communicate with
-		 */
-		private Communicator(Context context, Resource resource)
-				throws IOException {
-			mResource = resource;
-			mContext = context;
-			mUid = android.os.Process.myUid();
-			long start = System.currentTimeMillis();
-			mSocket = new Socket(resource.getHostname(), resource.getPort());
-			mRTT = System.currentTimeMillis() - start;
-			mSocket.setKeepAlive(true);
-			mSocket.setTcpNoDelay(true);
-			mSocket.setSoTimeout(1000000);
-			mSocket.setSendBufferSize(Protocol.SEND_BUFFER);
-			mSocket.setReceiveBufferSize(Protocol.RECEIVE_BUFFER);
-			mOut = new ObjectOutputStream(new BufferedOutputStream(
-					mSocket.getOutputStream()));
-		}
-
-		private void createIn() throws IOException {
-			if (mIn == null) {
-				mIn = new ObjectInputStream(new BufferedInputStream(
-						mSocket.getInputStream()));
-			}
-		}
-
-		private void end() {
-			mContext = null;
-			try {
-				if (mOut == null) {
-					mSocket.getOutputStream().close();
-				} else {
-					mOut.close();
-				}
-				if (mIn == null) {
-					mSocket.getInputStream().close();
-				} else {
-					mIn.close();
-				}
-				mSocket.close();
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
-
-		}
-
-		/**
-		 * Invokes a method on a service running at the Cuckoo Server.
-		 * 
-		 * @param serviceName
-		 *            the name of the service
-		 * @param methodName
-		 *            the name of the method
-		 * @param parameterTypes
-		 *            the types of the parameters
-		 * @param parameters
-		 *            the values of the parameters
-		 * @return the return value of the method
-		 * @throws Exception
-		 *             if the method was not installed, not initialized
-		 */
-		private Object invokeMethod(final Context context,
-				final List<Resource> others, final Statistics statistics,
-				String serviceName, final String methodName,
-				Class<?>[] parameterTypes, boolean[] outParameters,
-				Object... parameters) throws Exception {
-			long start = System.currentTimeMillis();
-			Log.d(TAG, "invoking method '" + methodName + "' on service '"
-					+ serviceName + "'");
-			// long uploadBytes = TrafficStats.getUidTxBytes(mUid);
-			long downloadBytes = TrafficStats.getUidRxBytes(mUid);
-			mOut.write(Protocol.OPCODE_INVOKE);
-			mOut.flush();
-			mOut.writeUTF(serviceName);
-			mOut.writeUTF(methodName);
-			mOut.writeObject(parameterTypes);
-			mOut.writeObject(outParameters);
-			mOut.writeObject(parameters);
-			mOut.writeBoolean(others.size() > 0);
-
-			if (others.size() > 0) {
-				String othersString = "";
-				for (Resource other : others) {
-					othersString += other.getHostname() + ":" + other.getPort()
-							+ ",";
-				}
-				mOut.writeUTF(othersString.substring(0,
-						othersString.length() - 1));
-			}
-			mOut.flush();
-			statistics.uploadTime = System.currentTimeMillis() - start;
-			start = System.currentTimeMillis();
-			Log.d(TAG, "  written request (took: " + statistics.uploadTime
-					+ " ms.)");
-			startKeepWifiAwake(mResource.hostname);
-
-			createIn();
-			int resultCode = mIn.read();
-
-			stopKeepWifiAwake();
-			Log.d(TAG, "  result: " + Protocol.toString(resultCode));
-			final long waitTime = System.currentTimeMillis() - start;
-			start = System.currentTimeMillis();
-			if (resultCode == Protocol.RESULT_OK) {
-				// OK
-				Object object = mIn.readObject();
-				for (int i = 0; i < outParameters.length; i++) {
-					if (outParameters[i]) {
-						parameters[i] = mIn.readObject();
-					}
-				}
-				statistics.executionTime = mIn.readLong();
-				// The ObjectOutputStream and ObjectInputStream cache objects,
-				// so only measure the upload the first time. We can come here a
-				// second time, if the service was not installed or initialized
-				// at the server.
-				if (!trafficStatsSet) {
-					statistics.uploadTime = Math.max(mIn.readLong(),
-							statistics.uploadTime);
-					final long done = System.currentTimeMillis();
-					statistics.downloadTime = done - start;
-					downloadBytes = TrafficStats.getUidRxBytes(mUid)
-							- downloadBytes;
-					// uploadBytes = TrafficStats.getUidTxBytes(mUid)
-					// - uploadBytes;
-					statistics.returnSize = downloadBytes;
-					// statistics.inputSize = uploadBytes;
-					trafficStatsSet = true;
-				}
-				statistics.rtt = mRTT;
-
-				statistics.resource = mResource;
-				// now read the other values from the message, they may not
-				// have
-				// been arrived, because execution on other resources takes
-				// longer, therefore execute this in a separate thread
-				new Thread() {
-					public void run() {
-						try {
-							for (Resource other : others) {
-								Statistics otherStatistics = new Statistics();
-								otherStatistics.resource = other;
-								otherStatistics.executionTime = mIn.readLong();
-								otherStatistics.weight = statistics.weight;
-								otherStatistics.inputSize = statistics.inputSize;
-								otherStatistics.returnSize = statistics.returnSize;
-								otherStatistics.downloadTime = -1;
-								otherStatistics.uploadTime = -1;
-								otherStatistics.rtt = -1;
-								Oracle.storeStatistics(context, methodName,
-										otherStatistics);
-							}
-						} catch (Exception e) {
-							e.printStackTrace();
-						}
-						end();
-					}
-				}.start();
-				Log.d(TAG, "wait time: " + waitTime);
-				return object;
-
-			} else if (resultCode == Protocol.RESULT_EXCEPTION) {
-				Exception e = (Exception) mIn.readObject();
-				// if the service was not installed, we will install it,
-				// initialize
-				// it and invoke it again.
-
-				if (e instanceof NotInstalledException) {
-					installService(serviceName);
-					initializeService(serviceName);
-					return invokeMethod(context, others, statistics,
-							serviceName, methodName, parameterTypes,
-							outParameters, parameters);
-				} else if (e instanceof NotInitializedException) {
-					// if it's installed, but not initialized, we will
-					// initialize it and invoke it again.
-					initializeService(serviceName);
-					return invokeMethod(context, others, statistics,
-							serviceName, methodName, parameterTypes,
-							outParameters, parameters);
-				} else {
-					// if we got another exception we will just throw it.
-					throw e;
-				}
-			} else {
-				throw new Exception("Invalid result after invoke(): "
-						+ resultCode);
-			}
-
-		}
-
-		private void register(String registrationId, String apiKey,
-				CuckooPoller sensor, String id, String valuePath,
-				Map<String, Object> configuration) throws Exception {
-			Log.d(TAG, "register sensor '" + sensor.getClass().getName() + "'");
-			mOut.write(Protocol.OPCODE_REGISTER_SENSOR);
-			mOut.flush();
-			mOut.writeUTF(sensor.getClass().getName());
-			mOut.writeUTF(registrationId);
-			mOut.writeUTF(apiKey);
-			mOut.writeUTF(id);
-			mOut.writeUTF(valuePath);
-			mOut.writeObject(configuration);
-			mOut.flush();
-			createIn();
-			int resultCode = mIn.read();
-			if (resultCode == Protocol.RESULT_OK) {
-				return;
-			} else if (resultCode == Protocol.RESULT_EXCEPTION) {
-				Exception e = (Exception) mIn.readObject();
-				// if the sensor was not installed, we will install it,
-				// initialize
-				// it and invoke it again.
-
-				if (e instanceof NotInstalledException) {
-					installSensor(sensor);
-					initializeSensor(sensor);
-					register(registrationId, apiKey, sensor, id, valuePath,
-							configuration);
-				} else if (e instanceof NotInitializedException) {
-					// if it's installed, but not initialized, we will
-					// initialize it and invoke it again.
-					initializeSensor(sensor);
-					register(registrationId, apiKey, sensor, id, valuePath,
-							configuration);
-				} else {
-					// if we got another exception we will just throw it.
-					throw e;
-				}
-			} else {
-				throw new Exception("Invalid result after register(): "
-						+ resultCode);
-			}
-		}
-
-		private void unregister(String id) throws Exception {
-			Log.d(TAG, "unregister id '" + id + "'");
-			mOut.write(Protocol.OPCODE_UNREGISTER_SENSOR);
-			mOut.flush();
-			mOut.writeUTF(id);
-			mOut.flush();
-			createIn();
-			int resultCode = mIn.read();
-			if (resultCode == Protocol.RESULT_OK) {
-				return;
-			} else if (resultCode == Protocol.RESULT_EXCEPTION) {
-				Exception e = (Exception) mIn.readObject();
-				throw e;
-			} else {
-				throw new Exception("Invalid result after register(): "
-						+ resultCode);
-			}
-		}
-
-		private void initializeSensor(CuckooPoller sensor) throws Exception {
-			Log.d(TAG, "initializing sensor '" + sensor.getClass().getName()
-					+ "'");
-			mOut.write(Protocol.OPCODE_INITIALIZE_SENSOR);
-			mOut.flush();
-			mOut.writeUTF(sensor.getClass().getName());
-			mOut.flush();
-			createIn();
-			int resultCode = mIn.read();
-			Log.d(TAG, "  result: " + Protocol.toString(resultCode));
-			if (resultCode == Protocol.RESULT_OK) {
-				return;
-			} else if (resultCode == Protocol.RESULT_EXCEPTION) {
-				Exception e = (Exception) mIn.readObject();
-				throw e;
-			} else {
-				throw new Exception("Invalid result after initializeSensor(): "
-						+ resultCode);
-			}
-		}
-
-		private void installSensor(CuckooPoller sensor) throws Exception {
-			try {
-				Log.d(TAG, "installing sensor '" + sensor.getClass().getName()
-						+ "'");
-				mOut.write(Protocol.OPCODE_INSTALL_SENSOR);
-				mOut.flush();
-				// send the class name
-				mOut.writeUTF(sensor.getClass().getName());
-				// send the class file, load it on the other side
-				BufferedInputStream fileIn = new BufferedInputStream(mContext
-						.getAssets().open(
-								sensor.getClass().getSimpleName() + ".class"));
-				int length = 0;
-				int read = 0;
-				final byte[] buf = new byte[128 * 1024];
-				while ((read = fileIn.read(buf)) > 0) {
-					length += read;
-				}
-				// and write the file size, so that on the other side we know
-				// when to stop reading
-				mOut.writeInt(length);
-				fileIn.close();
-				// reopen the file for copying to other side
-				fileIn = new BufferedInputStream(mContext.getAssets().open(
-						sensor.getClass().getSimpleName() + ".class"));
-				while ((read = fileIn.read(buf)) > 0) {
-					mOut.write(buf, 0, read);
-				}
-				fileIn.close();
-
-				// jars
-				int nrFiles = mContext.getAssets().list(
-						sensor.getClass().getSimpleName()).length;
-				Log.d(TAG, "  has " + nrFiles + " associated files");
-				mOut.writeInt(nrFiles);
-				// then for each file
-				for (String fileName : mContext.getAssets().list(
-						sensor.getClass().getSimpleName())) {
-					// write the name
-					mOut.writeUTF(fileName);
-					// first read the file to find out the length of the file.
-					// The
-					// file might be compressed, so reading it is the only way
-					// knowing the size of the file.
-					final long start = System.currentTimeMillis();
-					fileIn = new BufferedInputStream(mContext.getAssets().open(
-							sensor.getClass().getSimpleName() + File.separator
-									+ fileName));
-					while ((read = fileIn.read(buf)) > 0) {
-						length += read;
-					}
-					Log.d(TAG,
-							"  reading file " + fileName + " for length took: "
-									+ (System.currentTimeMillis() - start));
-					// and write the file size, so that on the other side we
-					// know
-					// when to stop reading
-					mOut.writeInt(length);
-					fileIn.close();
-					// reopen the file for copying to other side
-					fileIn = new BufferedInputStream(mContext.getAssets().open(
-							sensor.getClass().getSimpleName() + File.separator
-									+ fileName));
-					while ((read = fileIn.read(buf)) > 0) {
-						mOut.write(buf, 0, read);
-					}
-					fileIn.close();
-					Log.d(TAG, "  written file " + fileName + " (" + length
-							+ " bytes)");
-					mOut.flush();
-				}
-
-				mOut.flush();
-				createIn();
-				int resultCode = mIn.read();
-				Log.d(TAG, "  result: " + Protocol.toString(resultCode));
-				if (resultCode == Protocol.RESULT_OK) {
-					return;
-				} else if (resultCode == Protocol.RESULT_EXCEPTION) {
-					Exception e = (Exception) mIn.readObject();
-					throw e;
-				} else {
-					throw new Exception(
-							"Invalid result after installSensor(): "
-									+ resultCode);
-				}
-			} catch (FileNotFoundException e) {
-				throw new RuntimeException(
-						"File not found. Did you copy the Poller class to the assets directory?",
-						e);
-			}
-		}
-
-		/**
-		 * Installs a service on the Cuckoo Server. Assumes that the service is
-		 * available in the assets of the package.
-		 * 
-		 * @param serviceName
-		 *            the name of the service
-		 * @throws Exception
-		 *             if no files were provided, if the service was already
-		 *             installed, or if the installation failed otherwise
-		 */
-		private void installService(String serviceName) throws Exception {
-			Log.d(TAG, "installing service '" + serviceName + "'");
-			// write the install opcode
-			mOut.write(Protocol.OPCODE_INSTALL);
-			mOut.flush();
-			// then the service name
-			mOut.writeUTF(serviceName);
-			// and the number of files associated to this service
-			int nrFiles = mContext.getAssets().list(serviceName).length;
-			Log.d(TAG, "  has " + nrFiles + " associated files");
-			mOut.writeInt(nrFiles);
-			// then for each file
-			for (String fileName : mContext.getAssets().list(serviceName)) {
-				// write the name
-				mOut.writeUTF(fileName);
-				// first read the file to find out the length of the file. The
-				// file might be compressed, so reading it is the only way
-				// knowing the size of the file.
-				final long start = System.currentTimeMillis();
-				BufferedInputStream fileIn = new BufferedInputStream(mContext
-						.getAssets().open(
-								serviceName + File.separator + fileName));
-				int length = 0;
-				int read = 0;
-				final byte[] buf = new byte[128 * 1024];
-				while ((read = fileIn.read(buf)) > 0) {
-					length += read;
-				}
-				Log.d(TAG, "  reading file " + fileName + " for length took: "
-						+ (System.currentTimeMillis() - start));
-				// and write the file size, so that on the other side we know
-				// when to stop reading
-				mOut.writeInt(length);
-				fileIn.close();
-				// reopen the file for copying to other side
-				fileIn = new BufferedInputStream(mContext.getAssets().open(
-						serviceName + File.separator + fileName));
-				while ((read = fileIn.read(buf)) > 0) {
-					mOut.write(buf, 0, read);
-				}
-				fileIn.close();
-				Log.d(TAG, "  written file " + fileName + " (" + length
-						+ " bytes)");
-				mOut.flush();
-			}
-			createIn();
-			int resultCode = mIn.read();
-			Log.d(TAG, "  result: " + Protocol.toString(resultCode));
-			if (resultCode == Protocol.RESULT_OK) {
-				return;
-			} else if (resultCode == Protocol.RESULT_EXCEPTION) {
-				Exception e = (Exception) mIn.readObject();
-				throw e;
-			} else {
-				throw new Exception("Invalid result after install(): "
-						+ resultCode);
-			}
-		}
-
-		/**
-		 * Initializes a service on the Cuckoo Server. This assumes that the
-		 * service already has been installed.
-		 * 
-		 * @param serviceName
-		 *            the name of the service
-		 * @throws Exception
-		 *             if the service is not installed or if the service is
-		 *             already initialized.
-		 */
-		private void initializeService(String serviceName) throws Exception {
-			Log.d(TAG, "initializing service '" + serviceName + "'");
-			mOut.write(Protocol.OPCODE_INITIALIZE);
-			mOut.flush();
-			mOut.writeUTF(serviceName);
-			mOut.flush();
-			createIn();
-			int resultCode = mIn.read();
-			Log.d(TAG, "  result: " + Protocol.toString(resultCode));
-			if (resultCode == Protocol.RESULT_OK) {
-				return;
-			} else if (resultCode == Protocol.RESULT_EXCEPTION) {
-				Exception e = (Exception) mIn.readObject();
-				throw e;
-			} else {
-				throw new Exception("Invalid result after initialize(): "
-						+ resultCode);
-			}
-		}
-	}
+	private static final Set<String> sDeltaParameters = Collections
+			.synchronizedSet(new HashSet<String>());
 
 	/**
 	 * Helper class to store server information (identifier and address) as
@@ -629,9 +135,12 @@ public class Cuckoo {
 			this.sortValue = sortValue;
 		}
 
+		/**
+		 * Orders resources by decreasing sort value.
+		 */
 		@Override
 		public int compareTo(Resource other) {
-			return (int) (sortValue - other.sortValue);
+			return Double.compare(other.sortValue, sortValue);
 		}
 
 	}
@@ -654,7 +163,8 @@ public class Cuckoo {
 			String id, String valuePath, Map<String, Object> configuration)
 			throws NoResourceAvailableException {
 		try {
-			Communicator communicator = new Communicator(context, resource);
+			SensorCommunicator communicator = new SensorCommunicator(context,
+					resource);
 			communicator.register(registrationId, apiKey, sensor, id,
 					valuePath, configuration);
 			communicator.end();
@@ -677,7 +187,8 @@ public class Cuckoo {
 	public static void unregister(Context context, Resource resource, String id)
 			throws NoResourceAvailableException {
 		try {
-			Communicator communicator = new Communicator(context, resource);
+			SensorCommunicator communicator = new SensorCommunicator(context,
+					resource);
 			communicator.unregister(id);
 			communicator.end();
 		} catch (Exception e) {
@@ -695,9 +206,9 @@ public class Cuckoo {
 	public static long[] debugServer(Resource resource, Statistics statistics,
 			int inputSize, int outputSize, long sleepTime) {
 		long[] result = new long[2];
-		Oracle.executionTime = new Estimate();
-		Oracle.executionTime.average = sleepTime;
-		Oracle.executionTime.variance = (float) Math.pow(sleepTime * 0.1, 2);
+		Estimate executionTime = new Estimate();
+		executionTime.average = sleepTime;
+		executionTime.variance = (float) Math.pow(sleepTime * 0.1, 2);
 
 		final long start = System.currentTimeMillis();
 		System.out.println("start debug: " + start);
@@ -711,7 +222,7 @@ public class Cuckoo {
 			socket.setTcpNoDelay(true);
 			socket.setSoTimeout(1000000);
 			String sendBuffer = System.getProperty(
-					"interdroid.cuckoo.sendbuffer", "" + Protocol.SEND_BUFFER);
+					Protocol.SEND_BUFFER_PROPERTY, "" + Protocol.SEND_BUFFER);
 			socket.setSendBufferSize(Integer.parseInt(sendBuffer));
 			socket.setReceiveBufferSize(Protocol.RECEIVE_BUFFER);
 			statistics.localOverheadTime = System.currentTimeMillis() - start;
@@ -735,11 +246,12 @@ public class Cuckoo {
 			statistics.clientUploadTime = System.currentTimeMillis() - start
 					- statistics.localOverheadTime;
 			// read can return -1 in case of EOF
-			startKeepWifiAwake(resource.hostname);
+			WifiWakeManager.Wake wake = WifiWakeManager.start(
+					resource.hostname, executionTime);
 			ObjectInputStream in = new ObjectInputStream(
 					new BufferedInputStream(socket.getInputStream()));
 			int resultCode = in.read();
-			stopKeepWifiAwake();
+			WifiWakeManager.stop(wake);
 			System.out.println("started downloading: "
 					+ System.currentTimeMillis());
 			if (resultCode == Protocol.RESULT_OK) {
@@ -772,10 +284,70 @@ public class Cuckoo {
 		return result;
 	}
 
+	/**
+	 * The resources that hold the values of the handles
+	 */
+	private static final Map<RemoteHandle, Resource> sHandleResources = Collections
+			.synchronizedMap(new WeakHashMap<RemoteHandle, Resource>());
+
+	/**
+	 * Enables delta encoding for a parameter of a method. The value of the
+	 * parameter is then sent as the difference with its value in the previous
+	 * invocation on the same resource, which pays off for values that change
+	 * only slightly between invocations, such as successive camera frames.
+	 * 
+	 * @param serviceName
+	 *            the name of the service
+	 * @param methodName
+	 *            the name of the method
+	 * @param index
+	 *            the index of the parameter
+	 */
+	public static void enableDelta(String serviceName, String methodName,
+			int index) {
+		sDeltaParameters.add(serviceName + "." + methodName + "#" + index);
+	}
+
+	/**
+	 * Disables delta encoding for a parameter of a method.
+	 */
+	public static void disableDelta(String serviceName, String methodName,
+			int index) {
+		sDeltaParameters.remove(serviceName + "." + methodName + "#" + index);
+	}
+
+	static boolean isDelta(String serviceName, String methodName, int index) {
+		return sDeltaParameters.contains(serviceName + "." + methodName + "#"
+				+ index);
+	}
+
+	/**
+	 * An operation on a single resource using its pooled connection.
+	 */
+	private interface RemoteOperation {
+
+		/**
+		 * @param communicator
+		 *            the connection to the resource
+		 * @param others
+		 *            the other resources that are not known yet
+		 * @return the result of the operation
+		 */
+		Object invoke(Communicator communicator, List<Resource> others)
+				throws Exception;
+
+	}
+
 	/**
 	 * Invoke a synchronous remote method. This method will block until the
 	 * result is received.
 	 * 
+	 * Parameters that are {@link java.io.InputStream}s are streamed to the
+	 * server while the method is already running. Parameters that are
+	 * {@link interdroid.cuckoo.base.ResultSink}s are the callbacks for partial
+	 * results: the service emits them while it is running and they are given
+	 * to the sink on the calling thread as soon as they arrive.
+	 * 
 	 * @param context
 	 *            the context
 	 * @param serviceName
@@ -790,21 +362,711 @@ public class Cuckoo {
 	 * @throws NoResourceAvailableException
 	 * @throws Exception
 	 */
-	@SuppressWarnings("unchecked")
-	public static Object invokeMethod(Context context, Statistics statistics,
-			String serviceName, String methodName, Class<?>[] parameterTypes,
-			boolean[] outParameters, Object[] parameters, String strategy,
+	public static Object invokeMethod(final Context context,
+			final Statistics statistics, final String serviceName,
+			final String methodName, final Class<?>[] parameterTypes,
+			final boolean[] outParameters, final Object[] parameters,
+			String strategy, float weight, long inputSize, long outputSize,
+			boolean screenOn) throws NoResourceAvailableException {
+		return invokeMethod(context, statistics, false, serviceName,
+				methodName, parameterTypes, outParameters, parameters,
+				strategy, weight, inputSize, outputSize, screenOn);
+	}
+
+	/**
+	 * Invoke a synchronous remote method of which the result is kept at the
+	 * resource. Instead of the result a {@link RemoteHandle} is returned,
+	 * which can be passed as a parameter to later invocations, so that a
+	 * large intermediate result is not downloaded and uploaded again. An
+	 * invocation with a handle as a parameter always runs on the resource
+	 * that holds the value. The value itself can be retrieved with
+	 * {@link #fetch(Context, Statistics, RemoteHandle)} and should be
+	 * released with {@link #release(RemoteHandle)} when it is no longer
+	 * needed, the resource also releases it when it hasn't been used for
+	 * {@link RemoteHandle#getTimeToLive()} ms.
+	 * 
+	 * @return the handle of the result
+	 * @throws NoResourceAvailableException
+	 * @see #invokeMethod(Context, Statistics, String, String, Class[],
+	 *      boolean[], Object[], String, float, long, long, boolean)
+	 */
+	public static RemoteHandle invokeMethodForHandle(final Context context,
+			final Statistics statistics, final String serviceName,
+			final String methodName, final Class<?>[] parameterTypes,
+			final boolean[] outParameters, final Object[] parameters,
+			String strategy, float weight, long inputSize, long outputSize,
+			boolean screenOn) throws NoResourceAvailableException {
+		return (RemoteHandle) invokeMethod(context, statistics, true,
+				serviceName, methodName, parameterTypes, outParameters,
+				parameters, strategy, weight, inputSize, outputSize, screenOn);
+	}
+
+	private static Object invokeMethod(final Context context,
+			final Statistics statistics, final boolean keepResult,
+			final String serviceName, final String methodName,
+			final Class<?>[] parameterTypes, final boolean[] outParameters,
+			final Object[] parameters, String strategy, float weight,
+			long inputSize, long outputSize, boolean screenOn)
+			throws NoResourceAvailableException {
+		Answer answer = decide(context, serviceName, methodName, parameters,
+				strategy, weight, inputSize, outputSize, screenOn);
+		Cuckoo.strategy = strategy;
+		statistics.inputSize = inputSize;
+		if (strategy.equals(Oracle.STRATEGY_PARALLEL)
+				&& !hasSideEffects(outParameters, parameters)
+				&& !isBoundToResource(serviceName, methodName, parameters)) {
+			return invokeHedged(context, statistics, answer, keepResult,
+					serviceName, methodName, parameterTypes, outParameters,
+					parameters, weight, inputSize, outputSize);
+		}
+		return invoke(statistics, answer, invocation(context, statistics,
+				keepResult, serviceName, methodName, parameterTypes,
+				outParameters, parameters));
+	}
+
+	/**
+	 * Invokes a method hedged over the resources of the answer (see
+	 * {@link Hedging}). A duplicate is sent to the next resource if the
+	 * response time of a resource exceeds its {@link Hedging#PERCENTILE}
+	 * percentile. All attempts share the parameters, so only invocations with
+	 * plain values as parameters are hedged.
+	 */
+	private static Object invokeHedged(final Context context,
+			Statistics statistics, Answer answer, final boolean keepResult,
+			final String serviceName, final String methodName,
+			final Class<?>[] parameterTypes, final boolean[] outParameters,
+			final Object[] parameters, float weight, long inputSize,
+			long outputSize) throws NoResourceAvailableException {
+		int MAX_TRIES = 5;
+		List<Resource> resources = new ArrayList<Resource>();
+		resources.addAll(answer.getOffloadResources());
+		resources.addAll(answer.getUnknownResources());
+		while (resources.size() > MAX_TRIES) {
+			resources.remove(resources.size() - 1);
+		}
+		long[] delays = new long[resources.size()];
+		for (int i = 0; i < delays.length; i++) {
+			try {
+				delays[i] = Oracle.estimateResponseTime(context,
+						resources.get(i), serviceName + "." + methodName,
+						weight, inputSize, outputSize, Hedging.PERCENTILE);
+			} catch (NoHistoryException e) {
+				delays[i] = Hedging.DELAY;
+			}
+		}
+		Hedging hedging = new Hedging(resources, delays,
+				new Hedging.Attempt() {
+					public Object invoke(Resource resource,
+							Statistics statistics) throws Exception {
+						return Cuckoo.invoke(statistics, resource,
+								new ArrayList<Resource>(), invocation(
+										context, statistics, keepResult,
+										serviceName, methodName,
+										parameterTypes, outParameters,
+										parameters));
+					}
+				});
+		Object result = hedging.run();
+		double weightStatistic = statistics.weight;
+		statistics.copyFrom(hedging.getStatistics());
+		statistics.weight = weightStatistic;
+		statistics.inputSize = inputSize;
+		return result;
+	}
+
+	/**
+	 * Invoke a remote method asynchronously. The decision where to run it,
+	 * the connection setup and the invocation itself happen on the threads
+	 * of a bounded executor, the invocations for a single resource are
+	 * queued there if too many of them are running already. The result is
+	 * available from the returned future and is also given to the callback,
+	 * if there is one. If the invocation should run locally, it fails with a
+	 * {@link NoResourceAvailableException}.
+	 * 
+	 * @param callback
+	 *            receives the result or the failure, may be null
+	 * @return the future result of the invocation
+	 * @throws java.util.concurrent.RejectedExecutionException
+	 *             if there are too many invocations in flight
+	 * @see #invokeMethod(Context, Statistics, String, String, Class[],
+	 *      boolean[], Object[], String, float, long, long, boolean)
+	 */
+	public static InvocationFuture invokeMethodAsync(final Context context,
+			final Statistics statistics, final String serviceName,
+			final String methodName, final Class<?>[] parameterTypes,
+			final boolean[] outParameters, final Object[] parameters,
+			final String strategy, final float weight, final long inputSize,
+			final long outputSize, final boolean screenOn,
+			InvocationCallback callback) {
+		AsyncInvoker.started();
+		InvocationFuture future = new InvocationFuture(statistics, callback);
+		invokeAsync(context, statistics, serviceName, methodName,
+				parameterTypes, outParameters, parameters, strategy, weight,
+				inputSize, outputSize, screenOn, future, 1);
+		return future;
+	}
+
+	/**
+	 * Invoke a remote method asynchronously, allowing it to wait for at most
+	 * the latency budget before it starts. On a mobile network with a
+	 * dormant radio, deferrable invocations are queued and started together
+	 * (see {@link DeferredInvoker}), when the budget of one of them runs out
+	 * or as soon as other traffic has promoted the radio, so that they share
+	 * one promotion, one tail and one connection. The Oracle decides for
+	 * each invocation with its share of these costs. On WiFi or with an
+	 * active radio the invocation starts right away.
+	 * 
+	 * @param latencyBudget
+	 *            the time in ms the invocation may wait before it starts
+	 * @param callback
+	 *            receives the result or the failure, may be null
+	 * @return the future result of the invocation
+	 * @throws java.util.concurrent.RejectedExecutionException
+	 *             if there are too many invocations in flight
+	 * @see #invokeMethodAsync(Context, Statistics, String, String, Class[],
+	 *      boolean[], Object[], String, float, long, long, boolean,
+	 *      InvocationCallback)
+	 */
+	public static InvocationFuture invokeMethodDeferred(
+			final Context context, final Statistics statistics,
+			final String serviceName, final String methodName,
+			final Class<?>[] parameterTypes, final boolean[] outParameters,
+			final Object[] parameters, final String strategy,
+			final float weight, final long inputSize, final long outputSize,
+			final boolean screenOn, long latencyBudget,
+			InvocationCallback callback) {
+		AsyncInvoker.started();
+		final InvocationFuture future = new InvocationFuture(statistics,
+				callback);
+		DeferredInvoker.defer(context, latencyBudget, future,
+				new DeferredInvoker.Invocation() {
+					public void start(int batchSize) {
+						invokeAsync(context, statistics, serviceName,
+								methodName, parameterTypes, outParameters,
+								parameters, strategy, weight, inputSize,
+								outputSize, screenOn, future, batchSize);
+					}
+				});
+		return future;
+	}
+
+	private static void invokeAsync(final Context context,
+			final Statistics statistics, final String serviceName,
+			final String methodName, final Class<?>[] parameterTypes,
+			final boolean[] outParameters, final Object[] parameters,
+			final String strategy, final float weight, final long inputSize,
+			final long outputSize, final boolean screenOn,
+			final InvocationFuture future, final int batchSize) {
+		AsyncInvoker.execute(future, new Runnable() {
+			public void run() {
+				final Answer answer;
+				try {
+					answer = decide(context, serviceName, methodName,
+							parameters, strategy, weight, inputSize,
+							outputSize, screenOn, batchSize);
+				} catch (Exception e) {
+					future.fail(e);
+					return;
+				}
+				// queued for the resource that is tried first
+				List<Resource> resources = answer.getOffloadResources()
+						.isEmpty() ? answer.getUnknownResources() : answer
+						.getOffloadResources();
+				AsyncInvoker.execute(resources.get(0), future, new Runnable() {
+					public void run() {
+						try {
+							Cuckoo.strategy = strategy;
+							statistics.inputSize = inputSize;
+							future.set(invoke(statistics, answer, invocation(
+									context, statistics, false, serviceName,
+									methodName, parameterTypes, outParameters,
+									parameters)));
+						} catch (Exception e) {
+							future.fail(e);
+						}
+					}
+				});
+			}
+		});
+	}
+
+	/**
+	 * Invoke a method locally or remotely, racing both if the Oracle can't
+	 * tell which one is better: on the first invocations, or when the
+	 * probability that offloading is better is within
+	 * {@link Oracle#RACE_MARGIN} of {@link Oracle#CONFIDENCE}. A race starts
+	 * the remote invocation and the local implementation at the same time,
+	 * the first result is returned and the other side is cancelled, which
+	 * bounds the time to about the local time. If the decision is clear, only
+	 * the chosen side runs. Both sides share the parameters, so an invocation
+	 * with streams, result sinks or out parameters is never raced, it runs
+	 * remotely if that may be better. The statistics are stored with the Oracle by this
+	 * method. For the loser of a race the time until it was cancelled is
+	 * stored as a lower bound of its execution time, locally or at the
+	 * resource the remote side was trying, so that the Oracle knows both
+	 * sides after a race and doesn't race again while the loser is clearly
+	 * slower.
+	 * 
+	 * @param statistics
+	 *            receives the statistics of the side that produced the result
+	 * @param local
+	 *            the local implementation of the method, it should stop when
+	 *            its thread is interrupted
+	 * @return the result of the method
+	 * @throws Exception
+	 *             the failure of the local implementation if no side
+	 *             succeeded
+	 * @see #invokeMethod(Context, Statistics, String, String, Class[],
+	 *      boolean[], Object[], String, float, long, long, boolean)
+	 */
+	public static Object invokeMethodRacing(final Context context,
+			final Statistics statistics, final String serviceName,
+			final String methodName, final Class<?>[] parameterTypes,
+			final boolean[] outParameters, final Object[] parameters,
+			String strategy, float weight, long inputSize, long outputSize,
+			boolean screenOn, Callable<Object> local) throws Exception {
+		String name = serviceName + "." + methodName;
+		statistics.weight = weight;
+		Answer answer;
+		try {
+			answer = decide(context, serviceName, methodName, parameters,
+					strategy, weight, inputSize, outputSize, screenOn);
+		} catch (NoResourceAvailableException e) {
+			return invokeLocally(context, statistics, name, local);
+		}
+		Cuckoo.strategy = strategy;
+		statistics.inputSize = inputSize;
+		if (!answer.isUncertain() || getHandleAnswer(parameters) != null
+				|| hasSideEffects(outParameters, parameters)) {
+			if (answer.getOffloadResources().isEmpty()
+					&& answer.getUnknownResources().isEmpty()) {
+				return invokeLocally(context, statistics, name, local);
+			}
+			Object result = invoke(statistics, answer, invocation(context,
+					statistics, false, serviceName, methodName,
+					parameterTypes, outParameters, parameters));
+			Oracle.storeStatistics(context, name, statistics);
+			return result;
+		}
+		// race the resources that are or may be better than local
+		final Answer race = new Answer();
+		race.getOffloadResources().addAll(answer.getOffloadResources());
+		race.getOffloadResources().addAll(answer.getCloseResources());
+		race.getUnknownResources().addAll(answer.getUnknownResources());
+		final Statistics remoteStatistics = new Statistics();
+		remoteStatistics.weight = weight;
+		remoteStatistics.inputSize = inputSize;
+		final RemoteOperation invocation = invocation(context,
+				remoteStatistics, false, serviceName, methodName,
+				parameterTypes, outParameters, parameters);
+		// the resource the remote side is trying, if it is cancelled
+		final AtomicReference<Resource> attempt = new AtomicReference<Resource>();
+		final RemoteOperation operation = new RemoteOperation() {
+			public Object invoke(Communicator communicator,
+					List<Resource> others) throws Exception {
+				attempt.set(communicator.getResource());
+				return invocation.invoke(communicator, others);
+			}
+		};
+		Log.d(TAG, "racing '" + name + "' locally and remotely");
+		Race running = new Race(local, new Callable<Object>() {
+			public Object call() throws Exception {
+				return invoke(remoteStatistics, race, operation);
+			}
+		});
+		Object result = running.run();
+		if (running.localWon()) {
+			statistics.resource = new Resource();
+			statistics.executionTime = running.getTime();
+			statistics.totalInvocationTime = running.getTime();
+			if (attempt.get() != null) {
+				Oracle.storeExecutionTimeFloor(context, name, attempt.get()
+						.getHostname(), running.getTime(), weight);
+			}
+		} else {
+			statistics.copyFrom(remoteStatistics);
+			Oracle.storeExecutionTimeFloor(context, name, "local",
+					running.getTime(), weight);
+		}
+		Oracle.storeStatistics(context, name, statistics);
+		return result;
+	}
+
+	/**
+	 * Runs the local implementation of a method and stores its statistics.
+	 */
+	private static Object invokeLocally(Context context,
+			Statistics statistics, String name, Callable<Object> local)
+			throws Exception {
+		long start = System.currentTimeMillis();
+		Object result = local.call();
+		statistics.resource = new Resource();
+		statistics.executionTime = System.currentTimeMillis() - start;
+		statistics.totalInvocationTime = statistics.executionTime;
+		Oracle.storeStatistics(context, name, statistics);
+		return result;
+	}
+
+	/**
+	 * Returns the number of asynchronous invocations that are not done yet.
+	 */
+	public static int getInFlight() {
+		return AsyncInvoker.getInFlight();
+	}
+
+	/**
+	 * Returns the number of asynchronous invocations that are running or
+	 * queued for a resource.
+	 */
+	public static int getInFlight(Resource resource) {
+		return AsyncInvoker.getInFlight(resource);
+	}
+
+	/**
+	 * Decides where to run an invocation.
+	 * 
+	 * @throws NoResourceAvailableException
+	 *             if it should run locally
+	 */
+	private static Answer decide(Context context, String serviceName,
+			String methodName, Object[] parameters, String strategy,
 			float weight, long inputSize, long outputSize, boolean screenOn)
 			throws NoResourceAvailableException {
-		Answer answer = Oracle.shouldOffload(context, strategy, serviceName
-				+ "." + methodName, weight, inputSize, outputSize, screenOn);
+		return decide(context, serviceName, methodName, parameters,
+				strategy, weight, inputSize, outputSize, screenOn, 1);
+	}
+
+	/**
+	 * Decides where to run an invocation that is one of a batch.
+	 * 
+	 * @throws NoResourceAvailableException
+	 *             if it should run locally
+	 */
+	private static Answer decide(Context context, String serviceName,
+			String methodName, Object[] parameters, String strategy,
+			float weight, long inputSize, long outputSize, boolean screenOn,
+			int batchSize) throws NoResourceAvailableException {
+		// values that are kept at a resource can only be used there
+		Answer answer = getHandleAnswer(parameters);
+		if (answer == null) {
+			List<StagedValue> staged = new ArrayList<StagedValue>();
+			for (Object parameter : parameters) {
+				if (parameter instanceof StagedValue) {
+					staged.add((StagedValue) parameter);
+				}
+			}
+			answer = Oracle.shouldOffload(context, strategy, serviceName
+					+ "." + methodName, weight, inputSize, outputSize,
+					screenOn, staged, batchSize);
+		}
+		if (answer.isEmpty()) {
+			throw new NoResourceAvailableException();
+		}
+		// try the resources we know nothing about that failed least first
+		Collections.sort(answer.getUnknownResources(),
+				ResourceHealth.BY_ERROR_RATE);
+		return answer;
+	}
+
+	private static RemoteOperation invocation(final Context context,
+			final Statistics statistics, final boolean keepResult,
+			final String serviceName, final String methodName,
+			final Class<?>[] parameterTypes, final boolean[] outParameters,
+			final Object[] parameters) {
+		return new RemoteOperation() {
+			public Object invoke(Communicator communicator,
+					List<Resource> others) throws Exception {
+				return communicator.invokeMethod(context, others, statistics,
+						keepResult, serviceName, methodName, parameterTypes,
+						outParameters, parameters);
+			}
+		};
+	}
+
+	/**
+	 * Returns whether running an invocation twice at the same time has side
+	 * effects for the caller: streams would be read by both, result sinks
+	 * would receive the partial results twice and out parameters would be
+	 * written by the side that lost as well.
+	 */
+	private static boolean hasSideEffects(boolean[] outParameters,
+			Object[] parameters) {
+		for (int i = 0; i < parameters.length; i++) {
+			if (parameters[i] instanceof InputStream
+					|| parameters[i] instanceof ResultSink
+					|| (outParameters != null && outParameters[i])) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Returns whether some of the parameters of an invocation only exist at
+	 * a single resource: handles, staged values, and delta parameters of
+	 * which the base was sent to the resource of the previous invocation.
+	 */
+	private static boolean isBoundToResource(String serviceName,
+			String methodName, Object[] parameters) {
+		for (int i = 0; i < parameters.length; i++) {
+			if (parameters[i] instanceof RemoteHandle
+					|| parameters[i] instanceof StagedValue
+					|| isDelta(serviceName, methodName, i)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the answer with the resource that holds the values of the
+	 * handles among the parameters, or null if there are no handles.
+	 */
+	private static Answer getHandleAnswer(Object[] parameters) {
+		for (Object parameter : parameters) {
+			if (parameter instanceof RemoteHandle) {
+				Resource resource = sHandleResources.get(parameter);
+				if (resource == null) {
+					throw new IllegalArgumentException("Unknown " + parameter);
+				}
+				Answer answer = new Answer();
+				answer.getOffloadResources().add(resource);
+				return answer;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Uploads a value to a resource in the background, ahead of the
+	 * invocation that uses it, so that the upload overlaps with the time
+	 * until the invocation. The returned {@link StagedValue} can be passed as
+	 * a parameter of {@link #invokeMethod}, an invocation that runs on the
+	 * resource then only sends the hash of the value, after waiting for the
+	 * upload if it is still in progress. The Oracle doesn't count the staged
+	 * value as upload for that resource. The resource keeps the value in its
+	 * blob cache, if it has been evicted by the time of the invocation, the
+	 * value is uploaded again.
+	 * 
+	 * @param context
+	 *            the context
+	 * @param resource
+	 *            the resource to upload the value to
+	 * @param value
+	 *            the value
+	 * @return the staged value
+	 */
+	public static StagedValue stage(final Context context,
+			final Resource resource, Object value) {
+		final StagedValue staged = new StagedValue(value, resource);
+		new Thread() {
+			public void run() {
+				boolean uploaded = false;
+				try {
+					invoke(new Statistics(), resource,
+							new ArrayList<Resource>(), new RemoteOperation() {
+								public Object invoke(
+										Communicator communicator,
+										List<Resource> others)
+										throws Exception {
+									communicator.stage(context, staged);
+									return null;
+								}
+							});
+					uploaded = true;
+				} catch (Exception e) {
+					Log.d(TAG, "staging at " + resource + " failed: " + e);
+				} finally {
+					staged.done(uploaded);
+				}
+			}
+		}.start();
+		return staged;
+	}
+
+	/**
+	 * Remembers the resource that holds the value of a handle.
+	 */
+	static void bindHandle(RemoteHandle handle, Resource resource) {
+		sHandleResources.put(handle, resource);
+	}
+
+	/**
+	 * Downloads the value of a handle from the resource that holds it.
+	 * 
+	 * @param context
+	 *            the context
+	 * @param statistics
+	 *            receives the download time and size
+	 * @param handle
+	 *            the handle
+	 * @return the value
+	 * @throws Exception
+	 *             if the handle has expired or the resource is not reachable
+	 */
+	public static Object fetch(final Context context,
+			final Statistics statistics, final RemoteHandle handle)
+			throws Exception {
+		Resource resource = sHandleResources.get(handle);
+		if (resource == null) {
+			throw new IllegalArgumentException("Unknown " + handle);
+		}
+		return invoke(statistics, resource, new ArrayList<Resource>(),
+				new RemoteOperation() {
+					public Object invoke(Communicator communicator,
+							List<Resource> others) throws Exception {
+						return communicator.fetch(context, statistics, handle);
+					}
+				});
+	}
+
+	/**
+	 * Releases the value of a handle at the resource that holds it. Releasing
+	 * a handle twice is fine.
+	 * 
+	 * @param handle
+	 *            the handle
+	 * @throws Exception
+	 *             if the resource is not reachable
+	 */
+	public static void release(final RemoteHandle handle) throws Exception {
+		Resource resource = sHandleResources.remove(handle);
+		if (resource == null) {
+			return;
+		}
+		invoke(new Statistics(), resource, new ArrayList<Resource>(),
+				new RemoteOperation() {
+					public Object invoke(Communicator communicator,
+							List<Resource> others) throws Exception {
+						communicator.release(handle);
+						return null;
+					}
+				});
+	}
+
+	/**
+	 * Invoke a synchronous remote method for a batch of parameter tuples in a
+	 * single request. The Oracle decides once for the whole batch, using the
+	 * sum of the weights, unless a {@link RemoteHandle} in one of the tuples
+	 * binds the batch to the resource that holds it. The server executes the
+	 * invocations in parallel.
+	 * This method will block until all results are received.
+	 * 
+	 * @param context
+	 *            the context
+	 * @param serviceName
+	 *            the service that should be run remotely
+	 * @param methodName
+	 *            the method that should be invoked
+	 * @param parameterTypes
+	 *            the parameter types of the method
+	 * @param parameters
+	 *            the parameter values for each invocation
+	 * @param weights
+	 *            the weight of each invocation
+	 * @param inputSize
+	 *            the input size of the whole batch
+	 * @param outputSize
+	 *            the output size of the whole batch
+	 * @return the results of the invocations, in the order of the parameters
+	 * @throws NoResourceAvailableException
+	 */
+	public static Object[] invokeBatch(final Context context,
+			final Statistics statistics, final String serviceName,
+			final String methodName, final Class<?>[] parameterTypes,
+			final boolean[] outParameters, final Object[][] parameters,
+			String strategy, float[] weights, long inputSize,
+			long outputSize, boolean screenOn)
+			throws NoResourceAvailableException {
+		float weight = 0;
+		for (float w : weights) {
+			weight += w;
+		}
+		// handles and staged values in any of the tuples bind the batch
+		List<Object> values = new ArrayList<Object>();
+		for (Object[] tuple : parameters) {
+			values.addAll(Arrays.asList(tuple));
+		}
+		Answer answer = decide(context, serviceName, methodName,
+				values.toArray(), strategy, weight, inputSize, outputSize,
+				screenOn);
+		Cuckoo.strategy = strategy;
+		statistics.inputSize = inputSize;
+		return (Object[]) invoke(statistics, answer, new RemoteOperation() {
+			public Object invoke(Communicator communicator,
+					List<Resource> others) throws Exception {
+				return communicator.invokeBatch(context, statistics,
+						serviceName, methodName, parameterTypes,
+						outParameters, parameters);
+			}
+		});
+	}
+
+	/**
+	 * Invoke a pipeline of remote methods in a single request, where the
+	 * results of earlier steps are parameters of later steps. These results
+	 * stay at the resource and steps that don't depend on each other are
+	 * executed in parallel. The Oracle decides once for the whole pipeline,
+	 * based on the history of the methods of its steps. A pipeline with a
+	 * {@link RemoteHandle} as a parameter runs on the resource that holds the
+	 * value. This method will block until the pipeline is done.
+	 * 
+	 * @param context
+	 *            the context
+	 * @param pipeline
+	 *            the pipeline
+	 * @param weight
+	 *            the weight of each step
+	 * @param inputSize
+	 *            the input size of the whole pipeline
+	 * @param outputSize
+	 *            the output size of the whole pipeline
+	 * @return the results of the steps by index, null for the steps of which
+	 *         the result was used by another step
+	 * @throws NoResourceAvailableException
+	 */
+	public static Object[] invokePipeline(final Context context,
+			final Statistics statistics, final Pipeline pipeline,
+			String strategy, float weight, long inputSize, long outputSize,
+			boolean screenOn) throws NoResourceAvailableException {
+		Answer answer = null;
+		for (Pipeline.Step step : pipeline.getSteps()) {
+			answer = getHandleAnswer(step.parameters);
+			if (answer != null) {
+				break;
+			}
+		}
+		if (answer == null) {
+			answer = Oracle.shouldOffload(context, strategy,
+					pipeline.getName(), weight, inputSize, outputSize,
+					screenOn);
+		}
 		if (answer.isEmpty()) {
 			throw new NoResourceAvailableException();
 		}
 		Cuckoo.strategy = strategy;
 		statistics.inputSize = inputSize;
+		return (Object[]) invoke(statistics, answer, new RemoteOperation() {
+			public Object invoke(Communicator communicator,
+					List<Resource> others) throws Exception {
+				return communicator.invokePipeline(context, statistics,
+						pipeline);
+			}
+		});
+	}
+
+	/**
+	 * Tries the operation on the resources of the answer until it succeeds on
+	 * one of them. An invocation that streams parameters or results is not
+	 * tried again once its request has been sent.
+	 */
+	@SuppressWarnings("unchecked")
+	private static Object invoke(Statistics statistics, Answer answer,
+			RemoteOperation operation) throws NoResourceAvailableException {
 		// TODO: make this a configuration
 		int MAX_TRIES = 5;
+		// connect to the best candidates in parallel
+		answer = ConnectionRace.reorder(answer);
 		for (int i = 0; i < MAX_TRIES; i++) {
 			Resource resource;
 			ArrayList<Resource> others = answer.getUnknownResources();
@@ -824,79 +1086,96 @@ public class Cuckoo {
 			}
 			long start = System.currentTimeMillis();
 			try {
-				Communicator communicator = new Communicator(context, resource);
-				statistics.localOverheadTime = System.currentTimeMillis()
-						- start;
-				Object result = communicator.invokeMethod(context, others,
-						statistics, serviceName, methodName, parameterTypes,
-						outParameters, parameters);
-				communicator.end();
+				Object result = invoke(statistics, resource, others,
+						operation);
 				statistics.totalInvocationTime = System.currentTimeMillis()
 						- start;
 				return result;
+			} catch (SocketTimeoutException e) {
+				// the resource is too slow, try the next one
+				Log.d(TAG, "invocation at " + resource + " timed out: " + e);
+			} catch (InterruptedIOException e) {
+				// cancelled, so don't try the other resources
+				Log.d(TAG, "invocation cancelled");
+				break;
 			} catch (Exception e) {
 				e.printStackTrace();
 			}
+			if (statistics.unrepeatable) {
+				Log.d(TAG, "streaming invocation failed after the request "
+						+ "was sent, not trying other resources");
+				break;
+			}
 		}
 		Log.d(TAG,
 				"None of the resources succeeded! Throwing No Resource Available");
 		throw new NoResourceAvailableException();
 	}
 
-	private static Thread mWifiWakeThread;
-
-	private static void startKeepWifiAwake(final String hostname) {
-		String wifiWakeStrategy = System.getProperty(WIFI_WAKE_STRATEGY,
-				WIFI_WAKE_STRATEGY_DEFAULT);
-		Log.d(TAG, "Keeping WiFi awake with strategy: " + wifiWakeStrategy);
-		// first check whether wifi is on
-		if (ContextState.getNetworkInfo() != null
-				&& ContextState.getNetworkInfo().getType() == ConnectivityManager.TYPE_WIFI) {
-			if (wifiWakeStrategy.equals(WIFI_WAKE_STRATEGY_DEFAULT)) {
-				wifiWakeStrategy = (strategy.startsWith(Oracle.STRATEGY_ENERGY)) ? WIFI_WAKE_STRATEGY_SLEEP
-						: WIFI_WAKE_STRATEGY_AWAKE;
+	/**
+	 * Invokes the operation on a single resource using the pooled connection.
+	 * If a reused connection turns out to be broken (for instance, because
+	 * the server closed it) the operation is tried once more on a new
+	 * connection, unless it can't be repeated anymore.
+	 */
+	private static Object invoke(Statistics statistics, Resource resource,
+			List<Resource> others, RemoteOperation operation) throws Exception {
+		// statistics measured across a network change are not stored
+		statistics.networkEpoch = ContextState.getNetwork().getEpoch();
+		while (true) {
+			long start = System.currentTimeMillis();
+			Communicator communicator;
+			try {
+				communicator = ConnectionPool.acquire(resource);
+			} catch (SocketTimeoutException e) {
+				ResourceHealth.failure(resource);
+				throw e;
+			} catch (InterruptedIOException e) {
+				// waiting for a concurrent connection was interrupted
+				throw e;
+			} catch (IOException e) {
+				ResourceHealth.failure(resource);
+				throw e;
 			}
-
-			if (!wifiWakeStrategy.equals(WIFI_WAKE_STRATEGY_SLEEP)) {
-				final String currentWakeStrategy = wifiWakeStrategy;
-
-				mWifiWakeThread = new Thread() {
-					public void run() {
-						try {
-							InetAddress address = InetAddress
-									.getByName(hostname);
-							// if we should wake just in time, wake up exec time
-							// - 2 * stdev
-							if (currentWakeStrategy
-									.equals(WIFI_WAKE_STRATEGY_JIT)) {
-								// about 95% of the values lie within two
-								// standard deviations (if normal distribution)
-								long sleepTime = (long) (Oracle.executionTime.average - 2 * Math
-										.sqrt(Oracle.executionTime.variance));
-								Log.d(TAG, "Waiting for " + sleepTime
-										+ " before waking WiFi");
-								sleep(sleepTime);
-							}
-							final long PING_INTERVAL = 180;
-							while (!isInterrupted()) {
-								address.isReachable(200);
-								sleep(PING_INTERVAL);
-							}
-						} catch (Throwable t) {
-						}
-					}
-				};
-				mWifiWakeThread.start();
+			boolean reused = communicator.use();
+			statistics.localOverheadTime = System.currentTimeMillis() - start;
+			try {
+				Object result = operation.invoke(communicator, others);
+				// a reused connection has no connection setup
+				statistics.rtt = reused ? 0 : communicator.getRTT();
+				ConnectionPool.release(communicator);
+				ResourceHealth.success(resource);
+				return result;
+			} catch (SocketTimeoutException e) {
+				// the request was cancelled, the connection is fine
+				ConnectionPool.release(communicator);
+				ResourceHealth.failure(resource);
+				throw e;
+			} catch (InterruptedIOException e) {
+				// the request was cancelled, the connection is fine
+				ConnectionPool.release(communicator);
+				throw e;
+			} catch (IOException e) {
+				ConnectionPool.discard(communicator);
+				if (!reused || statistics.unrepeatable) {
+					ResourceHealth.failure(resource);
+					throw e;
+				}
+				Log.d(TAG, "pooled connection to " + resource
+						+ " failed, retrying with a new connection");
+			} catch (Exception e) {
+				// the connection is fine, the invocation failed
+				ConnectionPool.release(communicator);
+				throw e;
 			}
 		}
-
 	}
 
-	private static void stopKeepWifiAwake() {
-		if (mWifiWakeThread != null) {
-			mWifiWakeThread.interrupt();
-			mWifiWakeThread = null;
-		}
+	/**
+	 * Returns the strategy of the last invocation.
+	 */
+	static String getStrategy() {
+		return strategy;
 	}
 
 }
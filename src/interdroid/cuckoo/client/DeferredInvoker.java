@@ -0,0 +1,173 @@
+package interdroid.cuckoo.client;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.util.Log;
+
+/**
+ * Holds back deferrable invocations while the mobile radio is dormant, so
+ * that several invocations share the promotion of the radio, the tail that
+ * follows and the connection, instead of each paying for them. The queued
+ * invocations are started together when the latency budget of one of them
+ * runs out, when {@link #MAX_BATCH_PROPERTY} invocations are waiting, or
+ * when the {@link RadioTracker} reports traffic, because then the radio is
+ * promoted already. Invocations that are deferred while the radio is active,
+ * or on another network than a mobile one, start right away.
+ */
+class DeferredInvoker {
+
+	private static final String TAG = "Cuckoo DeferredInvoker";
+
+	/**
+	 * System property with the number of invocations at which a batch is
+	 * started without waiting for the budgets
+	 */
+	static final String MAX_BATCH_PROPERTY = "interdroid.cuckoo.defer.max";
+
+	static final int DEFAULT_MAX_BATCH = 16;
+
+	private static final int MAX_BATCH = Integer.getInteger(
+			MAX_BATCH_PROPERTY, DEFAULT_MAX_BATCH);
+
+	/**
+	 * Starts a deferred invocation.
+	 */
+	interface Invocation {
+
+		/**
+		 * @param batchSize
+		 *            the number of invocations that are started together
+		 */
+		void start(int batchSize);
+
+	}
+
+	/**
+	 * An invocation that waits in the queue
+	 */
+	private static class Deferred {
+		final InvocationFuture future;
+		final Invocation invocation;
+		final long deadline;
+
+		Deferred(InvocationFuture future, Invocation invocation, long deadline) {
+			this.future = future;
+			this.invocation = invocation;
+			this.deadline = deadline;
+		}
+	}
+
+	private static final List<Deferred> sQueue = new ArrayList<Deferred>();
+
+	private static Thread sThread;
+
+	/**
+	 * Defers an invocation for at most the latency budget.
+	 */
+	static void defer(Context context, long latencyBudget,
+			InvocationFuture future, Invocation invocation) {
+		// the radio tracker is started with the network observer
+		ContextState.observeNetwork(context);
+		if (latencyBudget <= 0
+				|| ContextState.getNetwork().getType() != ConnectivityManager.TYPE_MOBILE
+				|| !RadioTracker.isDormant()) {
+			invocation.start(1);
+			return;
+		}
+		List<Deferred> batch = null;
+		synchronized (DeferredInvoker.class) {
+			sQueue.add(new Deferred(future, invocation, System
+					.currentTimeMillis() + latencyBudget));
+			Log.d(TAG, "deferring invocation for at most " + latencyBudget
+					+ " ms, " + sQueue.size() + " waiting");
+			if (sQueue.size() >= MAX_BATCH) {
+				batch = take();
+			} else if (sThread == null) {
+				sThread = new Thread("Cuckoo deferred") {
+					public void run() {
+						waitForDeadlines();
+					}
+				};
+				sThread.setDaemon(true);
+				sThread.start();
+			} else {
+				// the new budget may end earlier than the others
+				DeferredInvoker.class.notifyAll();
+			}
+		}
+		start(batch);
+	}
+
+	/**
+	 * Starts the waiting invocations, because there is traffic and the radio
+	 * is promoted already.
+	 */
+	static void radioActive() {
+		List<Deferred> batch;
+		synchronized (DeferredInvoker.class) {
+			if (sQueue.isEmpty()) {
+				return;
+			}
+			Log.d(TAG, "radio is active, starting " + sQueue.size()
+					+ " deferred invocation(s)");
+			batch = take();
+		}
+		start(batch);
+	}
+
+	private static void waitForDeadlines() {
+		while (true) {
+			List<Deferred> batch;
+			synchronized (DeferredInvoker.class) {
+				long now = System.currentTimeMillis();
+				long deadline = Long.MAX_VALUE;
+				for (Deferred deferred : sQueue) {
+					deadline = Math.min(deadline, deferred.deadline);
+				}
+				if (deadline == Long.MAX_VALUE) {
+					sThread = null;
+					return;
+				}
+				if (deadline > now) {
+					try {
+						DeferredInvoker.class.wait(deadline - now);
+					} catch (InterruptedException e) {
+						// check the deadlines again
+					}
+					continue;
+				}
+				Log.d(TAG, "latency budget ran out, starting "
+						+ sQueue.size() + " deferred invocation(s)");
+				batch = take();
+			}
+			start(batch);
+		}
+	}
+
+	/**
+	 * Takes the invocations that are still wanted from the queue.
+	 */
+	private static List<Deferred> take() {
+		List<Deferred> batch = new ArrayList<Deferred>();
+		for (Deferred deferred : sQueue) {
+			if (!deferred.future.isCancelled()) {
+				batch.add(deferred);
+			}
+		}
+		sQueue.clear();
+		return batch;
+	}
+
+	private static void start(List<Deferred> batch) {
+		if (batch == null) {
+			return;
+		}
+		for (Deferred deferred : batch) {
+			deferred.invocation.start(batch.size());
+		}
+	}
+
+}
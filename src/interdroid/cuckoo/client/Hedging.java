@@ -0,0 +1,217 @@
+package interdroid.cuckoo.client;
+
+import interdroid.cuckoo.base.NoResourceAvailableException;
+import interdroid.cuckoo.client.Cuckoo.Resource;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.util.Log;
+
+/**
+ * Hedged invocation of the {@link Oracle#STRATEGY_PARALLEL} strategy. The
+ * invocation is sent to the best resource, if no response has arrived by the
+ * time that resource's response time reaches a high percentile, a duplicate is
+ * sent to the next resource, and so on. The first response is taken and the
+ * other invocations are cancelled. The duplicates are budgeted, they never
+ * exceed a configurable fraction of the invocations. A failed invocation is
+ * retried on the next resource right away, outside of the budget.
+ */
+class Hedging {
+
+	private static final String TAG = "Cuckoo Hedging";
+
+	/**
+	 * System property with the percentile of the response time after which a
+	 * duplicate is sent, between 0 and 1
+	 */
+	public static final String PERCENTILE_PROPERTY = "interdroid.cuckoo.hedge.percentile";
+
+	/**
+	 * System property with the maximum number of duplicates as a fraction of
+	 * the invocations
+	 */
+	public static final String BUDGET_PROPERTY = "interdroid.cuckoo.hedge.budget";
+
+	/**
+	 * System property with the time in ms after which a duplicate is sent if
+	 * there's no history of the response time
+	 */
+	public static final String DELAY_PROPERTY = "interdroid.cuckoo.hedge.delay";
+
+	public static final float PERCENTILE = Float.parseFloat(System
+			.getProperty(PERCENTILE_PROPERTY, "0.95"));
+
+	public static final float BUDGET = Float.parseFloat(System.getProperty(
+			BUDGET_PROPERTY, "0.05"));
+
+	public static final long DELAY = Long.parseLong(System.getProperty(
+			DELAY_PROPERTY, "1000"));
+
+	/**
+	 * The budget is computed over this many recent invocations
+	 */
+	private static final int WINDOW = 1000;
+
+	private static int sInvocations;
+
+	private static int sDuplicates;
+
+	/**
+	 * An invocation on a single resource.
+	 */
+	interface Attempt {
+
+		/**
+		 * @param resource
+		 *            the resource to invoke on
+		 * @param statistics
+		 *            receives the statistics of this invocation
+		 * @return the result
+		 */
+		Object invoke(Resource resource, Statistics statistics)
+				throws Exception;
+
+	}
+
+	private final List<Resource> mResources;
+
+	private final long[] mDelays;
+
+	private final Attempt mAttempt;
+
+	private final List<Thread> mThreads = new ArrayList<Thread>();
+
+	private int mRunning;
+
+	private boolean mDone;
+
+	private Object mResult;
+
+	private Statistics mStatistics;
+
+	/**
+	 * @param resources
+	 *            the resources in the order in which they are tried
+	 * @param delays
+	 *            for each resource the time after which a duplicate is sent
+	 *            to the next one
+	 * @param attempt
+	 *            the invocation
+	 */
+	Hedging(List<Resource> resources, long[] delays, Attempt attempt) {
+		mResources = resources;
+		mDelays = delays;
+		mAttempt = attempt;
+	}
+
+	/**
+	 * Returns whether a duplicate may be sent and counts it if so.
+	 */
+	private static synchronized boolean allowDuplicate() {
+		if (sDuplicates + 1 > BUDGET * sInvocations) {
+			return false;
+		}
+		sDuplicates++;
+		return true;
+	}
+
+	private static synchronized void countInvocation() {
+		if (++sInvocations > WINDOW) {
+			sInvocations /= 2;
+			sDuplicates /= 2;
+		}
+	}
+
+	/**
+	 * Runs the invocation and waits for the first response.
+	 * 
+	 * @return the first result
+	 * @throws NoResourceAvailableException
+	 *             if the invocation failed on all resources, or the calling
+	 *             thread was interrupted
+	 */
+	synchronized Object run() throws NoResourceAvailableException {
+		countInvocation();
+		int next = 0;
+		long deadline = 0;
+		try {
+			while (!mDone) {
+				long now = System.currentTimeMillis();
+				if (mRunning == 0 || (deadline > 0 && now >= deadline)) {
+					if (next == mResources.size()) {
+						if (mRunning == 0) {
+							break;
+						}
+						deadline = 0;
+					} else if (mRunning == 0 || allowDuplicate()) {
+						if (mRunning > 0) {
+							Log.d(TAG, "no response after " + mDelays[next - 1]
+									+ " ms, sending a duplicate to "
+									+ mResources.get(next));
+						}
+						start(mResources.get(next));
+						deadline = System.currentTimeMillis() + mDelays[next];
+						next++;
+					} else {
+						// out of budget, wait for the running ones
+						deadline = 0;
+					}
+					continue;
+				}
+				wait(deadline > 0 ? deadline - now : 0);
+			}
+		} catch (InterruptedException e) {
+			Log.d(TAG, "hedged invocation interrupted");
+		} finally {
+			// cancel the others
+			for (Thread thread : mThreads) {
+				thread.interrupt();
+			}
+		}
+		if (!mDone) {
+			throw new NoResourceAvailableException();
+		}
+		return mResult;
+	}
+
+	/**
+	 * Returns the statistics of the invocation that responded first.
+	 */
+	synchronized Statistics getStatistics() {
+		return mStatistics;
+	}
+
+	private void start(final Resource resource) {
+		final Statistics statistics = new Statistics();
+		Thread thread = new Thread("Cuckoo hedge " + resource) {
+			public void run() {
+				long start = System.currentTimeMillis();
+				try {
+					Object result = mAttempt.invoke(resource, statistics);
+					statistics.totalInvocationTime = System
+							.currentTimeMillis() - start;
+					finished(result, statistics);
+				} catch (Exception e) {
+					Log.d(TAG, "invocation at " + resource + " failed: " + e);
+					finished(null, null);
+				}
+			}
+		};
+		thread.setDaemon(true);
+		mThreads.add(thread);
+		mRunning++;
+		thread.start();
+	}
+
+	private synchronized void finished(Object result, Statistics statistics) {
+		mRunning--;
+		if (statistics != null && !mDone) {
+			mDone = true;
+			mResult = result;
+			mStatistics = statistics;
+		}
+		notifyAll();
+	}
+
+}
@@ -23,23 +23,48 @@ public class History {
 			String methodName, String resourceId, double weight)
 			throws NoHistoryException {
 		String prefix = resourceId + "@" + methodName;
+		// a lower bound from a cancelled invocation
+		float floor = prefs.getFloat(prefix + "_floor", 0);
 		if (prefs.contains(prefix + "_average")) {
 			Estimate estimate = new Estimate();
-			estimate.average = (long) (prefs.getFloat(prefix + "_average", 0) * weight);
+			estimate.average = (long) (Math.max(
+					prefs.getFloat(prefix + "_average", 0), floor) * weight);
 			estimate.variance = (float) (prefs
 					.getFloat(prefix + "_variance", 0) * weight);
 			return estimate;
+		} else if (floor > 0) {
+			Estimate estimate = new Estimate();
+			estimate.average = (long) (floor * weight);
+			estimate.variance = (float) ((floor / 2) * (floor / 2) * weight);
+			return estimate;
 		} else {
 			throw new NoHistoryException();
 		}
 	}
 
+	/**
+	 * Stores a lower bound of the execution time of a method, of an
+	 * invocation that was cancelled after this time. The bound is not a
+	 * sample: the estimate is at least the bound, until the next complete
+	 * invocation replaces it.
+	 */
+	public static void updateExecutionTimeFloor(
+			SharedPreferences.Editor editor, String methodName,
+			String resourceId, long tNow, double weightNow) {
+		if (!resourceId.equals("local")) {
+			editor.putBoolean(methodName + ".nonempty", true);
+		}
+		editor.putFloat(resourceId + "@" + methodName + "_floor",
+				(float) (tNow / weightNow));
+	}
+
 	public static void updateExecutionTimeDB(SharedPreferences.Editor editor,
 			SQLiteDatabase db, String methodName, String resourceId, long tNow,
 			double weightNow) {
 		if (!resourceId.equals("local")) {
 			editor.putBoolean(methodName + ".nonempty", true);
 		}
+		editor.remove(resourceId + "@" + methodName + "_floor");
 		// construct the content values that we store in the db.
 		ContentValues values = new ContentValues();
 		values.put("method", methodName);
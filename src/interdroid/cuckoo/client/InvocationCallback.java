@@ -0,0 +1,28 @@
+package interdroid.cuckoo.client;
+
+/**
+ * Receives the outcome of an asynchronous invocation, see
+ * {@link Cuckoo#invokeMethodAsync}. The methods are called on a thread of the
+ * invocation executor, not on the thread that started the invocation. A
+ * cancelled invocation doesn't call back.
+ */
+public interface InvocationCallback {
+
+	/**
+	 * Called with the result of a successful invocation.
+	 * 
+	 * @param result
+	 *            the result of the method
+	 * @param statistics
+	 *            the statistics of the invocation
+	 */
+	void onResult(Object result, Statistics statistics);
+
+	/**
+	 * Called when the invocation failed, with a
+	 * {@link interdroid.cuckoo.base.NoResourceAvailableException} if it
+	 * should be executed locally instead.
+	 */
+	void onFailure(Exception e);
+
+}
@@ -0,0 +1,131 @@
+package interdroid.cuckoo.client;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The pending result of an asynchronous invocation, see
+ * {@link Cuckoo#invokeMethodAsync}. Cancelling an invocation that has not
+ * started yet keeps it from starting, an invocation that is already running
+ * at a resource runs to completion but its result is dropped.
+ */
+public class InvocationFuture implements Future<Object> {
+
+	private final Statistics mStatistics;
+
+	private final InvocationCallback mCallback;
+
+	private boolean mDone;
+
+	private boolean mCancelled;
+
+	private Object mResult;
+
+	private Exception mFailure;
+
+	InvocationFuture(Statistics statistics, InvocationCallback callback) {
+		mStatistics = statistics;
+		mCallback = callback;
+	}
+
+	/**
+	 * Returns the statistics of the invocation, which are complete when the
+	 * invocation is done.
+	 */
+	public Statistics getStatistics() {
+		return mStatistics;
+	}
+
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		synchronized (this) {
+			if (mDone) {
+				return false;
+			}
+			mCancelled = true;
+			mDone = true;
+			// not in flight anymore by the time get returns
+			AsyncInvoker.finished();
+			notifyAll();
+		}
+		return true;
+	}
+
+	public synchronized boolean isCancelled() {
+		return mCancelled;
+	}
+
+	public synchronized boolean isDone() {
+		return mDone;
+	}
+
+	public synchronized Object get() throws InterruptedException,
+			ExecutionException {
+		while (!mDone) {
+			wait();
+		}
+		return getResult();
+	}
+
+	public synchronized Object get(long timeout, TimeUnit unit)
+			throws InterruptedException, ExecutionException, TimeoutException {
+		long deadline = System.currentTimeMillis() + unit.toMillis(timeout);
+		while (!mDone) {
+			long remaining = deadline - System.currentTimeMillis();
+			if (remaining <= 0) {
+				throw new TimeoutException();
+			}
+			wait(remaining);
+		}
+		return getResult();
+	}
+
+	private Object getResult() throws ExecutionException {
+		if (mCancelled) {
+			throw new CancellationException();
+		}
+		if (mFailure != null) {
+			throw new ExecutionException(mFailure);
+		}
+		return mResult;
+	}
+
+	/**
+	 * Completes the invocation with its result.
+	 */
+	void set(Object result) {
+		synchronized (this) {
+			if (mDone) {
+				return;
+			}
+			mResult = result;
+			mDone = true;
+			AsyncInvoker.finished();
+			notifyAll();
+		}
+		if (mCallback != null) {
+			mCallback.onResult(result, mStatistics);
+		}
+	}
+
+	/**
+	 * Completes the invocation with a failure.
+	 */
+	void fail(Exception failure) {
+		synchronized (this) {
+			if (mDone) {
+				return;
+			}
+			mFailure = failure;
+			mDone = true;
+			AsyncInvoker.finished();
+			notifyAll();
+		}
+		if (mCallback != null) {
+			mCallback.onFailure(failure);
+		}
+	}
+
+}
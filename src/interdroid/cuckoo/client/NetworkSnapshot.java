@@ -0,0 +1,108 @@
+package interdroid.cuckoo.client;
+
+import android.net.NetworkInfo;
+import android.net.wifi.WifiInfo;
+
+/**
+ * The state of the network at some point in time, as kept by
+ * {@link ContextState}. Snapshots are immutable, every change of the network
+ * results in a new snapshot with a higher epoch, so two measurements were
+ * made on the same network if the epochs of their snapshots are equal. A
+ * change of the link speed only results in a new snapshot with the same
+ * epoch.
+ */
+public class NetworkSnapshot {
+
+	private final long epoch;
+	private final NetworkInfo networkInfo;
+	private final WifiInfo wifiInfo;
+	private final boolean connected;
+	private final int type;
+	private final int subtype;
+	private final String bssid;
+	private final int linkSpeed;
+
+	NetworkSnapshot(long epoch, NetworkInfo networkInfo, WifiInfo wifiInfo) {
+		this.epoch = epoch;
+		this.networkInfo = networkInfo;
+		this.wifiInfo = wifiInfo;
+		connected = networkInfo != null && networkInfo.isConnected();
+		type = networkInfo == null ? -1 : networkInfo.getType();
+		subtype = networkInfo == null ? -1 : networkInfo.getSubtype();
+		bssid = wifiInfo == null ? null : wifiInfo.getBSSID();
+		linkSpeed = wifiInfo == null ? 0 : wifiInfo.getLinkSpeed();
+	}
+
+	/**
+	 * Returns a snapshot of the same network with another epoch.
+	 */
+	NetworkSnapshot withEpoch(long epoch) {
+		return new NetworkSnapshot(epoch, networkInfo, wifiInfo);
+	}
+
+	/**
+	 * Returns whether the other snapshot describes the same network,
+	 * regardless of the epochs. The link speed is not compared, a WiFi link
+	 * changes its rate all the time without becoming another network.
+	 */
+	boolean sameState(NetworkSnapshot other) {
+		return other != null && getKey().equals(other.getKey());
+	}
+
+	public long getEpoch() {
+		return epoch;
+	}
+
+	public NetworkInfo getNetworkInfo() {
+		return networkInfo;
+	}
+
+	public WifiInfo getWifiInfo() {
+		return wifiInfo;
+	}
+
+	public boolean isConnected() {
+		return connected;
+	}
+
+	/**
+	 * Returns the type of the network, one of the ConnectivityManager.TYPE_
+	 * constants, or -1 if there is no network.
+	 */
+	public int getType() {
+		return type;
+	}
+
+	public int getSubtype() {
+		return subtype;
+	}
+
+	/**
+	 * Returns the BSSID of the WiFi access point, or null.
+	 */
+	public String getBssid() {
+		return bssid;
+	}
+
+	/**
+	 * Returns the link speed of the WiFi connection in Mbps, or 0.
+	 */
+	public int getLinkSpeed() {
+		return linkSpeed;
+	}
+
+	/**
+	 * Identifies the network, the same network gets the same key in
+	 * different epochs.
+	 */
+	public String getKey() {
+		return connected ? type + "/" + subtype + "/" + bssid : "none";
+	}
+
+	@Override
+	public String toString() {
+		return "network " + getKey() + " (" + linkSpeed + " Mbps, epoch "
+				+ epoch + ")";
+	}
+
+}
@@ -6,6 +6,11 @@ import interdroid.cuckoo.client.Cuckoo.Resource;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
 
 import org.apache.commons.math3.distribution.NormalDistribution;
 
@@ -15,7 +20,6 @@ import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.location.Location;
 import android.net.ConnectivityManager;
-import android.net.TrafficStats;
 import android.provider.Settings;
 import android.provider.Settings.SettingNotFoundException;
 import android.telephony.TelephonyManager;
@@ -37,7 +41,6 @@ public class Oracle {
 	// TODO make these configurable
 	public static final long TAIL_HIGH = 5000;
 	public static final long TAIL_LOW = 12000;
-	public static final long POLL_STEP = 1000;
 
 	/**
 	 * Supported offloading strategies
@@ -58,11 +61,25 @@ public class Oracle {
 	 */
 	public static final float CONFIDENCE = .5f; // TODO make this configurablwe
 
+	/**
+	 * If the probability that offloading is better is this close to
+	 * {@link #CONFIDENCE}, the decision is uncertain and racing local and
+	 * remote execution pays off (see {@link Answer#isUncertain()})
+	 */
+	public static final float RACE_MARGIN = .15f;
+
 	private static SharedPreferences prefs = null;
 	private static SharedPreferences.Editor editor = null;
 	private static SQLiteDatabase db = null;
-	public static Estimate executionTime;
 	public static boolean doNotStore = false;
+
+	/**
+	 * Running average of the fraction of the input that was not uploaded
+	 * because the resource already held it in its blob cache, by method and
+	 * resource
+	 */
+	private static final Map<String, Double> sDedupFraction = Collections
+			.synchronizedMap(new HashMap<String, Double>());
 	public static String forcedStrategy = null;
 
 	public static boolean emptyHistory(Context context, String methodName) {
@@ -86,15 +103,17 @@ public class Oracle {
 			return;
 		}
 		System.out.println("new: " + statistics);
-		boolean networkStable = ContextState.stopMonitoringNetwork(context);
+		// the network has been stable if it is still in the same epoch
+		final NetworkSnapshot network = ContextState.getNetwork();
+		boolean networkStable = statistics.networkEpoch == network.getEpoch();
 
 		// we only keep historic information for WiFi (and only when the network
 		// has been stable and it indeed was remotely executed)
 
 		if (!statistics.resource.getHostname().equals("local")
-				&& ContextState.getNetworkInfo().getType() == ConnectivityManager.TYPE_WIFI
+				&& network.getType() == ConnectivityManager.TYPE_WIFI
 				&& networkStable) {
-			String bssid = ContextState.getWifiInfo().getBSSID();
+			String bssid = network.getBssid();
 			boolean lan = Arrays.asList(statistics.resource.getBssids())
 					.contains(bssid);
 			History.updateWiFiDownloadDB(
@@ -105,52 +124,75 @@ public class Oracle {
 					statistics.downloadTime,
 					statistics.resource.estimateDownload(statistics.returnSize),
 					lan);
+			// only what was actually uploaded says something about the link
+			long uploadSize = Math.max(0, statistics.inputSize
+					- statistics.dedupSize);
 			History.updateWiFiUploadDB(getEditor(context), getDB(context),
-					bssid, statistics.inputSize, statistics.uploadTime,
-					statistics.resource.estimateDownload(statistics.inputSize),
-					lan);
+					bssid, uploadSize, statistics.uploadTime,
+					statistics.resource.estimateDownload(uploadSize), lan);
 
 		}
 
+		if (!statistics.resource.getHostname().equals("local")
+				&& statistics.inputSize > 0) {
+			updateDedupFraction(statistics.resource, methodName,
+					Math.min(1, (double) statistics.dedupSize
+							/ statistics.inputSize));
+		}
+
 		History.updateExecutionTimeDB(getEditor(context), getDB(context),
 				methodName, statistics.resource.getHostname(),
 				statistics.executionTime, statistics.weight);
 
-		// start a monitor here to look for tail costs for 3G
-		new Thread() {
-			public void run() {
-				if (!statistics.resource.getHostname().equals("local")
-						&& ContextState.getNetworkInfo().getType() == ConnectivityManager.TYPE_MOBILE
-						&& (ContextState.getNetworkInfo().getSubtype() == TelephonyManager.NETWORK_TYPE_UMTS
-								|| ContextState.getNetworkInfo().getSubtype() == TelephonyManager.NETWORK_TYPE_HSDPA
-								|| ContextState.getNetworkInfo().getSubtype() == TelephonyManager.NETWORK_TYPE_HSPA || ContextState
-								.getNetworkInfo().getSubtype() == TelephonyManager.NETWORK_TYPE_HSUPA)) {
-					long startBytes = TrafficStats.getTotalRxBytes()
-							+ TrafficStats.getTotalTxBytes();
-					long startTime = System.currentTimeMillis();
-					for (long i = 0; i < TAIL_LOW + TAIL_HIGH; i += POLL_STEP) {
-						try {
-							sleep(POLL_STEP);
-						} catch (InterruptedException e) {
-						}
-						if (TrafficStats.getTotalRxPackets()
-								+ TrafficStats.getTotalTxPackets() > startBytes) {
-							// we encountered traffic from another source!
-							break;
-						}
-					}
-					long time = System.currentTimeMillis() - startTime;
-					double networkPower = ContextState.valueOf(context,
-							"radio.active");
-					long energy = (long) (Math.min(time, TAIL_HIGH)
-							* networkPower + Math.max(0, time - TAIL_HIGH)
-							* networkPower / 2);
-					History.updateTailEnergy(getDB(context),
-							getEditor(context), methodName, energy);
-				}
-				cleanup();
+		if (statistics.stepExecutionTimes != null) {
+			// a pipeline is estimated from the history of its methods
+			String[] steps = methodName.split(Pattern
+					.quote(Pipeline.SEPARATOR));
+			for (int i = 0; i < steps.length; i++) {
+				History.updateExecutionTimeDB(getEditor(context),
+						getDB(context), steps[i], statistics.resource
+								.getHostname(),
+						statistics.stepExecutionTimes[i], statistics.weight);
 			}
-		}.start();
+		}
+
+		// the radio tracker charges the invocation for the tail that follows
+		if (!statistics.resource.getHostname().equals("local")
+				&& network.getType() == ConnectivityManager.TYPE_MOBILE) {
+			RadioTracker.invocationEnded(methodName);
+		}
+		cleanup();
+	}
+
+	/**
+	 * Stores a lower bound of the execution time of a method, for the side of
+	 * a race that was cancelled after this time.
+	 */
+	static void storeExecutionTimeFloor(Context context, String methodName,
+			String resourceId, long time, float weight) {
+		if (doNotStore) {
+			return;
+		}
+		Log.d(TAG, "Storing floor of " + time + " ms for '" + methodName
+				+ "' at " + resourceId);
+		History.updateExecutionTimeFloor(getEditor(context), methodName,
+				resourceId, time, weight);
+		cleanup();
+	}
+
+	/**
+	 * Stores the energy of the radio tail that followed an invocation.
+	 */
+	static void storeTailEnergy(Context context, String methodName,
+			long energy) {
+		if (doNotStore) {
+			return;
+		}
+		synchronized (Oracle.class) {
+			History.updateTailEnergy(getDB(context), getEditor(context),
+					methodName, energy);
+			cleanup();
+		}
 	}
 
 	public static ArrayList<Resource> getAllResources(Context context) {
@@ -190,20 +232,68 @@ public class Oracle {
 	public static Answer shouldOffload(Context context, String strategy,
 			String methodName, float weight, long inputSize, long outputSize,
 			boolean screenOn) {
+		return shouldOffload(context, strategy, methodName, weight,
+				inputSize, outputSize, screenOn,
+				Collections.<StagedValue> emptyList());
+	}
+
+	/**
+	 * Decides where to run an invocation of which some of the input has been
+	 * staged. Staged values don't have to be uploaded to the resource they
+	 * were staged at, so their size is not part of the upload estimate for
+	 * that resource.
+	 * 
+	 * @param staged
+	 *            the staged values among the parameters
+	 */
+	public static Answer shouldOffload(Context context, String strategy,
+			String methodName, float weight, long inputSize, long outputSize,
+			boolean screenOn, List<StagedValue> staged) {
+		return shouldOffload(context, strategy, methodName, weight,
+				inputSize, outputSize, screenOn, staged, 1);
+	}
+
+	/**
+	 * Decides where to run an invocation that is sent together with others
+	 * over the mobile network, see {@link Cuckoo#invokeMethodDeferred}. The
+	 * invocations of the batch share the promotion of the radio and the tail
+	 * that follows, so the invocation only pays its share of their energy.
+	 * 
+	 * @param batchSize
+	 *            the number of invocations in the batch
+	 */
+	public static Answer shouldOffload(Context context, String strategy,
+			String methodName, float weight, long inputSize, long outputSize,
+			boolean screenOn, List<StagedValue> staged, int batchSize) {
 		if (forcedStrategy != null) {
 			Log.d(TAG, "forcing strategy to '" + forcedStrategy + "', was '"
 					+ strategy + "'");
 			strategy = forcedStrategy;
 		}
 		Answer answer = shouldOffload(context, strategy, methodName, weight,
-				inputSize, outputSize, true, screenOn);
+				inputSize, outputSize, true, screenOn, staged, batchSize);
 		cleanup();
 		return answer;
 	}
 
+	/**
+	 * Returns the size of the input that has to be uploaded to a resource,
+	 * without the values that were staged there.
+	 */
+	private static long unstagedSize(Resource resource, long inputSize,
+			List<StagedValue> staged) {
+		for (StagedValue value : staged) {
+			if (value.isStagedAt(resource)) {
+				inputSize -= value.getSize();
+			}
+		}
+		return Math.max(0, inputSize);
+	}
+
 	private static Answer shouldOffload(Context context, String strategy,
 			String methodName, float weight, long inputSize, long outputSize,
-			boolean firstPass, boolean screenOn) {
+			boolean firstPass, boolean screenOn, List<StagedValue> staged,
+			int batchSize) {
 		Answer answer = new Answer();
 
 		// first check network, if we don't have network, we can fail fast!
@@ -215,11 +305,20 @@ public class Oracle {
 			}
 		}
 
-		// start monitoring to know whether we should store the values later on.
-		ContextState.startMonitoringNetwork(context);
+		// keep the probes going while offloading decisions are made
+		ResourceProber.activity(context);
 
 		// retrieve all resources from the resource manager
 		ArrayList<Resource> allResources = getAllResources(context);
+		// skip the resources that are down
+		for (Iterator<Resource> it = allResources.iterator(); it.hasNext();) {
+			Resource resource = it.next();
+			if (!ResourceHealth.isAvailable(resource)
+					|| !ResourceProber.isReachable(resource)) {
+				Log.d(TAG, "skipping unavailable resource " + resource);
+				it.remove();
+			}
+		}
 		if (allResources.size() == 0) {
 			// we know for sure that we will take the local implementation
 			return answer;
@@ -229,6 +328,8 @@ public class Oracle {
 		ArrayList<Resource> unknownResources = answer.getUnknownResources();
 
 		if (strategy.equals(STRATEGY_PARALLEL)) {
+			// the resources are ranked for speed, Cuckoo hedges the
+			// invocation over them
 			strategy = STRATEGY_SPEED;
 		}
 
@@ -243,13 +344,15 @@ public class Oracle {
 				// invocation, therefore all remote resources are unknown and we
 				// can return.
 				unknownResources.addAll(allResources);
+				answer.setUncertain(true);
 				return answer;
 			}
 			for (Resource resource : allResources) {
 				try {
 					Estimate remote = estimateRemote(context, resource,
-							methodName, weight, inputSize, outputSize,
-							screenOn, strategy, local);
+							methodName, weight, unstagedSize(resource,
+									inputSize, staged), outputSize,
+							screenOn, strategy, local, batchSize);
 					// get a normal distribution based on the local and remote
 					// estimate
 					NormalDistribution distribution = new NormalDistribution(
@@ -266,11 +369,18 @@ public class Oracle {
 					if (probabilitySuccess > CONFIDENCE) {
 						resource.setSortValue(probabilitySuccess);
 						offloadResources.add(resource);
+					} else if (probabilitySuccess > CONFIDENCE - RACE_MARGIN) {
+						resource.setSortValue(probabilitySuccess);
+						answer.getCloseResources().add(resource);
+					}
+					if (Math.abs(probabilitySuccess - CONFIDENCE) < RACE_MARGIN) {
+						answer.setUncertain(true);
 					}
 				} catch (NoHistoryException e) {
 					// we don't have history for this resource, so add it to the
 					// unknown set
 					unknownResources.add(resource);
+					answer.setUncertain(true);
 				} catch (NoConnectionException e) {
 					// we don't have a connection (anymore)
 					unknownResources.clear();
@@ -282,24 +392,29 @@ public class Oracle {
 					continue;
 				}
 			}
-			// sort the list (higher probability first)
-			Collections.sort(offloadResources, Collections.reverseOrder());
+			// sort the lists (higher probability first)
+			Collections.sort(offloadResources);
+			Collections.sort(answer.getCloseResources());
 			return answer;
 		} else if (strategy.equals(STRATEGY_ENERGY_SPEED)) {
 			Answer energyAnswer = shouldOffload(context, STRATEGY_ENERGY,
-					methodName, weight, inputSize, outputSize, false);
+					methodName, weight, inputSize, outputSize, false, staged,
+					batchSize);
 			if (energyAnswer.getOffloadResources().size() == 0) {
 				return shouldOffload(context, STRATEGY_SPEED, methodName,
-						weight, inputSize, outputSize, false);
+						weight, inputSize, outputSize, false, staged,
+					batchSize);
 			} else {
 				return energyAnswer;
 			}
 		} else if (strategy.equals(STRATEGY_SPEED_ENERGY)) {
 			Answer speedAnswer = shouldOffload(context, STRATEGY_SPEED,
-					methodName, weight, inputSize, outputSize, false);
+					methodName, weight, inputSize, outputSize, false, staged,
+					batchSize);
 			if (speedAnswer.getOffloadResources().size() == 0) {
 				return shouldOffload(context, STRATEGY_ENERGY, methodName,
-						weight, inputSize, outputSize, false);
+						weight, inputSize, outputSize, false, staged,
+					batchSize);
 			} else {
 				return speedAnswer;
 			}
@@ -307,8 +422,9 @@ public class Oracle {
 			for (Resource resource : allResources) {
 				try {
 					Estimate remote = estimateRemote(context, resource,
-							methodName, weight, inputSize, outputSize,
-							screenOn, strategy, null);
+							methodName, weight, unstagedSize(resource,
+									inputSize, staged), outputSize,
+							screenOn, strategy, null, batchSize);
 					// pick the one with lowest average first
 					// TODO: this can be improved to also take variance into
 					// account
@@ -327,8 +443,8 @@ public class Oracle {
 					continue;
 				}
 			}
-			// sort the list
-			Collections.sort(offloadResources);
+			// sort the list (lower average first)
+			Collections.sort(offloadResources, Collections.reverseOrder());
 			return answer;
 		} else {
 			throw new RuntimeException("invalid strategy: " + strategy
@@ -336,6 +452,38 @@ public class Oracle {
 		}
 	}
 
+	/**
+	 * Estimates the response time of a remote invocation at a resource that
+	 * isn't exceeded with the given probability, assuming a normal
+	 * distribution.
+	 * 
+	 * @param percentile
+	 *            the probability, between 0 and 1
+	 * @return the response time in ms
+	 * @throws NoHistoryException
+	 *             if there's no history for the resource
+	 */
+	static long estimateResponseTime(Context context, Resource resource,
+			String methodName, float weight, long inputSize, long outputSize,
+			float percentile) throws NoHistoryException {
+		Estimate estimate;
+		try {
+			estimate = estimateExecutionTimeRemote(context, resource,
+					methodName, weight, inputSize, outputSize, null);
+		} catch (NoConnectionException e) {
+			throw new NoHistoryException();
+		} catch (AboveAverageException e) {
+			// can't happen without a local estimate
+			throw new NoHistoryException();
+		}
+		if (estimate.variance <= 0) {
+			return estimate.average;
+		}
+		return (long) new NormalDistribution(estimate.average,
+				Math.sqrt(estimate.variance))
+				.inverseCumulativeProbability(percentile);
+	}
+
 	private static Estimate estimateLocal(Context context, String methodName,
 			float weight, boolean screenOn, String strategy)
 			throws NoHistoryException {
@@ -376,18 +524,39 @@ public class Oracle {
 
 	private static Estimate estimateExecutionTimeLocal(Context context,
 			String methodName, float weight) throws NoHistoryException {
-		return History.estimateExecutionTimeDB(getPrefs(context), methodName,
-				"local", weight);
+		return estimateExecutionTime(context, methodName, "local", weight);
+	}
+
+	/**
+	 * Estimates the execution time of a method, or of a pipeline from the
+	 * history of the methods of its steps. The estimates of the steps are
+	 * added up, which ignores that independent steps run in parallel at a
+	 * resource, so the estimate of a pipeline is on the safe side.
+	 */
+	private static Estimate estimateExecutionTime(Context context,
+			String methodName, String resourceId, float weight)
+			throws NoHistoryException {
+		if (!methodName.contains(Pipeline.SEPARATOR)) {
+			return History.estimateExecutionTimeDB(getPrefs(context),
+					methodName, resourceId, weight);
+		}
+		Estimate result = new Estimate();
+		for (String step : methodName.split(Pattern
+				.quote(Pipeline.SEPARATOR))) {
+			result = Estimate.combine(result, History.estimateExecutionTimeDB(
+					getPrefs(context), step, resourceId, weight));
+		}
+		return result;
 	}
 
 	private static Estimate estimateRemote(Context context, Resource resource,
 			String methodName, float weight, long inputSize, long outputSize,
-			boolean screenOn, String strategy, Estimate local)
+			boolean screenOn, String strategy, Estimate local, int batchSize)
 			throws NoHistoryException, NoConnectionException,
 			AboveAverageException {
 		if (strategy.equals(STRATEGY_ENERGY)) {
 			return estimateEnergyRemote(context, resource, methodName, weight,
-					inputSize, outputSize, screenOn, local);
+					inputSize, outputSize, screenOn, local, batchSize);
 		} else {
 			// must be STRATEGY_SPEED
 			return estimateExecutionTimeRemote(context, resource, methodName,
@@ -397,23 +566,28 @@ public class Oracle {
 
 	private static Estimate estimateEnergyRemote(Context context,
 			Resource resource, String methodName, float weight, long inputSize,
-			long outputSize, boolean screenOn, Estimate local)
+			long outputSize, boolean screenOn, Estimate local, int batchSize)
 			throws NoHistoryException, NoConnectionException,
 			AboveAverageException {
 		Estimate execution = estimateExecutionTimeAtResource(context,
 				methodName, resource.getHostname(), weight);
-		// save this for use in Cuckoo.java
-		executionTime = execution;
 		double lowExecutionPower = ContextState.valueOf(context, "cpu.idle");
 		execution.average *= lowExecutionPower;
 		execution.variance *= (lowExecutionPower * lowExecutionPower);
 
 		Estimate rtt = estimateRTT(context, resource);
-		Estimate upload = estimateUpload(context, resource, inputSize);
+		Estimate upload = estimateUpload(context, resource,
+				expectedUploadSize(resource, methodName, inputSize));
 		Estimate download = estimateDownload(context, resource, outputSize);
-		Estimate hardwareSetup = estimateHardwareSetup(context);
-		Estimate totalNetworkEstimate = Estimate.combine(rtt, rtt, upload,
+		// the invocations of a batch share the promotion of the radio
+		Estimate hardwareSetup = amortize(estimateHardwareSetup(context),
+				batchSize);
+		Estimate totalNetworkEstimate = Estimate.combine(rtt, upload,
 				download, hardwareSetup);
+		if (!ConnectionPool.isWarm(resource)) {
+			// connection setup
+			totalNetworkEstimate = Estimate.combine(totalNetworkEstimate, rtt);
+		}
 
 		double networkPower;
 		if (ContextState.getNetworkInfo().getType() == ConnectivityManager.TYPE_MOBILE) {
@@ -457,13 +631,19 @@ public class Oracle {
 		}
 
 		Estimate tail = new Estimate();
-		// are we on 3G?
-		if (ContextState.getNetworkInfo().getType() == ConnectivityManager.TYPE_MOBILE
-				&& (ContextState.getNetworkInfo().getSubtype() == TelephonyManager.NETWORK_TYPE_UMTS
-						|| ContextState.getNetworkInfo().getSubtype() == TelephonyManager.NETWORK_TYPE_HSDPA
-						|| ContextState.getNetworkInfo().getSubtype() == TelephonyManager.NETWORK_TYPE_HSPA || ContextState
-						.getNetworkInfo().getSubtype() == TelephonyManager.NETWORK_TYPE_HSUPA)) {
+		// on mobile networks the radio stays powered for a tail
+		if (ContextState.getNetworkInfo().getType() == ConnectivityManager.TYPE_MOBILE) {
 			tail = History.estimateTailEnergy(getPrefs(context), methodName);
+			if (tail.average == 0) {
+				// no invocation has been charged yet, assume the whole tail,
+				// shared by the invocations of the batch (charged tails
+				// already are shares)
+				Estimate time = RadioTracker.estimateTail();
+				tail.average = RadioTracker.tailEnergy(context, time.average);
+				double scale = (double) tail.average / Math.max(1, time.average);
+				tail.variance = (float) (time.variance * scale * scale);
+				tail = amortize(tail, batchSize);
+			}
 		}
 		total = Estimate.combine(total, tail);
 		if (total.average > local.average) {
@@ -479,9 +659,8 @@ public class Oracle {
 
 		Estimate execution = estimateExecutionTimeAtResource(context,
 				methodName, resource.getHostname(), weight);
-		// save this in a global for later access in Cuckoo.java
-		executionTime = execution;
-		Estimate upload = estimateUpload(context, resource, inputSize);
+		Estimate upload = estimateUpload(context, resource,
+				expectedUploadSize(resource, methodName, inputSize));
 		Estimate totalEstimate = Estimate.combine(execution, upload);
 		if (local != null && totalEstimate.average > local.average) {
 			throw new AboveAverageException();
@@ -497,12 +676,14 @@ public class Oracle {
 			throw new AboveAverageException();
 		}
 		// rtt twice, once for tcp setup (= socket creation) and once for actual
-		// request/reply.
+		// request/reply. A pooled connection has no tcp setup.
 		// do this later on, it is more costly, because it might need to query
 		// the location service
 		Estimate rtt = estimateRTT(context, resource);
 		totalEstimate = Estimate.combine(totalEstimate, rtt);
-		totalEstimate = Estimate.combine(totalEstimate, rtt);
+		if (!ConnectionPool.isWarm(resource)) {
+			totalEstimate = Estimate.combine(totalEstimate, rtt);
+		}
 		if (local != null && totalEstimate.average > local.average) {
 			throw new AboveAverageException();
 		}
@@ -514,6 +695,12 @@ public class Oracle {
 	private static final double SPEED_OF_LIGHT_FIBER = 20086; // m/ms
 
 	private static Estimate estimateRTT(Context context, Resource resource) {
+		// measured round trip times beat the model, which is only a
+		// fallback for resources that haven't been probed on this network
+		Estimate measured = ConnectionPool.getRTT(resource);
+		if (measured != null) {
+			return measured;
+		}
 		Estimate result = estimateEdgeRTT(context, resource);
 		Location lastFix = ContextState.getLastKnownLocation(context);
 		if (lastFix != null) {
@@ -568,6 +755,73 @@ public class Oracle {
 		return result;
 	}
 
+	/**
+	 * Estimates the upload bandwidth to a resource for a payload of the given
+	 * size, used to choose the compression level of the payload.
+	 * 
+	 * @return the bandwidth in bytes per ms, or 0 if there is no estimate
+	 */
+	static double estimateUploadBandwidth(Context context, Resource resource,
+			long inputSize) {
+		try {
+			Estimate upload = estimateUpload(context, resource, inputSize);
+			return upload.average <= 0 ? 0 : (double) inputSize
+					/ upload.average;
+		} catch (NoConnectionException e) {
+			return 0;
+		}
+	}
+
+	/**
+	 * Estimates the download bandwidth from a resource, this is sent to the
+	 * resource to choose the compression level of the result.
+	 * 
+	 * @return the bandwidth in bytes per ms, or 0 if there is no estimate
+	 */
+	static double estimateDownloadBandwidth(Context context, Resource resource) {
+		// the size of the result is not known yet
+		long outputSize = 1024 * 1024;
+		try {
+			Estimate download = estimateDownload(context, resource, outputSize);
+			return download.average <= 0 ? 0 : (double) outputSize
+					/ download.average;
+		} catch (NoConnectionException e) {
+			return 0;
+		}
+	}
+
+	private static String dedupKey(Resource resource, String methodName) {
+		return methodName + "@" + resource.getHostname() + ":"
+				+ resource.getPort();
+	}
+
+	private static void updateDedupFraction(Resource resource,
+			String methodName, double fraction) {
+		String key = dedupKey(resource, methodName);
+		synchronized (sDedupFraction) {
+			Double previous = sDedupFraction.get(key);
+			// the first invocation uploads everything, the next ones are
+			// likely to be similar to the last one
+			sDedupFraction.put(key, previous == null ? fraction
+					: (previous + fraction) / 2);
+		}
+	}
+
+	/**
+	 * Returns the number of bytes that are expected to be uploaded for an
+	 * input of the given size, taking into account the large parameters that
+	 * the resource held in its blob cache for earlier invocations of the
+	 * method.
+	 */
+	static long expectedUploadSize(Resource resource, String methodName,
+			long inputSize) {
+		Double fraction = sDedupFraction.get(dedupKey(resource, methodName));
+		if (fraction == null) {
+			return inputSize;
+		}
+		return (long) (inputSize * (1 - fraction));
+	}
+
 	private static Estimate estimateUpload(Context context, Resource resource,
 			long inputSize) throws NoConnectionException {
 		long theoreticalFastest = (long) (inputSize / bandwidthLimitUpload());
@@ -886,47 +1140,56 @@ public class Oracle {
 		}
 	}
 
+	/**
+	 * Estimates how long an invocation can leave WiFi in power save mode
+	 * after its request has been sent: the execution time at the resource
+	 * minus two standard deviations, about 95% of the executions take longer
+	 * (if normal distribution).
+	 * 
+	 * @return the time in ms, 0 if there is no history
+	 */
+	static long estimateWakeDelay(Context context, String methodName,
+			Resource resource, float weight) {
+		try {
+			Estimate execution = estimateExecutionTimeAtResource(context,
+					methodName, resource.getHostname(), weight);
+			return Math.max(0, (long) (execution.average - 2 * Math
+					.sqrt(execution.variance)));
+		} catch (NoHistoryException e) {
+			return 0;
+		}
+	}
+
 	private static Estimate estimateExecutionTimeAtResource(Context context,
 			String methodName, String resourceId, float weight)
 			throws NoHistoryException {
-		return History.estimateExecutionTimeDB(getPrefs(context), methodName,
-				resourceId, weight);
+		return estimateExecutionTime(context, methodName, resourceId, weight);
 	}
 
 	private static Estimate estimateHardwareSetup(Context context) {
 		if (ContextState.getNetworkInfo().getType() == ConnectivityManager.TYPE_MOBILE) {
-			switch (ContextState.getNetworkInfo().getSubtype()) {
-			case TelephonyManager.NETWORK_TYPE_HSDPA:
-			case TelephonyManager.NETWORK_TYPE_HSPA:
-			case TelephonyManager.NETWORK_TYPE_HSUPA:
-			case TelephonyManager.NETWORK_TYPE_UMTS:
-			case TelephonyManager.NETWORK_TYPE_HSPAP:
-			case TelephonyManager.NETWORK_TYPE_LTE:
-				TelephonyManager manager = (TelephonyManager) context
-						.getSystemService(Context.TELEPHONY_SERVICE);
-				switch (manager.getDataActivity()) {
-				case TelephonyManager.DATA_ACTIVITY_IN:
-				case TelephonyManager.DATA_ACTIVITY_INOUT:
-				case TelephonyManager.DATA_ACTIVITY_OUT:
-					// no additional hardware setup time...
-					return new Estimate();
-				default:
-					// we don't know, we might or might not have additional
-					// hardware setup time.
-					Estimate result = new Estimate();
-					result.average = 1000;
-					result.variance = 1000 * 1000;
-					return result;
-				}
-			default:
-				break;
-			}
+			// a dormant radio first has to be promoted
+			return RadioTracker.estimatePromotion();
 		}
 		return new Estimate();
 	}
 
 	/************** HELPER methods ***************/
 
+	/**
+	 * Returns the share of one of a number of invocations in a cost they pay
+	 * together.
+	 */
+	private static Estimate amortize(Estimate estimate, int count) {
+		if (count <= 1) {
+			return estimate;
+		}
+		Estimate share = new Estimate();
+		share.average = estimate.average / count;
+		share.variance = estimate.variance / (count * count);
+		return share;
+	}
+
 	/**
 	 * computes the variance for a given range, such that 95% of the values will
 	 * be within the range from the average if there is a normal distribution.
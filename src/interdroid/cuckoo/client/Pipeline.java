@@ -0,0 +1,113 @@
+package interdroid.cuckoo.client;
+
+import interdroid.cuckoo.base.StepResult;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A number of method invocations that are offloaded together in a single
+ * request. The result of a step can be used as a parameter of a later step,
+ * it then stays at the server. Steps that don't depend on each other are
+ * executed in parallel, only the results of the steps that are not used by
+ * another step are returned.
+ */
+public class Pipeline {
+
+	/**
+	 * Separates the methods in the name of a pipeline
+	 */
+	static final String SEPARATOR = "|";
+
+	/**
+	 * A step of a pipeline.
+	 */
+	public static class Step {
+
+		final int index;
+		final String serviceName;
+		final String methodName;
+		final Class<?>[] parameterTypes;
+		final Object[] parameters;
+
+		private Step(int index, String serviceName, String methodName,
+				Class<?>[] parameterTypes, Object[] parameters) {
+			this.index = index;
+			this.serviceName = serviceName;
+			this.methodName = methodName;
+			this.parameterTypes = parameterTypes;
+			this.parameters = parameters;
+		}
+
+		/**
+		 * Returns a parameter that refers to the result of this step.
+		 */
+		public StepResult result() {
+			return new StepResult(index);
+		}
+
+		/**
+		 * Returns the index of this step, which is also the index of its
+		 * result.
+		 */
+		public int getIndex() {
+			return index;
+		}
+
+	}
+
+	private final List<Step> mSteps = new ArrayList<Step>();
+
+	/**
+	 * Adds a step to the pipeline.
+	 * 
+	 * @param serviceName
+	 *            the name of the service
+	 * @param methodName
+	 *            the name of the method
+	 * @param parameterTypes
+	 *            the types of the parameters
+	 * @param parameters
+	 *            the values of the parameters, the result of an earlier step
+	 *            is passed as {@link Step#result()}
+	 * @return the step
+	 * @throws IllegalArgumentException
+	 *             if a parameter refers to a step that is not an earlier step
+	 *             of this pipeline
+	 */
+	public Step add(String serviceName, String methodName,
+			Class<?>[] parameterTypes, Object... parameters) {
+		for (Object parameter : parameters) {
+			if (parameter instanceof StepResult
+					&& ((StepResult) parameter).getStep() >= mSteps.size()) {
+				throw new IllegalArgumentException(
+						"Steps can only use the results of earlier steps");
+			}
+		}
+		Step step = new Step(mSteps.size(), serviceName, methodName,
+				parameterTypes, parameters);
+		mSteps.add(step);
+		return step;
+	}
+
+	List<Step> getSteps() {
+		return mSteps;
+	}
+
+	/**
+	 * Returns the name under which the Oracle keeps the statistics of this
+	 * pipeline, the names of the methods of the steps separated by
+	 * {@link #SEPARATOR}.
+	 */
+	String getName() {
+		StringBuilder name = new StringBuilder();
+		for (Step step : mSteps) {
+			if (name.length() > 0) {
+				name.append(SEPARATOR);
+			}
+			name.append(step.serviceName + "." + step.methodName);
+		}
+		return name.toString();
+	}
+
+}
@@ -0,0 +1,131 @@
+package interdroid.cuckoo.client;
+
+import java.util.concurrent.Callable;
+
+import android.util.Log;
+
+/**
+ * A race between the local and the remote execution of an invocation. Both
+ * run on their own thread, the first result wins and the other side is
+ * interrupted. An interrupted remote invocation is cancelled at the resource,
+ * the local implementation has to react to the interrupt itself, otherwise it
+ * runs to completion in the background. If one side fails, the result of the
+ * other side is used.
+ */
+class Race {
+
+	private static final String TAG = "Cuckoo Race";
+
+	private final Thread mLocal;
+
+	private final Thread mRemote;
+
+	private final long mStart = System.currentTimeMillis();
+
+	private boolean mDone;
+
+	private boolean mLocalWon;
+
+	private Object mResult;
+
+	private long mTime;
+
+	private Exception mLocalFailure;
+
+	private Exception mRemoteFailure;
+
+	Race(final Callable<Object> local, final Callable<Object> remote) {
+		mLocal = new Thread("Cuckoo race local") {
+			public void run() {
+				try {
+					finished(true, local.call(), null);
+				} catch (Exception e) {
+					finished(true, null, e);
+				}
+			}
+		};
+		mRemote = new Thread("Cuckoo race remote") {
+			public void run() {
+				try {
+					finished(false, remote.call(), null);
+				} catch (Exception e) {
+					finished(false, null, e);
+				}
+			}
+		};
+		mLocal.setDaemon(true);
+		mRemote.setDaemon(true);
+	}
+
+	/**
+	 * Runs the race and waits for the winner.
+	 * 
+	 * @return the result of the winner
+	 * @throws InterruptedException
+	 *             if the calling thread is interrupted, both sides are
+	 *             interrupted too
+	 * @throws Exception
+	 *             the failure of the local side if both sides failed
+	 */
+	synchronized Object run() throws Exception {
+		mLocal.start();
+		mRemote.start();
+		try {
+			while (!mDone
+					&& (mLocalFailure == null || mRemoteFailure == null)) {
+				wait();
+			}
+		} catch (InterruptedException e) {
+			// nobody waits for the result anymore
+			mDone = true;
+			mLocal.interrupt();
+			mRemote.interrupt();
+			throw e;
+		}
+		if (!mDone) {
+			throw mLocalFailure;
+		}
+		Log.d(TAG, (mLocalWon ? "local" : "remote") + " won after " + mTime
+				+ " ms.");
+		// cancel the loser
+		(mLocalWon ? mRemote : mLocal).interrupt();
+		return mResult;
+	}
+
+	/**
+	 * Returns whether the local side won.
+	 */
+	synchronized boolean localWon() {
+		return mLocalWon;
+	}
+
+	/**
+	 * Returns the time from the start until the winner finished, which is a
+	 * lower bound of the time of the loser.
+	 */
+	synchronized long getTime() {
+		return mTime;
+	}
+
+	private synchronized void finished(boolean local, Object result,
+			Exception failure) {
+		if (mDone) {
+			return;
+		}
+		if (failure != null) {
+			Log.d(TAG, (local ? "local" : "remote") + " failed: " + failure);
+			if (local) {
+				mLocalFailure = failure;
+			} else {
+				mRemoteFailure = failure;
+			}
+		} else {
+			mDone = true;
+			mLocalWon = local;
+			mResult = result;
+			mTime = System.currentTimeMillis() - mStart;
+		}
+		notifyAll();
+	}
+
+}
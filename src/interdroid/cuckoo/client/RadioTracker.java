@@ -0,0 +1,322 @@
+package interdroid.cuckoo.client;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.telephony.PhoneStateListener;
+import android.telephony.TelephonyManager;
+import android.util.Log;
+
+/**
+ * Follows the state of the cellular radio for the whole process. The data
+ * activity reported by the {@link TelephonyManager} tells when there is
+ * traffic and when the radio goes dormant, from that the tracker learns per
+ * radio technology how long the tail after the last traffic lasts, and how
+ * long it takes to promote a dormant radio, which the {@link ConnectionPool}
+ * reports when it connects while the radio is dormant.
+ *
+ * Invocations that ended on a mobile network are charged for the tail that
+ * follows them: when the radio goes dormant the energy of the tail is split
+ * over the invocations that ended since the last traffic, an invocation that
+ * is followed by other traffic only pays for the time until that traffic.
+ */
+class RadioTracker {
+
+	private static final String TAG = "Cuckoo RadioTracker";
+
+	/**
+	 * The promotion delay that is assumed for a technology that hasn't been
+	 * measured, we might or might not have to wait for it
+	 */
+	private static final long DEFAULT_PROMOTION = 1000;
+
+	/**
+	 * The longest tail, an invocation is charged at most this much if the
+	 * radio doesn't report that it went dormant
+	 */
+	private static final long MAX_TAIL = Oracle.TAIL_HIGH + Oracle.TAIL_LOW;
+
+	/**
+	 * Traffic that is reported this soon after an invocation ended belongs to
+	 * the invocation, the modem reports data activity with some delay
+	 */
+	private static final long REPORT_DELAY = 2000;
+
+	/**
+	 * Gain of the moving averages of the learned delays
+	 */
+	private static final double ALPHA = 0.25;
+
+	/**
+	 * An invocation that has ended and waits to be charged for its tail
+	 */
+	private static class Pending {
+		final String methodName;
+		final long ended;
+
+		Pending(String methodName, long ended) {
+			this.methodName = methodName;
+			this.ended = ended;
+		}
+	}
+
+	/**
+	 * A delay that is learned from samples
+	 */
+	private static class Learned {
+		double average;
+		double variance;
+		int samples;
+
+		void add(long sample) {
+			if (samples++ == 0) {
+				average = sample;
+				variance = (sample / 2.0) * (sample / 2.0);
+				return;
+			}
+			double delta = sample - average;
+			average += ALPHA * delta;
+			variance = (1 - ALPHA) * (variance + ALPHA * delta * delta);
+		}
+
+		Estimate toEstimate() {
+			Estimate estimate = new Estimate();
+			estimate.average = Math.round(average);
+			estimate.variance = (float) variance;
+			return estimate;
+		}
+	}
+
+	/**
+	 * The learned tail durations and promotion delays, by network subtype
+	 */
+	private static final Map<Integer, Learned> sTails = new HashMap<Integer, Learned>();
+	private static final Map<Integer, Learned> sPromotions = new HashMap<Integer, Learned>();
+
+	private static final List<Pending> sPending = new ArrayList<Pending>();
+
+	private static Context sContext;
+
+	private static Handler sHandler;
+
+	private static volatile boolean sDormant;
+
+	/**
+	 * The time of the last reported traffic, 0 if there was none since the
+	 * radio went dormant
+	 */
+	private static long sLastTraffic;
+
+	/**
+	 * Charges the pending invocations if the radio didn't report that it went
+	 * dormant in time
+	 */
+	private static final Runnable sTimeout = new Runnable() {
+		public void run() {
+			synchronized (RadioTracker.class) {
+				if (!sPending.isEmpty()) {
+					Log.d(TAG, "radio didn't go dormant, charging "
+							+ sPending.size() + " invocation(s) "
+							+ MAX_TAIL + " ms");
+					chargeTail(MAX_TAIL);
+				}
+			}
+		}
+	};
+
+	/**
+	 * Starts following the radio, if it isn't followed yet.
+	 */
+	static synchronized void start(Context context) {
+		if (sContext != null) {
+			return;
+		}
+		sContext = context.getApplicationContext() == null ? context : context
+				.getApplicationContext();
+		final TelephonyManager manager = (TelephonyManager) sContext
+				.getSystemService(Context.TELEPHONY_SERVICE);
+		if (manager == null) {
+			return;
+		}
+		sDormant = manager.getDataActivity() == TelephonyManager.DATA_ACTIVITY_DORMANT;
+		HandlerThread thread = new HandlerThread("Cuckoo radio");
+		thread.start();
+		sHandler = new Handler(thread.getLooper());
+		// the listener gets its callbacks on the looper it is created on
+		sHandler.post(new Runnable() {
+			public void run() {
+				manager.listen(new PhoneStateListener() {
+					public void onDataActivity(int direction) {
+						dataActivity(direction);
+						if (!sDormant) {
+							// deferred invocations can use the radio now
+							DeferredInvoker.radioActive();
+						}
+					}
+				}, PhoneStateListener.LISTEN_DATA_ACTIVITY);
+			}
+		});
+	}
+
+	/**
+	 * Returns whether the radio is dormant, a connection first has to wait
+	 * for its promotion.
+	 */
+	static boolean isDormant() {
+		return sDormant;
+	}
+
+	/**
+	 * Registers that an invocation over the mobile network ended, it will be
+	 * charged for the tail that follows.
+	 */
+	static synchronized void invocationEnded(String methodName) {
+		if (sHandler == null) {
+			return;
+		}
+		long now = System.currentTimeMillis();
+		sPending.add(new Pending(methodName, now));
+		sLastTraffic = Math.max(sLastTraffic, now);
+		sHandler.removeCallbacks(sTimeout);
+		sHandler.postDelayed(sTimeout, MAX_TAIL + REPORT_DELAY);
+	}
+
+	/**
+	 * Registers how long a connection took to set up while the radio was
+	 * dormant, beyond the usual round trip time.
+	 */
+	static synchronized void promoted(long delay) {
+		int subtype = getSubtype();
+		if (subtype < 0) {
+			return;
+		}
+		Log.d(TAG, "promotion took " + delay + " ms");
+		learned(sPromotions, subtype).add(Math.max(0, delay));
+	}
+
+	/**
+	 * Returns the time it takes before the radio can be used, 0 if it is
+	 * active.
+	 */
+	static synchronized Estimate estimatePromotion() {
+		if (!sDormant && sHandler != null) {
+			return new Estimate();
+		}
+		Learned promotion = sPromotions.get(getSubtype());
+		if (promotion != null) {
+			return promotion.toEstimate();
+		}
+		Estimate result = new Estimate();
+		result.average = DEFAULT_PROMOTION;
+		result.variance = DEFAULT_PROMOTION * DEFAULT_PROMOTION;
+		return result;
+	}
+
+	/**
+	 * Returns the duration of the tail on the current network.
+	 */
+	static synchronized Estimate estimateTail() {
+		Learned tail = sTails.get(getSubtype());
+		if (tail != null) {
+			return tail.toEstimate();
+		}
+		Estimate result = new Estimate();
+		result.average = MAX_TAIL;
+		result.variance = (MAX_TAIL / 2f) * (MAX_TAIL / 2f);
+		return result;
+	}
+
+	/**
+	 * Returns the energy of a tail that lasts the given time, the radio uses
+	 * half the power after {@link Oracle#TAIL_HIGH} ms.
+	 */
+	static long tailEnergy(Context context, long time) {
+		double networkPower = ContextState.valueOf(context, "radio.active");
+		return (long) (Math.min(time, Oracle.TAIL_HIGH) * networkPower + Math
+				.max(0, time - Oracle.TAIL_HIGH) * networkPower / 2);
+	}
+
+	private static synchronized void dataActivity(int direction) {
+		long now = System.currentTimeMillis();
+		switch (direction) {
+		case TelephonyManager.DATA_ACTIVITY_IN:
+		case TelephonyManager.DATA_ACTIVITY_OUT:
+		case TelephonyManager.DATA_ACTIVITY_INOUT:
+			sDormant = false;
+			sLastTraffic = now;
+			// traffic that an invocation didn't cause cuts its tail short
+			Iterator<Pending> iterator = sPending.iterator();
+			while (iterator.hasNext()) {
+				Pending pending = iterator.next();
+				if (now - pending.ended > REPORT_DELAY) {
+					long time = Math.min(now - pending.ended, MAX_TAIL);
+					Oracle.storeTailEnergy(sContext, pending.methodName,
+							tailEnergy(sContext, time));
+					iterator.remove();
+				}
+			}
+			break;
+		case TelephonyManager.DATA_ACTIVITY_NONE:
+			sDormant = false;
+			break;
+		case TelephonyManager.DATA_ACTIVITY_DORMANT:
+			if (!sDormant && sLastTraffic > 0) {
+				long tail = now - sLastTraffic;
+				int subtype = getSubtype();
+				if (subtype >= 0 && tail <= MAX_TAIL) {
+					Log.d(TAG, "tail took " + tail + " ms");
+					learned(sTails, subtype).add(tail);
+				}
+				chargeTail(Math.min(tail, MAX_TAIL));
+			}
+			sDormant = true;
+			sLastTraffic = 0;
+			break;
+		default:
+			break;
+		}
+	}
+
+	/**
+	 * Splits the energy of a tail over the pending invocations.
+	 */
+	private static void chargeTail(long time) {
+		sHandler.removeCallbacks(sTimeout);
+		if (sPending.isEmpty()) {
+			return;
+		}
+		long share = tailEnergy(sContext, time) / sPending.size();
+		for (Pending pending : sPending) {
+			Oracle.storeTailEnergy(sContext, pending.methodName, share);
+		}
+		sPending.clear();
+	}
+
+	/**
+	 * Returns the subtype of the current network, -1 if it isn't mobile.
+	 */
+	private static int getSubtype() {
+		NetworkSnapshot network = ContextState.getNetwork();
+		if (network.getType() != ConnectivityManager.TYPE_MOBILE) {
+			return -1;
+		}
+		return network.getSubtype();
+	}
+
+	private static Learned learned(Map<Integer, Learned> map, int subtype) {
+		Learned learned = map.get(subtype);
+		if (learned == null) {
+			learned = new Learned();
+			map.put(subtype, learned);
+		}
+		return learned;
+	}
+
+}
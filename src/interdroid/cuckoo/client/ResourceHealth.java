@@ -0,0 +1,228 @@
+package interdroid.cuckoo.client;
+
+import interdroid.cuckoo.client.Cuckoo.Resource;
+
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+
+import android.util.Log;
+
+/**
+ * Keeps track of the health of the resources, so that the Oracle can skip a
+ * resource that is down instead of waiting for it to time out on every
+ * invocation. Each resource has a circuit breaker: it is closed while the
+ * resource works, it opens after {@link #FAILURES_PROPERTY} consecutive
+ * failures or if the recent error rate exceeds {@link #ERROR_RATE_PROPERTY}.
+ * An open resource is skipped. After {@link #OPEN_TIME_PROPERTY} ms it is
+ * half-open and a probe tries to connect to it in the background, if that
+ * succeeds the breaker closes, otherwise it opens again.
+ * 
+ * Only failures of the resource count, such as connection failures and
+ * timeouts, not exceptions thrown by the invoked method.
+ */
+class ResourceHealth {
+
+	private static final String TAG = "Cuckoo ResourceHealth";
+
+	/**
+	 * System property with the number of consecutive failures that opens the
+	 * breaker
+	 */
+	static final String FAILURES_PROPERTY = "interdroid.cuckoo.breaker.failures";
+
+	static final int DEFAULT_FAILURES = 3;
+
+	/**
+	 * System property with the recent error rate that opens the breaker,
+	 * between 0 and 1
+	 */
+	static final String ERROR_RATE_PROPERTY = "interdroid.cuckoo.breaker.errorrate";
+
+	static final float DEFAULT_ERROR_RATE = .5f;
+
+	/**
+	 * System property with the time in ms a breaker stays open before the
+	 * resource is probed
+	 */
+	static final String OPEN_TIME_PROPERTY = "interdroid.cuckoo.breaker.open";
+
+	static final long DEFAULT_OPEN_TIME = 30 * 1000;
+
+	/**
+	 * The weight of the last invocation in the recent error rate
+	 */
+	private static final float ALPHA = .2f;
+
+	/**
+	 * The error rate is only used after this many invocations
+	 */
+	private static final int MIN_SAMPLES = 10;
+
+	static final int CLOSED = 0;
+	static final int OPEN = 1;
+	static final int HALF_OPEN = 2;
+
+	private static class Health {
+
+		int state = CLOSED;
+
+		int consecutiveFailures;
+
+		float errorRate;
+
+		int samples;
+
+		long openedAt;
+
+	}
+
+	private static final Map<String, Health> sHealth = new HashMap<String, Health>();
+
+	private static int sFailures;
+
+	private static float sErrorRate;
+
+	private static long sOpenTime;
+
+	static {
+		sFailures = Integer.parseInt(System.getProperty(FAILURES_PROPERTY, ""
+				+ DEFAULT_FAILURES));
+		sErrorRate = Float.parseFloat(System.getProperty(ERROR_RATE_PROPERTY,
+				"" + DEFAULT_ERROR_RATE));
+		sOpenTime = Long.parseLong(System.getProperty(OPEN_TIME_PROPERTY, ""
+				+ DEFAULT_OPEN_TIME));
+	}
+
+	/**
+	 * Returns whether invocations should be sent to a resource. If the open
+	 * time of the breaker has passed, the resource is probed in the
+	 * background, it is available again once the probe succeeded.
+	 */
+	static boolean isAvailable(Resource resource) {
+		Health health;
+		synchronized (ResourceHealth.class) {
+			health = sHealth.get(key(resource));
+			if (health == null || health.state == CLOSED) {
+				return true;
+			}
+			if (health.state == HALF_OPEN
+					|| System.currentTimeMillis() - health.openedAt < sOpenTime) {
+				return false;
+			}
+			health.state = HALF_OPEN;
+		}
+		probe(resource);
+		return false;
+	}
+
+	/**
+	 * Returns the state of the breaker of a resource.
+	 */
+	static synchronized int getState(Resource resource) {
+		Health health = sHealth.get(key(resource));
+		return health == null ? CLOSED : health.state;
+	}
+
+	/**
+	 * Returns the recent error rate of a resource, between 0 and 1.
+	 */
+	static synchronized float getErrorRate(Resource resource) {
+		Health health = sHealth.get(key(resource));
+		return health == null ? 0 : health.errorRate;
+	}
+
+	/**
+	 * Orders resources by their recent error rate, lowest first.
+	 */
+	static final Comparator<Resource> BY_ERROR_RATE = new Comparator<Resource>() {
+		public int compare(Resource a, Resource b) {
+			return Float.compare(getErrorRate(a), getErrorRate(b));
+		}
+	};
+
+	/**
+	 * Registers that a resource handled an invocation.
+	 */
+	static synchronized void success(Resource resource) {
+		Health health = get(resource);
+		if (health.state != CLOSED) {
+			Log.d(TAG, "closing the breaker of " + resource);
+		}
+		health.state = CLOSED;
+		health.consecutiveFailures = 0;
+		update(health, 0);
+	}
+
+	/**
+	 * Registers that a resource failed, the breaker opens if the resource
+	 * failed too often.
+	 */
+	static synchronized void failure(Resource resource) {
+		Health health = get(resource);
+		health.consecutiveFailures++;
+		update(health, 1);
+		if (health.state == HALF_OPEN
+				|| health.consecutiveFailures >= sFailures
+				|| (health.samples >= MIN_SAMPLES && health.errorRate > sErrorRate)) {
+			if (health.state == CLOSED) {
+				Log.d(TAG, "opening the breaker of " + resource + " after "
+						+ health.consecutiveFailures
+						+ " consecutive failures, error rate "
+						+ health.errorRate);
+			}
+			health.state = OPEN;
+			health.openedAt = System.currentTimeMillis();
+		}
+	}
+
+	private static void update(Health health, int failed) {
+		health.errorRate = health.samples == 0 ? failed : ALPHA * failed
+				+ (1 - ALPHA) * health.errorRate;
+		health.samples++;
+	}
+
+	private static Health get(Resource resource) {
+		Health health = sHealth.get(key(resource));
+		if (health == null) {
+			health = new Health();
+			sHealth.put(key(resource), health);
+		}
+		return health;
+	}
+
+	/**
+	 * Pings a resource in the background over its pooled connection, a
+	 * connection that answers is kept in the {@link ConnectionPool} for the
+	 * next invocation.
+	 */
+	private static void probe(final Resource resource) {
+		Log.d(TAG, "probing " + resource);
+		Thread probe = new Thread("Cuckoo probe " + resource) {
+			public void run() {
+				Communicator communicator = null;
+				try {
+					communicator = ConnectionPool.acquire(resource);
+					communicator.use();
+					long rtt = communicator.ping();
+					ConnectionPool.release(communicator);
+					ConnectionPool.updateRTT(resource, rtt);
+					success(resource);
+				} catch (Exception e) {
+					if (communicator != null) {
+						ConnectionPool.discard(communicator);
+					}
+					Log.d(TAG, "probe of " + resource + " failed: " + e);
+					failure(resource);
+				}
+			}
+		};
+		probe.setDaemon(true);
+		probe.start();
+	}
+
+	private static String key(Resource resource) {
+		return resource.getHostname() + ":" + resource.getPort();
+	}
+
+}
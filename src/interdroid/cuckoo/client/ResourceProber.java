@@ -0,0 +1,205 @@
+package interdroid.cuckoo.client;
+
+import interdroid.cuckoo.client.Cuckoo.Resource;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.BatteryManager;
+import android.os.PowerManager;
+import android.util.Log;
+
+/**
+ * Probes the known resources in the background, so that unreachable
+ * resources are known before an invocation fails on them and the Oracle has
+ * measured round trip times per network. The prober runs while the app is
+ * active, that is while it made an offloading decision in the last
+ * {@link #ACTIVE_TIME_PROPERTY} ms, and only on unmetered networks. Each
+ * resource gets a ping over its pooled connection, the round trip time goes
+ * to the {@link ConnectionPool}, a resource that doesn't answer is
+ * unreachable on this network until a later probe succeeds.
+ * 
+ * The probe interval adapts: it is {@link #INTERVAL_PROPERTY} ms while
+ * offloading decisions are made, it doubles for every round without any,
+ * and it is four times as long when the screen is off or the battery is low
+ * and not charging.
+ */
+class ResourceProber {
+
+	private static final String TAG = "Cuckoo ResourceProber";
+
+	/**
+	 * System property with the shortest time in ms between two rounds of
+	 * probes
+	 */
+	static final String INTERVAL_PROPERTY = "interdroid.cuckoo.probe.interval";
+
+	static final long DEFAULT_INTERVAL = 30 * 1000;
+
+	/**
+	 * System property with the time in ms after the last offloading decision
+	 * the prober stops
+	 */
+	static final String ACTIVE_TIME_PROPERTY = "interdroid.cuckoo.probe.active";
+
+	static final long DEFAULT_ACTIVE_TIME = 5 * 60 * 1000;
+
+	/**
+	 * Below this battery level the prober slows down, unless charging
+	 */
+	private static final float LOW_BATTERY = .3f;
+
+	private static final long INTERVAL = Long.parseLong(System.getProperty(
+			INTERVAL_PROPERTY, "" + DEFAULT_INTERVAL));
+
+	private static final long ACTIVE_TIME = Long.parseLong(System
+			.getProperty(ACTIVE_TIME_PROPERTY, "" + DEFAULT_ACTIVE_TIME));
+
+	/**
+	 * Whether the last probe of a resource succeeded, by network and
+	 * resource
+	 */
+	private static final Map<String, Boolean> sReachable = new HashMap<String, Boolean>();
+
+	private static Thread sThread;
+
+	private static long sLastActivity;
+
+	/**
+	 * Registers that the app is making an offloading decision, the prober is
+	 * started if it isn't running.
+	 */
+	static synchronized void activity(Context context) {
+		sLastActivity = System.currentTimeMillis();
+		if (sThread != null) {
+			return;
+		}
+		final Context applicationContext = context.getApplicationContext() == null ? context
+				: context.getApplicationContext();
+		sThread = new Thread("Cuckoo prober") {
+			public void run() {
+				probeWhileActive(applicationContext);
+			}
+		};
+		sThread.setDaemon(true);
+		sThread.start();
+	}
+
+	/**
+	 * Returns whether a resource is reachable on the current network, as far
+	 * as the prober knows. A resource that hasn't been probed is reachable.
+	 */
+	static boolean isReachable(Resource resource) {
+		String key = ConnectionPool.networkKey(resource);
+		synchronized (ResourceProber.class) {
+			return !Boolean.FALSE.equals(sReachable.get(key));
+		}
+	}
+
+	private static void probeWhileActive(Context context) {
+		long interval = INTERVAL;
+		long lastRound = 0;
+		try {
+			while (true) {
+				long idle;
+				synchronized (ResourceProber.class) {
+					idle = System.currentTimeMillis() - sLastActivity;
+					if (idle > ACTIVE_TIME) {
+						Log.d(TAG, "app inactive, stopping");
+						sThread = null;
+						return;
+					}
+				}
+				long wait = interval;
+				if (!isScreenOn(context) || isBatteryLow(context)) {
+					wait *= 4;
+				}
+				long sleep = lastRound + wait - System.currentTimeMillis();
+				if (sleep > 0) {
+					// wake up regularly to see whether the app is active
+					Thread.sleep(Math.min(sleep, INTERVAL));
+					continue;
+				}
+				lastRound = System.currentTimeMillis();
+				if (isUnmetered(context)) {
+					probeAll(context);
+				}
+				// back off while no decisions are made
+				interval = idle < interval ? INTERVAL : Math.min(2 * interval,
+						ACTIVE_TIME);
+			}
+		} catch (InterruptedException e) {
+			synchronized (ResourceProber.class) {
+				sThread = null;
+			}
+		}
+	}
+
+	private static void probeAll(Context context) {
+		for (Resource resource : Oracle.getAllResources(context)) {
+			probe(resource);
+		}
+	}
+
+	/**
+	 * Pings a resource over its pooled connection.
+	 */
+	static void probe(Resource resource) {
+		boolean reachable;
+		Communicator communicator = null;
+		try {
+			communicator = ConnectionPool.acquire(resource);
+			communicator.use();
+			long rtt = communicator.ping();
+			ConnectionPool.release(communicator);
+			ConnectionPool.updateRTT(resource, rtt);
+			ResourceHealth.success(resource);
+			reachable = true;
+			Log.d(TAG, "probed " + resource + ", rtt " + rtt + " ms");
+		} catch (IOException e) {
+			if (communicator != null) {
+				ConnectionPool.discard(communicator);
+			}
+			reachable = false;
+			Log.d(TAG, "probe of " + resource + " failed: " + e);
+		}
+		String key = ConnectionPool.networkKey(resource);
+		synchronized (ResourceProber.class) {
+			sReachable.put(key, reachable);
+		}
+	}
+
+	private static boolean isUnmetered(Context context) {
+		ConnectivityManager connectivityManager = (ConnectivityManager) context
+				.getSystemService(Context.CONNECTIVITY_SERVICE);
+		NetworkInfo networkInfo = connectivityManager.getActiveNetworkInfo();
+		return networkInfo != null && networkInfo.isConnected()
+				&& !connectivityManager.isActiveNetworkMetered();
+	}
+
+	private static boolean isScreenOn(Context context) {
+		return ((PowerManager) context.getSystemService(Context.POWER_SERVICE))
+				.isScreenOn();
+	}
+
+	private static boolean isBatteryLow(Context context) {
+		// the battery status is a sticky broadcast, no receiver needed
+		Intent battery = context.registerReceiver(null, new IntentFilter(
+				Intent.ACTION_BATTERY_CHANGED));
+		if (battery == null) {
+			return false;
+		}
+		int level = battery.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+		int scale = battery.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
+		boolean plugged = battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+		return !plugged && level >= 0 && scale > 0
+				&& level < LOW_BATTERY * scale;
+	}
+
+}
@@ -0,0 +1,261 @@
+package interdroid.cuckoo.client;
+
+import interdroid.cuckoo.base.NotInitializedException;
+import interdroid.cuckoo.base.NotInstalledException;
+import interdroid.cuckoo.base.Protocol;
+import interdroid.cuckoo.client.Cuckoo.Resource;
+import interdroid.swan.cuckoo_sensors.CuckooPoller;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.Socket;
+import java.util.Map;
+
+import android.content.Context;
+import android.util.Log;
+
+/**
+ * Communicates with a single Cuckoo Server about SWAN sensors. Sensors still
+ * use the original stream protocol, each operation on its own connection.
+ */
+class SensorCommunicator {
+
+	private static final String TAG = "Cuckoo SensorCommunicator";
+
+	/**
+	 * The context of the application using the SensorCommunicator, this is
+	 * needed to read the assets folder where the sensor code is located.
+	 */
+	private Context mContext;
+
+	private Socket mSocket;
+
+	private ObjectInputStream mIn;
+
+	private ObjectOutputStream mOut;
+
+	/**
+	 * Constructs a SensorCommunicator object. This object will be used to
+	 * communicate with the given Resource.
+	 * 
+	 * @param context
+	 *            needed to read the assets folder
+	 * @param resource
+	 *            the resource to communicate with
+	 */
+	SensorCommunicator(Context context, Resource resource) throws IOException {
+		mContext = context;
+		mSocket = new Socket(resource.getHostname(), resource.getPort());
+		mSocket.setKeepAlive(true);
+		mSocket.setTcpNoDelay(true);
+		mSocket.setSoTimeout(1000000);
+		mSocket.setSendBufferSize(Protocol.SEND_BUFFER);
+		mSocket.setReceiveBufferSize(Protocol.RECEIVE_BUFFER);
+		mOut = new ObjectOutputStream(new BufferedOutputStream(
+				mSocket.getOutputStream()));
+	}
+
+	private void createIn() throws IOException {
+		if (mIn == null) {
+			mIn = new ObjectInputStream(new BufferedInputStream(
+					mSocket.getInputStream()));
+		}
+	}
+
+	void end() {
+		mContext = null;
+		try {
+			mOut.close();
+			if (mIn == null) {
+				mSocket.getInputStream().close();
+			} else {
+				mIn.close();
+			}
+			mSocket.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	void register(String registrationId, String apiKey,
+			CuckooPoller sensor, String id, String valuePath,
+			Map<String, Object> configuration) throws Exception {
+		Log.d(TAG, "register sensor '" + sensor.getClass().getName() + "'");
+		mOut.write(Protocol.OPCODE_REGISTER_SENSOR);
+		mOut.flush();
+		mOut.writeUTF(sensor.getClass().getName());
+		mOut.writeUTF(registrationId);
+		mOut.writeUTF(apiKey);
+		mOut.writeUTF(id);
+		mOut.writeUTF(valuePath);
+		mOut.writeObject(configuration);
+		mOut.flush();
+		createIn();
+		int resultCode = mIn.read();
+		if (resultCode == Protocol.RESULT_OK) {
+			return;
+		} else if (resultCode == Protocol.RESULT_EXCEPTION) {
+			Exception e = (Exception) mIn.readObject();
+			// if the sensor was not installed, we will install it,
+			// initialize
+			// it and invoke it again.
+
+			if (e instanceof NotInstalledException) {
+				installSensor(sensor);
+				initializeSensor(sensor);
+				register(registrationId, apiKey, sensor, id, valuePath,
+						configuration);
+			} else if (e instanceof NotInitializedException) {
+				// if it's installed, but not initialized, we will
+				// initialize it and invoke it again.
+				initializeSensor(sensor);
+				register(registrationId, apiKey, sensor, id, valuePath,
+						configuration);
+			} else {
+				// if we got another exception we will just throw it.
+				throw e;
+			}
+		} else {
+			throw new Exception("Invalid result after register(): "
+					+ resultCode);
+		}
+	}
+
+	void unregister(String id) throws Exception {
+		Log.d(TAG, "unregister id '" + id + "'");
+		mOut.write(Protocol.OPCODE_UNREGISTER_SENSOR);
+		mOut.flush();
+		mOut.writeUTF(id);
+		mOut.flush();
+		createIn();
+		int resultCode = mIn.read();
+		if (resultCode == Protocol.RESULT_OK) {
+			return;
+		} else if (resultCode == Protocol.RESULT_EXCEPTION) {
+			Exception e = (Exception) mIn.readObject();
+			throw e;
+		} else {
+			throw new Exception("Invalid result after register(): "
+					+ resultCode);
+		}
+	}
+
+	void initializeSensor(CuckooPoller sensor) throws Exception {
+		Log.d(TAG, "initializing sensor '" + sensor.getClass().getName()
+				+ "'");
+		mOut.write(Protocol.OPCODE_INITIALIZE_SENSOR);
+		mOut.flush();
+		mOut.writeUTF(sensor.getClass().getName());
+		mOut.flush();
+		createIn();
+		int resultCode = mIn.read();
+		Log.d(TAG, "  result: " + Protocol.toString(resultCode));
+		if (resultCode == Protocol.RESULT_OK) {
+			return;
+		} else if (resultCode == Protocol.RESULT_EXCEPTION) {
+			Exception e = (Exception) mIn.readObject();
+			throw e;
+		} else {
+			throw new Exception("Invalid result after initializeSensor(): "
+					+ resultCode);
+		}
+	}
+
+	void installSensor(CuckooPoller sensor) throws Exception {
+		try {
+			Log.d(TAG, "installing sensor '" + sensor.getClass().getName()
+					+ "'");
+			mOut.write(Protocol.OPCODE_INSTALL_SENSOR);
+			mOut.flush();
+			// send the class name
+			mOut.writeUTF(sensor.getClass().getName());
+			// send the class file, load it on the other side
+			BufferedInputStream fileIn = new BufferedInputStream(mContext
+					.getAssets().open(
+							sensor.getClass().getSimpleName() + ".class"));
+			int length = 0;
+			int read = 0;
+			final byte[] buf = new byte[128 * 1024];
+			while ((read = fileIn.read(buf)) > 0) {
+				length += read;
+			}
+			// and write the file size, so that on the other side we know
+			// when to stop reading
+			mOut.writeInt(length);
+			fileIn.close();
+			// reopen the file for copying to other side
+			fileIn = new BufferedInputStream(mContext.getAssets().open(
+					sensor.getClass().getSimpleName() + ".class"));
+			while ((read = fileIn.read(buf)) > 0) {
+				mOut.write(buf, 0, read);
+			}
+			fileIn.close();
+
+			// jars
+			int nrFiles = mContext.getAssets().list(
+					sensor.getClass().getSimpleName()).length;
+			Log.d(TAG, "  has " + nrFiles + " associated files");
+			mOut.writeInt(nrFiles);
+			// then for each file
+			for (String fileName : mContext.getAssets().list(
+					sensor.getClass().getSimpleName())) {
+				// write the name
+				mOut.writeUTF(fileName);
+				// first read the file to find out the length of the file.
+				// The
+				// file might be compressed, so reading it is the only way
+				// knowing the size of the file.
+				final long start = System.currentTimeMillis();
+				fileIn = new BufferedInputStream(mContext.getAssets().open(
+						sensor.getClass().getSimpleName() + File.separator
+								+ fileName));
+				while ((read = fileIn.read(buf)) > 0) {
+					length += read;
+				}
+				Log.d(TAG,
+						"  reading file " + fileName + " for length took: "
+								+ (System.currentTimeMillis() - start));
+				// and write the file size, so that on the other side we
+				// know
+				// when to stop reading
+				mOut.writeInt(length);
+				fileIn.close();
+				// reopen the file for copying to other side
+				fileIn = new BufferedInputStream(mContext.getAssets().open(
+						sensor.getClass().getSimpleName() + File.separator
+								+ fileName));
+				while ((read = fileIn.read(buf)) > 0) {
+					mOut.write(buf, 0, read);
+				}
+				fileIn.close();
+				Log.d(TAG, "  written file " + fileName + " (" + length
+						+ " bytes)");
+				mOut.flush();
+			}
+
+			mOut.flush();
+			createIn();
+			int resultCode = mIn.read();
+			Log.d(TAG, "  result: " + Protocol.toString(resultCode));
+			if (resultCode == Protocol.RESULT_OK) {
+				return;
+			} else if (resultCode == Protocol.RESULT_EXCEPTION) {
+				Exception e = (Exception) mIn.readObject();
+				throw e;
+			} else {
+				throw new Exception(
+						"Invalid result after installSensor(): "
+								+ resultCode);
+			}
+		} catch (FileNotFoundException e) {
+			throw new RuntimeException(
+					"File not found. Did you copy the Poller class to the assets directory?",
+					e);
+		}
+	}
+}
@@ -0,0 +1,112 @@
+package interdroid.cuckoo.client;
+
+import interdroid.cuckoo.base.Frame;
+import interdroid.cuckoo.client.Cuckoo.Resource;
+
+/**
+ * A value that is uploaded to a resource ahead of the invocation that uses
+ * it, see {@link Cuckoo#stage}. It can be passed
+ * as a parameter of {@link Cuckoo#invokeMethod}, if the invocation runs on
+ * the resource the value was staged at, only its hash is sent. When the
+ * invocation runs locally, the value itself has to be passed instead.
+ */
+public class StagedValue {
+
+	private final Object mValue;
+
+	private final Resource mResource;
+
+	private Frame mEncoded;
+
+	private byte[] mHash;
+
+	private boolean mDone;
+
+	private boolean mUploaded;
+
+	StagedValue(Object value, Resource resource) {
+		mValue = value;
+		mResource = resource;
+	}
+
+	/**
+	 * Returns the value that was staged.
+	 */
+	public Object getValue() {
+		return mValue;
+	}
+
+	/**
+	 * Returns the resource the value was staged at.
+	 */
+	public Resource getResource() {
+		return mResource;
+	}
+
+	/**
+	 * Returns whether the upload is done, successful or not.
+	 */
+	public synchronized boolean isDone() {
+		return mDone;
+	}
+
+	/**
+	 * Returns the size of the encoded value, 0 if it is not encoded yet.
+	 */
+	public synchronized long getSize() {
+		return mEncoded == null ? 0 : mEncoded.getLength();
+	}
+
+	synchronized byte[] getHash() {
+		return mHash;
+	}
+
+	synchronized void encoded(Frame encoded, byte[] hash) {
+		mEncoded = encoded;
+		mHash = hash;
+	}
+
+	synchronized Frame getEncoded() {
+		return mEncoded;
+	}
+
+	synchronized void done(boolean uploaded) {
+		mDone = true;
+		mUploaded = uploaded;
+		notifyAll();
+	}
+
+	/**
+	 * The resource no longer holds the value, for instance because it was
+	 * evicted from its blob cache.
+	 */
+	synchronized void evicted() {
+		mUploaded = false;
+	}
+
+	/**
+	 * Returns whether the resource is the one the value was staged at,
+	 * compared by address.
+	 */
+	boolean isStagedAt(Resource resource) {
+		return mResource.getHostname().equals(resource.getHostname())
+				&& mResource.getPort() == resource.getPort();
+	}
+
+	/**
+	 * Waits for the upload if the value is being staged at the resource.
+	 * 
+	 * @return whether the resource holds the value
+	 */
+	synchronized boolean awaitUpload(Resource resource)
+			throws InterruptedException {
+		if (!isStagedAt(resource)) {
+			return false;
+		}
+		while (!mDone) {
+			wait();
+		}
+		return mUploaded;
+	}
+
+}
@@ -24,6 +24,10 @@ public class Statistics {
 	// the input size (in bytes)
 	public long inputSize;
 
+	// the size of the large parameters that were not uploaded because the
+	// server already held them (in bytes)
+	public long dedupSize;
+
 	// the output size (in bytes)
 	public long returnSize;
 
@@ -37,6 +41,64 @@ public class Statistics {
 	// the invocation time measured by the client
 	public long totalInvocationTime;
 
+	// the compression level of the request (see Compression)
+	public int compressionLevel;
+
+	// compressed size / original size of the request
+	public double compressionRatio = 1;
+
+	// compressed size / original size of the result
+	public double resultCompressionRatio = 1;
+
+	// time spent compressing the request and decompressing the result
+	public long compressionTime;
+
+	// the part of the execution time during which streamed parameters were
+	// still being uploaded
+	public long overlapTime;
+
+	// the time from the start of the invocation until the first partial
+	// result was received, 0 if there were no partial results
+	public long firstResultTime;
+
+	// the execution time of each step of a pipeline, null if the invocation
+	// was not a pipeline
+	public long[] stepExecutionTimes;
+
+	// the epoch of the network the invocation started on
+	public long networkEpoch;
+
+	// whether a request with streamed parameters or result sinks has been
+	// sent, after which the invocation cannot be repeated: the streams have
+	// been read and partial results may have been given to the sinks
+	volatile boolean unrepeatable;
+
+	/**
+	 * Copies all statistics of another invocation.
+	 */
+	void copyFrom(Statistics other) {
+		resource = other.resource;
+		weight = other.weight;
+		executionTime = other.executionTime;
+		uploadTime = other.uploadTime;
+		clientUploadTime = other.clientUploadTime;
+		downloadTime = other.downloadTime;
+		inputSize = other.inputSize;
+		dedupSize = other.dedupSize;
+		returnSize = other.returnSize;
+		localOverheadTime = other.localOverheadTime;
+		rtt = other.rtt;
+		totalInvocationTime = other.totalInvocationTime;
+		compressionLevel = other.compressionLevel;
+		compressionRatio = other.compressionRatio;
+		resultCompressionRatio = other.resultCompressionRatio;
+		compressionTime = other.compressionTime;
+		overlapTime = other.overlapTime;
+		firstResultTime = other.firstResultTime;
+		stepExecutionTimes = other.stepExecutionTimes;
+		networkEpoch = other.networkEpoch;
+	}
+
 	public String toString() {
 		if (resource.getHostname().equals("local")) {
 			return "local: \t\t\t" + executionTime;
@@ -49,7 +111,9 @@ public class Statistics {
 				+ uploadTime
 				+ " ("
 				+ inputSize
-				+ " bytes)\n execution time: \t"
+				+ " bytes, "
+				+ dedupSize
+				+ " cached)\n execution time: \t"
 				+ executionTime
 				+ "\n download time: \t"
 				+ downloadTime
@@ -57,9 +121,20 @@ public class Statistics {
 				+ returnSize
 				+ " bytes)\n rtt: \t\t\t\t"
 				+ rtt
+				+ "\n compression: \t\t"
+				+ compressionTime
+				+ " (level "
+				+ compressionLevel
+				+ ", ratio "
+				+ compressionRatio
+				+ " / "
+				+ resultCompressionRatio
+				+ ")"
+				+ "\n overlap: \t\t\t"
+				+ overlapTime
 				+ "\n delta: \t\t\t"
 				+ (totalInvocationTime - uploadTime - executionTime
-						- downloadTime - localOverheadTime - rtt);
+						- downloadTime - localOverheadTime - rtt + overlapTime);
 	}
 
 }
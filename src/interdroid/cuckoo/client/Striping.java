@@ -0,0 +1,162 @@
+package interdroid.cuckoo.client;
+
+import interdroid.cuckoo.base.Frame;
+import interdroid.cuckoo.base.RemoteHandle;
+import interdroid.cuckoo.client.Cuckoo.Resource;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import android.content.Context;
+import android.util.Log;
+
+/**
+ * Uploads and downloads large values in parallel streams, each over its own
+ * pooled connection to the resource. On a link with a large bandwidth-delay
+ * product a single stream is limited by its window, several streams together
+ * keep the link busy. A blob is uploaded in stripes to the blob cache of the
+ * resource, after which the invocation refers to it by hash. A large value
+ * that is kept at the resource is fetched in ranges.
+ */
+class Striping {
+
+	private static final String TAG = "Cuckoo Striping";
+
+	/**
+	 * System property with the maximum number of parallel streams, 1 turns
+	 * striping off
+	 */
+	static final String STREAMS_PROPERTY = "interdroid.cuckoo.streams";
+
+	static final int DEFAULT_STREAMS = 4;
+
+	/**
+	 * Values are not split in stripes smaller than this
+	 */
+	static final int MIN_STRIPE_SIZE = 1024 * 1024;
+
+	/**
+	 * The stripes are sent in requests of this size, so that the requests of
+	 * a stripe are pipelined on its connection
+	 */
+	static final int CHUNK_SIZE = 256 * 1024;
+
+	/**
+	 * A part of a striped transfer.
+	 */
+	private interface Stripe {
+
+		void transfer(Communicator communicator, int offset, int length)
+				throws Exception;
+
+	}
+
+	/**
+	 * Returns the number of streams for a value of the given size.
+	 */
+	static int streams(long size) {
+		int max = Integer.getInteger(STREAMS_PROPERTY, DEFAULT_STREAMS);
+		return (int) Math.max(1, Math.min(max, size / MIN_STRIPE_SIZE));
+	}
+
+	/**
+	 * Uploads an encoded value to the blob cache of the resource.
+	 * 
+	 * @param communicator
+	 *            the connection of the invocation, which carries the first
+	 *            stripe
+	 */
+	static void upload(final Context context, Communicator communicator,
+			final byte[] hash, final Frame value, int streams)
+			throws Exception {
+		Log.d(TAG, "uploading " + value.getLength() + " bytes in " + streams
+				+ " streams");
+		transfer(communicator, value.getLength(), streams, new Stripe() {
+			public void transfer(Communicator communicator, int offset,
+					int length) throws Exception {
+				communicator.uploadStripe(context, hash, value, offset,
+						length);
+			}
+		});
+	}
+
+	/**
+	 * Downloads the encoded value of a handle.
+	 * 
+	 * @param communicator
+	 *            the connection to the resource that holds the value, which
+	 *            carries the first stripe
+	 */
+	static byte[] fetch(final Context context, Communicator communicator,
+			final RemoteHandle handle, int streams) throws Exception {
+		Log.d(TAG, "fetching " + handle.getSize() + " bytes in " + streams
+				+ " streams");
+		final byte[] value = new byte[(int) handle.getSize()];
+		transfer(communicator, value.length, streams, new Stripe() {
+			public void transfer(Communicator communicator, int offset,
+					int length) throws Exception {
+				communicator.fetchRange(context, handle, value, offset,
+						length);
+			}
+		});
+		return value;
+	}
+
+	/**
+	 * Transfers a value in equal stripes, the first on the given connection
+	 * and the others on extra connections to the same resource.
+	 * 
+	 * @throws Exception
+	 *             the failure of one of the stripes
+	 */
+	private static void transfer(Communicator communicator, int size,
+			int streams, final Stripe stripe) throws Exception {
+		final Resource resource = communicator.getResource();
+		final int stripeSize = (size + streams - 1) / streams;
+		final Exception[] failures = new Exception[streams];
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int i = 1; i < streams; i++) {
+			final int index = i;
+			final int offset = i * stripeSize;
+			final int length = Math.min(stripeSize, size - offset);
+			Thread thread = new Thread("Cuckoo stripe " + i) {
+				public void run() {
+					try {
+						Communicator other = ConnectionPool.acquire(resource,
+								index);
+						other.use();
+						try {
+							stripe.transfer(other, offset, length);
+							ConnectionPool.release(other);
+						} catch (IOException e) {
+							ConnectionPool.discard(other);
+							throw e;
+						} catch (Exception e) {
+							ConnectionPool.release(other);
+							throw e;
+						}
+					} catch (Exception e) {
+						failures[index] = e;
+					}
+				}
+			};
+			thread.start();
+			threads.add(thread);
+		}
+		try {
+			stripe.transfer(communicator, 0, Math.min(stripeSize, size));
+		} catch (Exception e) {
+			failures[0] = e;
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		for (Exception failure : failures) {
+			if (failure != null) {
+				throw failure;
+			}
+		}
+	}
+
+}
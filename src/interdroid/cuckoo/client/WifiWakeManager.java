@@ -0,0 +1,211 @@
+package interdroid.cuckoo.client;
+
+import interdroid.cuckoo.client.Cuckoo.Resource;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.util.Log;
+
+/**
+ * Keeps WiFi awake while remote calls wait for their results, so that the
+ * result isn't delayed by the power save mode of the WiFi radio. All waiting
+ * calls share a single thread that sends a tiny keepalive datagram every
+ * {@link #KEEPALIVE_INTERVAL} ms as long as one of them needs WiFi awake.
+ * With the {@link Cuckoo#WIFI_WAKE_STRATEGY_JIT} strategy a call only needs
+ * it from just before its result is expected, estimated from the execution
+ * time history of its method at the resource. With
+ * {@link Cuckoo#WIFI_WAKE_STRATEGY_SLEEP} WiFi is left alone.
+ */
+class WifiWakeManager {
+
+	private static final String TAG = "Cuckoo WifiWakeManager";
+
+	/**
+	 * The time in ms between two keepalives, below the time after which the
+	 * radio goes to power save mode
+	 */
+	static final long KEEPALIVE_INTERVAL = 180;
+
+	/**
+	 * The discard port, the keepalives only have to leave the device
+	 */
+	private static final int KEEPALIVE_PORT = 9;
+
+	/**
+	 * A call that waits for its result.
+	 */
+	static class Wake {
+
+		private final String mHostname;
+
+		private final long mWakeAt;
+
+		private Wake(String hostname, long wakeAt) {
+			mHostname = hostname;
+			mWakeAt = wakeAt;
+		}
+
+	}
+
+	private static final List<Wake> sWakes = new ArrayList<Wake>();
+
+	private static final Map<String, InetAddress> sAddresses = new HashMap<String, InetAddress>();
+
+	private static Thread sThread;
+
+	/**
+	 * Registers a call to a method that waits for its result.
+	 * 
+	 * @param weight
+	 *            the weight of the invocation
+	 * @return the wake to give to {@link #stop(Wake)} when the result is
+	 *         there, null if WiFi doesn't have to be kept awake
+	 */
+	static Wake start(Context context, Resource resource, String methodName,
+			double weight) {
+		String strategy = getStrategy();
+		if (strategy == null) {
+			return null;
+		}
+		long delay = 0;
+		if (strategy.equals(Cuckoo.WIFI_WAKE_STRATEGY_JIT)) {
+			delay = Oracle.estimateWakeDelay(context, methodName, resource,
+					(float) (weight > 0 ? weight : 1));
+		}
+		return start(resource.getHostname(), delay);
+	}
+
+	/**
+	 * Registers a call of which the result is expected after the given
+	 * execution time.
+	 */
+	static Wake start(String hostname, Estimate executionTime) {
+		String strategy = getStrategy();
+		if (strategy == null) {
+			return null;
+		}
+		long delay = 0;
+		if (strategy.equals(Cuckoo.WIFI_WAKE_STRATEGY_JIT)) {
+			// about 95% of the values lie within two standard deviations
+			// (if normal distribution)
+			delay = Math.max(0, (long) (executionTime.average - 2 * Math
+					.sqrt(executionTime.variance)));
+		}
+		return start(hostname, delay);
+	}
+
+	private static synchronized Wake start(String hostname, long delay) {
+		Log.d(TAG, "keeping WiFi awake after " + delay + " ms for "
+				+ (sWakes.size() + 1) + " calls");
+		Wake wake = new Wake(hostname, System.currentTimeMillis() + delay);
+		sWakes.add(wake);
+		if (sThread == null) {
+			sThread = new Thread("Cuckoo WiFi wake") {
+				public void run() {
+					keepAwake();
+				}
+			};
+			sThread.setDaemon(true);
+			sThread.start();
+		} else {
+			WifiWakeManager.class.notifyAll();
+		}
+		return wake;
+	}
+
+	/**
+	 * Registers that a call got its result.
+	 * 
+	 * @param wake
+	 *            the wake returned by start, may be null
+	 */
+	static synchronized void stop(Wake wake) {
+		if (wake != null && sWakes.remove(wake)) {
+			WifiWakeManager.class.notifyAll();
+		}
+	}
+
+	/**
+	 * Returns the wake strategy for WiFi, or null if WiFi should not be kept
+	 * awake.
+	 */
+	private static String getStrategy() {
+		if (ContextState.getNetwork().getType() != ConnectivityManager.TYPE_WIFI) {
+			return null;
+		}
+		String strategy = System.getProperty(Cuckoo.WIFI_WAKE_STRATEGY,
+				Cuckoo.WIFI_WAKE_STRATEGY_DEFAULT);
+		if (strategy.equals(Cuckoo.WIFI_WAKE_STRATEGY_DEFAULT)) {
+			strategy = Cuckoo.getStrategy() != null
+					&& Cuckoo.getStrategy().startsWith(Oracle.STRATEGY_ENERGY) ? Cuckoo.WIFI_WAKE_STRATEGY_SLEEP
+					: Cuckoo.WIFI_WAKE_STRATEGY_AWAKE;
+		}
+		return strategy.equals(Cuckoo.WIFI_WAKE_STRATEGY_SLEEP) ? null
+				: strategy;
+	}
+
+	private static void keepAwake() {
+		DatagramSocket socket = null;
+		try {
+			socket = new DatagramSocket();
+			while (true) {
+				String hostname = null;
+				synchronized (WifiWakeManager.class) {
+					long now = System.currentTimeMillis();
+					long next = Long.MAX_VALUE;
+					for (Wake wake : sWakes) {
+						if (wake.mWakeAt <= now) {
+							hostname = wake.mHostname;
+							break;
+						}
+						next = Math.min(next, wake.mWakeAt);
+					}
+					if (sWakes.isEmpty()) {
+						sThread = null;
+						return;
+					}
+					if (hostname == null) {
+						WifiWakeManager.class.wait(next - now);
+						continue;
+					}
+				}
+				keepalive(socket, hostname);
+				Thread.sleep(KEEPALIVE_INTERVAL);
+			}
+		} catch (Exception e) {
+			Log.d(TAG, "keeping WiFi awake failed: " + e);
+			synchronized (WifiWakeManager.class) {
+				sThread = null;
+			}
+		} finally {
+			if (socket != null) {
+				socket.close();
+			}
+		}
+	}
+
+	private static void keepalive(DatagramSocket socket, String hostname)
+			throws IOException {
+		InetAddress address;
+		synchronized (sAddresses) {
+			address = sAddresses.get(hostname);
+		}
+		if (address == null) {
+			address = InetAddress.getByName(hostname);
+			synchronized (sAddresses) {
+				sAddresses.put(hostname, address);
+			}
+		}
+		socket.send(new DatagramPacket(new byte[1], 1, address, KEEPALIVE_PORT));
+	}
+
+}
@@ -0,0 +1,79 @@
+package interdroid.cuckoo.server;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Cache of the encoded values of large parameters, by the hexadecimal hash of
+ * the value (see {@link interdroid.cuckoo.base.BlobParameter}). The cache is
+ * bounded by the total number of bytes, the least recently used blobs are
+ * evicted first. The values are kept encoded, so every invocation decodes its
+ * own copy and a method that modifies its parameters doesn't affect the
+ * cache.
+ */
+class BlobCache {
+
+	/**
+	 * System property with the maximum size of the cache in bytes
+	 */
+	static final String SIZE_PROPERTY = "interdroid.cuckoo.blobcache";
+
+	static final long DEFAULT_SIZE = 64 * 1024 * 1024;
+
+	private final Map<String, byte[]> mBlobs = new LinkedHashMap<String, byte[]>(
+			16, 0.75f, true);
+
+	private final long mMaxSize;
+
+	private long mSize;
+
+	BlobCache(long maxSize) {
+		mMaxSize = maxSize;
+	}
+
+	/**
+	 * Returns whether the cache holds a blob, which also marks it as
+	 * recently used so that it most likely survives until the invocation
+	 * that refers to it arrives.
+	 */
+	synchronized boolean contains(String hash) {
+		return mBlobs.get(hash) != null;
+	}
+
+	/**
+	 * Returns the encoded value of a blob, or null if it is not cached.
+	 */
+	synchronized byte[] get(String hash) {
+		return mBlobs.get(hash);
+	}
+
+	/**
+	 * Adds a blob, evicting the least recently used blobs if the cache gets
+	 * too large. Blobs larger than the cache itself are not added.
+	 */
+	synchronized void put(String hash, byte[] data) {
+		if (data.length > mMaxSize) {
+			return;
+		}
+		byte[] previous = mBlobs.put(hash, data);
+		if (previous != null) {
+			mSize -= previous.length;
+		}
+		mSize += data.length;
+		Iterator<byte[]> iterator = mBlobs.values().iterator();
+		while (mSize > mMaxSize) {
+			mSize -= iterator.next().length;
+			iterator.remove();
+		}
+	}
+
+	synchronized long getSize() {
+		return mSize;
+	}
+
+	long getMaxSize() {
+		return mMaxSize;
+	}
+
+}
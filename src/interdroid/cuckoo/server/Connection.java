@@ -0,0 +1,482 @@
+package interdroid.cuckoo.server;
+
+import interdroid.cuckoo.base.Compression;
+import interdroid.cuckoo.base.Frame;
+import interdroid.cuckoo.base.Protocol;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A non-blocking connection with a client, driven by the {@link EventLoop}.
+ * The connection starts with the handshake of the framed protocol, after that
+ * it reads and writes {@link Frame}s. If the client doesn't start with the
+ * handshake, it is a client of the original stream protocol and the bytes read
+ * so far are kept, so the connection can be handed over to a blocking session.
+ *
+ * Frames can be sent from any thread using {@link #send(Frame)}.
+ */
+class Connection {
+
+	private final EventLoop mLoop;
+
+	private final SocketChannel mChannel;
+
+	private SelectionKey mKey;
+
+	/**
+	 * The handshake (magic number and version), null after the handshake
+	 */
+	private ByteBuffer mHandshake = ByteBuffer.allocate(5);
+
+	/**
+	 * The bytes read from a client of the stream protocol
+	 */
+	private byte[] mLegacyPrefix;
+
+	/**
+	 * The payload buffer of a frame starts with at most this size and grows
+	 * as the data arrives, so a header alone cannot make us allocate up to
+	 * {@link Frame#MAX_PAYLOAD}
+	 */
+	private static final int INITIAL_PAYLOAD = 64 * 1024;
+
+	/**
+	 * A read returns the frames once it has read this many bytes, so they
+	 * are handled, and a full stream stops the reading, before much more is
+	 * read
+	 */
+	private static final int MAX_READ = 1024 * 1024;
+
+	/**
+	 * Read state of the current frame
+	 */
+	private final ByteBuffer mHeader = ByteBuffer.allocate(Frame.HEADER_SIZE);
+	private ByteBuffer mPayload;
+	private int mLength;
+	private int mRequestId;
+	private int mOpcode;
+	private int mFlags;
+	private long mFrameStarted;
+
+	/**
+	 * Buffers that still have to be written
+	 */
+	private final LinkedList<ByteBuffer> mWriteQueue = new LinkedList<ByteBuffer>();
+
+	/**
+	 * The ids of the requests that are being handled for this connection
+	 */
+	private final Set<Integer> mActiveRequests = new HashSet<Integer>();
+
+	/**
+	 * The threads that handle the active requests
+	 */
+	private final Map<Integer, Thread> mHandlers = new HashMap<Integer, Thread>();
+
+	/**
+	 * Active requests that were cancelled before a thread started handling
+	 * them
+	 */
+	private final Set<Integer> mCancelled = new HashSet<Integer>();
+
+	/**
+	 * The streamed parameters of the active requests, by request id and
+	 * parameter index
+	 */
+	private final Map<Long, StreamInput> mStreams = new HashMap<Long, StreamInput>();
+
+	/**
+	 * The number of streams that are full, the connection doesn't read while
+	 * there are any
+	 */
+	private int mFullStreams;
+
+	/**
+	 * The methods that the client registered, by the id the client assigned
+	 */
+	private final Map<Integer, Invoker> mInvokers = new HashMap<Integer, Invoker>();
+
+	private volatile long mLastActivity = System.currentTimeMillis();
+
+	private volatile boolean mClosed;
+
+	Connection(EventLoop loop, SocketChannel channel) {
+		mLoop = loop;
+		mChannel = channel;
+	}
+
+	void setKey(SelectionKey key) {
+		mKey = key;
+	}
+
+	SelectionKey getKey() {
+		return mKey;
+	}
+
+	SocketChannel getChannel() {
+		return mChannel;
+	}
+
+	SocketAddress getRemoteAddress() {
+		return mChannel.socket().getRemoteSocketAddress();
+	}
+
+	/**
+	 * Returns whether the client turned out to speak the stream protocol.
+	 */
+	boolean isLegacy() {
+		return mLegacyPrefix != null;
+	}
+
+	/**
+	 * Returns the bytes that were read from a client of the stream protocol.
+	 */
+	byte[] getLegacyPrefix() {
+		return mLegacyPrefix;
+	}
+
+	/**
+	 * Reads whatever is available. Called by the event loop if the channel is
+	 * readable.
+	 *
+	 * @return the frames that have been completed
+	 * @throws IOException
+	 *             if reading failed or the client closed the connection
+	 */
+	List<Frame> read() throws IOException {
+		List<Frame> frames = new ArrayList<Frame>();
+		long size = 0;
+		mLastActivity = System.currentTimeMillis();
+		if (mHandshake != null && !readHandshake()) {
+			return frames;
+		}
+		while (true) {
+			if (mPayload == null) {
+				if (read(mHeader) && mFrameStarted == 0) {
+					mFrameStarted = System.currentTimeMillis();
+				}
+				if (mHeader.hasRemaining()) {
+					return frames;
+				}
+				mHeader.flip();
+				int length = mHeader.getInt() - Frame.LENGTH_OVERHEAD;
+				mRequestId = mHeader.getInt();
+				mOpcode = mHeader.get() & 0xFF;
+				mFlags = mHeader.get() & 0xFF;
+				mHeader.clear();
+				if (length < 0 || length > Frame.MAX_PAYLOAD) {
+					throw new IOException("Invalid frame length: " + length);
+				}
+				mLength = length;
+				mPayload = ByteBuffer.allocate(Math.min(length,
+						INITIAL_PAYLOAD));
+			}
+			while (mPayload.position() < mLength) {
+				if (!mPayload.hasRemaining()) {
+					ByteBuffer payload = ByteBuffer.allocate((int) Math.min(
+							mLength, 2L * mPayload.capacity()));
+					mPayload.flip();
+					payload.put(mPayload);
+					mPayload = payload;
+				}
+				if (!read(mPayload)) {
+					return frames;
+				}
+			}
+			Frame frame = new Frame(mRequestId, mOpcode, mFlags,
+					mPayload.array());
+			frame.setReceived(mFrameStarted, System.currentTimeMillis());
+			frames.add(frame);
+			mPayload = null;
+			mFrameStarted = 0;
+			size += Frame.HEADER_SIZE + mLength;
+			if (size >= MAX_READ) {
+				return frames;
+			}
+		}
+	}
+
+	/**
+	 * Reads into the buffer.
+	 *
+	 * @return true if anything was read
+	 * @throws EOFException
+	 *             if the client closed the connection
+	 */
+	private boolean read(ByteBuffer buffer) throws IOException {
+		int read = mChannel.read(buffer);
+		if (read < 0) {
+			throw new EOFException("Connection closed by client");
+		}
+		return read > 0;
+	}
+
+	/**
+	 * @return true if the handshake is complete
+	 */
+	private boolean readHandshake() throws IOException {
+		read(mHandshake);
+		if (mHandshake.position() >= 4
+				&& mHandshake.getInt(0) != Protocol.FRAMED_MAGIC) {
+			// not for us, keep what we read for the stream protocol
+			mLegacyPrefix = new byte[mHandshake.position()];
+			mHandshake.flip();
+			mHandshake.get(mLegacyPrefix);
+			return false;
+		}
+		if (mHandshake.hasRemaining()) {
+			return false;
+		}
+		int version = mHandshake.get(4);
+		if (version != Protocol.FRAMED_VERSION) {
+			throw new IOException("Unsupported protocol version: " + version);
+		}
+		mHandshake = null;
+		return true;
+	}
+
+	/**
+	 * Queues a frame for sending. May be called from any thread.
+	 *
+	 * @param frame
+	 *            the frame to send
+	 * @throws IOException
+	 *             if the connection is closed
+	 */
+	void send(Frame frame) throws IOException {
+		if (mClosed) {
+			throw new IOException("Connection closed");
+		}
+		ByteBuffer header = ByteBuffer.allocate(Frame.HEADER_SIZE);
+		header.putInt(frame.getLength() + Frame.LENGTH_OVERHEAD);
+		header.putInt(frame.getRequestId());
+		header.put((byte) frame.getOpcode());
+		header.put((byte) frame.getFlags());
+		header.flip();
+		synchronized (mWriteQueue) {
+			mWriteQueue.add(header);
+			mWriteQueue.add(ByteBuffer.wrap(frame.getPayload(), 0,
+					frame.getLength()));
+		}
+		mLoop.requestUpdate(this);
+	}
+
+	/**
+	 * Writes as much of the queued frames as possible. Called by the event
+	 * loop if the channel is writable.
+	 *
+	 * @return true if everything has been written
+	 * @throws IOException
+	 */
+	boolean write() throws IOException {
+		mLastActivity = System.currentTimeMillis();
+		synchronized (mWriteQueue) {
+			while (!mWriteQueue.isEmpty()) {
+				ByteBuffer[] buffers = mWriteQueue
+						.toArray(new ByteBuffer[mWriteQueue.size()]);
+				mChannel.write(buffers);
+				while (!mWriteQueue.isEmpty()
+						&& !mWriteQueue.getFirst().hasRemaining()) {
+					mWriteQueue.removeFirst();
+				}
+				if (!mWriteQueue.isEmpty()) {
+					// socket buffer is full
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+
+	boolean hasQueuedWrites() {
+		synchronized (mWriteQueue) {
+			return !mWriteQueue.isEmpty();
+		}
+	}
+
+	/**
+	 * Registers a request that is being handled. Called by the event loop,
+	 * before any data for the request's streams can arrive.
+	 */
+	synchronized void beginRequest(int requestId) {
+		mActiveRequests.add(requestId);
+	}
+
+	/**
+	 * Registers the current thread as the handler of a request.
+	 * 
+	 * @return false if the request was cancelled already, then it should not
+	 *         be handled
+	 */
+	synchronized boolean startHandling(int requestId) {
+		if (mCancelled.remove(requestId)) {
+			return false;
+		}
+		mHandlers.put(requestId, Thread.currentThread());
+		return true;
+	}
+
+	/**
+	 * Cancels an active request, the thread that handles it is interrupted.
+	 * A request that is not active anymore is left alone.
+	 */
+	synchronized void cancelRequest(int requestId) {
+		if (!mActiveRequests.contains(requestId)) {
+			return;
+		}
+		Thread handler = mHandlers.get(requestId);
+		if (handler == null) {
+			mCancelled.add(requestId);
+		} else {
+			handler.interrupt();
+		}
+	}
+
+	/**
+	 * Registers that a request has been handled, its streams are dropped.
+	 */
+	synchronized void endRequest(int requestId) {
+		mActiveRequests.remove(requestId);
+		mHandlers.remove(requestId);
+		mCancelled.remove(requestId);
+		boolean resume = false;
+		Iterator<Map.Entry<Long, StreamInput>> entries = mStreams.entrySet()
+				.iterator();
+		while (entries.hasNext()) {
+			Map.Entry<Long, StreamInput> entry = entries.next();
+			if ((int) (entry.getKey() >> 32) == requestId) {
+				entries.remove();
+				if (entry.getValue().discard()) {
+					mFullStreams--;
+					resume = true;
+				}
+			}
+		}
+		if (resume) {
+			mLoop.requestUpdate(this);
+		}
+		mLastActivity = System.currentTimeMillis();
+	}
+
+	/**
+	 * Returns the stream for a streamed parameter of a request, the stream is
+	 * created if neither the invocation nor the data asked for it before.
+	 */
+	synchronized StreamInput getStream(int requestId, int index) {
+		long key = ((long) requestId << 32) | (index & 0xFFFFFFFFL);
+		StreamInput stream = mStreams.get(key);
+		if (stream == null) {
+			stream = new StreamInput(this);
+			mStreams.put(key, stream);
+		}
+		return stream;
+	}
+
+	/**
+	 * Adds a data frame to its stream. Data for requests that have already
+	 * been handled is dropped. The frame is decompressed by the thread that
+	 * reads the stream, not by the event loop.
+	 *
+	 * @throws IOException
+	 *             if the frame is invalid
+	 */
+	synchronized void addStreamData(Frame frame) throws IOException {
+		if (!mActiveRequests.contains(frame.getRequestId())) {
+			return;
+		}
+		// the payload starts with the index of the parameter
+		int index = Compression.readInt(frame);
+		if (getStream(frame.getRequestId(), index).add(frame)) {
+			mFullStreams++;
+		}
+	}
+
+	/**
+	 * Called by a stream that was full and has room again.
+	 */
+	void resumeReading() {
+		synchronized (this) {
+			mFullStreams--;
+		}
+		mLoop.requestUpdate(this);
+	}
+
+	/**
+	 * Returns the operations the event loop should wait for: reading unless
+	 * a stream is full, and writing if there are queued frames.
+	 */
+	int getInterestOps() {
+		int ops = hasQueuedWrites() ? SelectionKey.OP_WRITE : 0;
+		synchronized (this) {
+			if (mFullStreams == 0) {
+				ops |= SelectionKey.OP_READ;
+			}
+		}
+		return ops;
+	}
+
+	/**
+	 * Registers a method for this connection under the id that the client
+	 * uses to invoke it.
+	 */
+	synchronized void register(int id, Invoker invoker) {
+		mInvokers.put(id, invoker);
+	}
+
+	/**
+	 * Returns a method that was registered for this connection.
+	 *
+	 * @throws IOException
+	 *             if there is no method with the id
+	 */
+	synchronized Invoker getInvoker(int id) throws IOException {
+		Invoker invoker = mInvokers.get(id);
+		if (invoker == null) {
+			throw new IOException("Unknown method id: " + id);
+		}
+		return invoker;
+	}
+
+	/**
+	 * Returns whether nothing happened on this connection for the given time.
+	 */
+	synchronized boolean isIdle(long timeout) {
+		return mActiveRequests.isEmpty() && !hasQueuedWrites()
+				&& System.currentTimeMillis() - mLastActivity > timeout;
+	}
+
+	boolean isClosed() {
+		return mClosed;
+	}
+
+	void close() {
+		mClosed = true;
+		synchronized (this) {
+			for (StreamInput stream : mStreams.values()) {
+				stream.fail();
+			}
+		}
+		if (mKey != null) {
+			mKey.cancel();
+		}
+		try {
+			mChannel.close();
+		} catch (IOException e) {
+			// ignore
+		}
+	}
+
+}
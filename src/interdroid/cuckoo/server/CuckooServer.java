@@ -2,16 +2,31 @@ package interdroid.cuckoo.server;
 
 import interdroid.cuckoo.base.AlreadyInitializedException;
 import interdroid.cuckoo.base.AlreadyInstalledException;
+import interdroid.cuckoo.base.BlobMissingException;
+import interdroid.cuckoo.base.BlobParameter;
+import interdroid.cuckoo.base.Codec;
+import interdroid.cuckoo.base.Compression;
+import interdroid.cuckoo.base.DeltaParameter;
+import interdroid.cuckoo.base.Frame;
+import interdroid.cuckoo.base.FrameOutput;
 import interdroid.cuckoo.base.InstallationFailedException;
 import interdroid.cuckoo.base.NotInitializedException;
 import interdroid.cuckoo.base.NotInstalledException;
 import interdroid.cuckoo.base.Protocol;
+import interdroid.cuckoo.base.RemoteHandle;
+import interdroid.cuckoo.base.ResultSinkParameter;
+import interdroid.cuckoo.base.StepResult;
+import interdroid.cuckoo.base.StreamParameter;
 import interdroid.swan.cuckoo_sensors.CuckooPoller;
 import interdroid.swan.cuckoo_sensors.RemoteMonitorThread;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
 import java.io.File;
 import java.io.FileFilter;
 import java.io.FileNotFoundException;
@@ -20,24 +35,31 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.SequenceInputStream;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.net.InetAddress;
-import java.net.InetSocketAddress;
 import java.net.MalformedURLException;
 import java.net.NetworkInterface;
-import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.URL;
 import java.net.URLClassLoader;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import javax.imageio.ImageIO;
 import javax.swing.ImageIcon;
@@ -108,13 +130,49 @@ public class CuckooServer {
 	/**
 	 * Map of monitor threads, by id
 	 */
-	private Map<String, RemoteMonitorThread> monitors = new HashMap<String, RemoteMonitorThread>();
+	private Map<String, RemoteMonitorThread> monitors = Collections
+			.synchronizedMap(new HashMap<String, RemoteMonitorThread>());
 
 	/**
 	 * global server properties
 	 */
 	private Properties properties = new Properties();
 
+	/**
+	 * The codec for parameters and results
+	 */
+	private final Codec mCodec = Protocol.createCodec();
+
+	/**
+	 * Threads that handle the requests of the framed protocol, the event loop
+	 * itself never blocks on a request
+	 */
+	private final ExecutorService mWorkers = Executors.newCachedThreadPool();
+
+	/**
+	 * Threads that execute the invocations of a batch, one per core
+	 */
+	private final ExecutorService mBatchWorkers = Executors
+			.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+
+	/**
+	 * Large parameters of earlier invocations, by hash
+	 */
+	private final BlobCache mBlobCache = new BlobCache(Long.getLong(
+			BlobCache.SIZE_PROPERTY, BlobCache.DEFAULT_SIZE));
+
+	/**
+	 * Blobs that are uploaded in stripes over several connections
+	 */
+	private final StripeAssembler mStripes = new StripeAssembler(mBlobCache);
+
+	/**
+	 * Results that are kept for the clients
+	 */
+	private final HandleStore mHandles = new HandleStore(Long.getLong(
+			HandleStore.TTL_PROPERTY, HandleStore.DEFAULT_TTL), Long.getLong(
+			HandleStore.SIZE_PROPERTY, HandleStore.DEFAULT_SIZE));
+
 	/**
 	 * The default port the server listens on
 	 */
@@ -143,18 +201,7 @@ public class CuckooServer {
 		final String serviceName = in.readUTF();
 		logger.debug("   installing service '" + serviceName + "'...");
 		// then the files belonging to this service
-		int nrFiles = in.readInt();
-		logger.debug("     has " + nrFiles + " files");
-		Map<String, byte[]> files = new HashMap<String, byte[]>();
-		for (int i = 0; i < nrFiles; i++) {
-			String fileName = in.readUTF();
-			int size = in.readInt();
-			logger.debug("       reading '" + fileName + "' of size " + size);
-			byte[] file = new byte[size];
-			in.readFully(file);
-			files.put(fileName, file);
-		}
-		logger.debug("     done reading files");
+		Map<String, byte[]> files = readFiles(in);
 		try {
 			// now try to install the service
 			logger.debug("     invoking installService");
@@ -202,62 +249,53 @@ public class CuckooServer {
 		}
 	}
 
+	/**
+	 * Reads the files of a service or sensor, a number of files followed by
+	 * the name, size and contents of each file.
+	 */
+	private Map<String, byte[]> readFiles(DataInput in) throws IOException {
+		int nrFiles = in.readInt();
+		logger.debug("     has " + nrFiles + " files");
+		Map<String, byte[]> files = new HashMap<String, byte[]>();
+		for (int i = 0; i < nrFiles; i++) {
+			String fileName = in.readUTF();
+			int size = in.readInt();
+			logger.debug("       reading '" + fileName + "' of size " + size);
+			byte[] file = new byte[size];
+			in.readFully(file);
+			files.put(fileName, file);
+		}
+		logger.debug("     done reading files");
+		return files;
+	}
+
 	private boolean handleInvoke(ObjectInputStream in, ObjectOutputStream out)
 			throws IOException, ClassNotFoundException {
 		final long start = System.currentTimeMillis();
-		// read the service name
-		final String serviceName = in.readUTF();
-		logger.debug("   invoking method on service '" + serviceName + "'...");
-		// the method name
-		final String methodName = in.readUTF();
-		logger.debug("     method: " + methodName);
-		// read the parameter type array
-		final Class<?>[] parameterTypes = (Class<?>[]) in.readObject();
-		logger.debug("     parameter types: " + Arrays.toString(parameterTypes));
-		// read the types of parameters array (in or out/inout)
-		final boolean[] outParameters = (boolean[]) in.readObject();
-		logger.debug("     out parameters: " + Arrays.toString(outParameters));
-		// read the actual parameter values
-		final Object[] parameters = (Object[]) in.readObject();
-		logger.debug("     parameter values: " + Arrays.toString(parameters));
-		// do we have to forward?
-		final boolean forwardToUnknownResources = in.readBoolean();
-		logger.debug("     forward to unknown resources: "
-				+ forwardToUnknownResources);
-		// read unknown resources
-		final String[] unknownResources = (forwardToUnknownResources) ? in
-				.readUTF().split(",") : null;
-		logger.debug("       unknownResources: "
-				+ (unknownResources == null ? "n.a." : Arrays
-						.toString(unknownResources)));
+		final Invocation invocation = Invocation.read(in, mCodec);
 		final long uploadTime = System.currentTimeMillis() - start;
 		final long startMethod = System.currentTimeMillis();
 		try {
-			Object result = invokeMethod(serviceName, methodName,
-					parameterTypes, parameters);
+			Object result = invokeMethod(invocation.serviceName,
+					invocation.methodName, invocation.parameterTypes,
+					invocation.parameters);
 			final long executionTime = System.currentTimeMillis() - startMethod;
 			logger.debug("     result: " + result);
 			out.write(Protocol.RESULT_OK);
 			out.flush();
-			out.writeObject(result);
-			for (int i = 0; i < outParameters.length; i++) {
-				if (outParameters[i]) {
-					out.writeObject(parameters[i]);
-				}
-			}
+			invocation.writeResult(out, mCodec, result);
 			out.writeLong(executionTime);
 			out.writeLong(uploadTime);
 			out.flush();
-			logger.debug("   invoking method '" + methodName + "' on service '"
-					+ serviceName + "' succeeded");
+			logger.debug("   invoking " + invocation + " succeeded");
 			logger.debug("     upload: " + uploadTime);
 			logger.debug("     execution: " + executionTime);
 			logger.debug("     download: "
 					+ (System.currentTimeMillis() - startMethod - executionTime));
-			return true;
+			// keep the session, the client pools its connections
+			return false;
 		} catch (Throwable t) {
-			logger.debug("   invoking method '" + methodName + "' on service '"
-					+ serviceName + "' failed: " + t);
+			logger.debug("   invoking " + invocation + " failed: " + t);
 			out.write(Protocol.RESULT_EXCEPTION);
 			out.writeObject(t);
 			out.flush();
@@ -324,18 +362,7 @@ public class CuckooServer {
 		byte[] classFile = new byte[fileSize];
 		in.readFully(classFile);
 		// then the files belonging to this service
-		int nrFiles = in.readInt();
-		logger.debug("     has " + nrFiles + " jar files");
-		Map<String, byte[]> files = new HashMap<String, byte[]>();
-		for (int i = 0; i < nrFiles; i++) {
-			String fileName = in.readUTF();
-			int size = in.readInt();
-			logger.debug("       reading '" + fileName + "' of size " + size);
-			byte[] file = new byte[size];
-			in.readFully(file);
-			files.put(fileName, file);
-		}
-		logger.debug("     done reading files");
+		Map<String, byte[]> files = readFiles(in);
 
 		try {
 			// now try to install the service
@@ -450,71 +477,730 @@ public class CuckooServer {
 	}
 
 	public void startCuckooServer() throws Exception {
-		ServerSocket serverSocket = new ServerSocket();
-		// serverSocket.setPerformancePreferences(0, 1, 2);
-		serverSocket.bind(new InetSocketAddress(PORT), 1);
+		EventLoop loop = new EventLoop(this, PORT);
 		displayIbisIdentifier(PORT);
 		logger.debug("start accepting...");
-		while (true) {
-			Socket socket = serverSocket.accept();
-			socket.setSoTimeout(1000000);
-			socket.setKeepAlive(true);
-			socket.setTcpNoDelay(true);
-			socket.setSendBufferSize(Protocol.SEND_BUFFER);
-			socket.setReceiveBufferSize(1024 * 256);
-			ObjectInputStream in = new ObjectInputStream(
-					new BufferedInputStream(socket.getInputStream()));
-			ObjectOutputStream out = new ObjectOutputStream(
-					new BufferedOutputStream(socket.getOutputStream()));
-			boolean sessionEnded = false;
-			while (!sessionEnded) {
-				int opcode = in.read();
-				long start = System.currentTimeMillis();
-				logger.debug("-> starting " + Protocol.toString(opcode));
-				switch (opcode) {
-				case Protocol.OPCODE_DEBUG:
-					handleDebug(in, out, start);
-					sessionEnded = true;
-					break;
-				case Protocol.OPCODE_INSTALL:
-					sessionEnded = handleInstall(in, out);
-					break;
-				case Protocol.OPCODE_INITIALIZE:
-					sessionEnded = handleInitialize(in, out);
-					break;
-				case Protocol.OPCODE_INVOKE:
-					sessionEnded = handleInvoke(in, out);
-					break;
-				case Protocol.OPCODE_CANCEL:
-					sessionEnded = handleCancel(socket);
-					break;
-				case Protocol.OPCODE_INSTALL_SENSOR:
-					sessionEnded = handleInstallSensor(in, out);
-					break;
-				case Protocol.OPCODE_INITIALIZE_SENSOR:
-					sessionEnded = handleInitializeSensor(in, out);
-					break;
-				case Protocol.OPCODE_REGISTER_SENSOR:
-					sessionEnded = handleRegisterSensor(in, out);
-					break;
-				case Protocol.OPCODE_UNREGISTER_SENSOR:
-					sessionEnded = handleUnregisterSensor(in, out);
-					break;
-				default:
-					break;
+		loop.run();
+	}
+
+	/**
+	 * Handles a frame of the framed protocol. Called by the event loop, so
+	 * the request itself is handled by one of the workers.
+	 *
+	 * @param connection
+	 *            the connection the frame was received on
+	 * @param frame
+	 *            the frame
+	 */
+	void handleFrame(final Connection connection, final Frame frame)
+			throws IOException {
+		if (frame.getOpcode() == Protocol.OPCODE_STREAM_DATA) {
+			connection.addStreamData(frame);
+			return;
+		}
+		logger.debug("-> received " + frame);
+		if (frame.getOpcode() == Protocol.OPCODE_CANCEL) {
+			// cancels the request with the same id, the client doesn't wait
+			// for its response anymore
+			connection.cancelRequest(frame.getRequestId());
+			return;
+		}
+		if (frame.getOpcode() == Protocol.OPCODE_PING) {
+			// answered right away, so the client measures the round trip
+			// time and not the load of the workers
+			connection.send(new FrameOutput().toFrame(frame.getRequestId(),
+					Protocol.RESULT_OK, 0));
+			return;
+		}
+		switch (frame.getOpcode()) {
+		case Protocol.OPCODE_INVOKE:
+		case Protocol.OPCODE_INVOKE_BATCH:
+		case Protocol.OPCODE_INSTALL:
+		case Protocol.OPCODE_INITIALIZE:
+		case Protocol.OPCODE_QUERY_BLOBS:
+		case Protocol.OPCODE_REGISTER_METHOD:
+		case Protocol.OPCODE_INVOKE_REGISTERED:
+		case Protocol.OPCODE_FETCH_HANDLE:
+		case Protocol.OPCODE_RELEASE_HANDLE:
+		case Protocol.OPCODE_INVOKE_PIPELINE:
+		case Protocol.OPCODE_STAGE_BLOB:
+		case Protocol.OPCODE_STAGE_STRIPE:
+		case Protocol.OPCODE_FETCH_RANGE:
+			connection.beginRequest(frame.getRequestId());
+			mWorkers.execute(new Runnable() {
+				public void run() {
+					long start = System.currentTimeMillis();
+					try {
+						if (connection.startHandling(frame.getRequestId())) {
+							handleRequest(connection, frame);
+						}
+					} finally {
+						connection.endRequest(frame.getRequestId());
+						// a cancellation may have arrived just before the end
+						Thread.interrupted();
+					}
+					logger.debug("   handling " + frame + " took "
+							+ (System.currentTimeMillis() - start) + " ms.\n");
+				}
+			});
+			break;
+		default:
+			sendException(connection, frame, new IOException(
+					"Unsupported operation: "
+							+ Protocol.toString(frame.getOpcode())));
+			break;
+		}
+	}
+
+	private void handleRequest(Connection connection, Frame frame) {
+		FrameOutput out = new FrameOutput();
+		// download bandwidth of the client in bytes per ms
+		double bandwidth = 0;
+		try {
+			DataInputStream in = Compression.decompress(frame).getInput();
+			switch (frame.getOpcode()) {
+			case Protocol.OPCODE_INVOKE:
+			case Protocol.OPCODE_INVOKE_REGISTERED:
+				handleInvoke(connection, frame, in, out);
+				return;
+			case Protocol.OPCODE_INVOKE_BATCH:
+				handleInvokeBatch(connection, frame, in, out);
+				return;
+			case Protocol.OPCODE_INVOKE_PIPELINE:
+				handleInvokePipeline(connection, frame, in, out);
+				return;
+			case Protocol.OPCODE_INSTALL:
+				String serviceName = in.readUTF();
+				logger.debug("   installing service '" + serviceName + "'...");
+				installService(serviceName, readFiles(in));
+				break;
+			case Protocol.OPCODE_INITIALIZE:
+				initializeService(in.readUTF());
+				break;
+			case Protocol.OPCODE_QUERY_BLOBS:
+				handleQueryBlobs(in, out);
+				break;
+			case Protocol.OPCODE_REGISTER_METHOD:
+				registerMethod(connection, in);
+				break;
+			case Protocol.OPCODE_FETCH_HANDLE:
+				// the value is already encoded
+				out.write(mHandles.get(in.readLong()));
+				bandwidth = in.readFloat();
+				break;
+			case Protocol.OPCODE_RELEASE_HANDLE:
+				mHandles.remove(in.readLong());
+				break;
+			case Protocol.OPCODE_STAGE_BLOB:
+				handleStageBlob(in);
+				break;
+			case Protocol.OPCODE_STAGE_STRIPE:
+				if (mStripes.read(in)) {
+					logger.debug("   assembled striped blob (cache size: "
+							+ mBlobCache.getSize() + " bytes)");
 				}
-				logger.debug("   handling " + Protocol.toString(opcode)
-						+ " took " + (System.currentTimeMillis() - start)
-						+ " ms. " + (sessionEnded ? "ENDED" : "CONTINUING")
-						+ "\n");
+				break;
+			case Protocol.OPCODE_FETCH_RANGE:
+				handleFetchRange(in, out);
+				bandwidth = in.readFloat();
+				break;
 			}
+		} catch (Throwable t) {
+			logger.debug("   " + frame + " failed: " + t);
+			sendException(connection, frame, t);
+			return;
+		}
+		sendResult(connection, frame, out, bandwidth,
+				Protocol.toString(frame.getOpcode()));
+	}
 
-			in.close();
-			out.close();
-			socket.close();
+	/**
+	 * Sends the result of a request, compressed if that pays off for the
+	 * client. The compression ratio is estimated for the kind of the result,
+	 * such as the method that produced it.
+	 */
+	private void sendResult(Connection connection, Frame frame,
+			FrameOutput out, double bandwidth, String kind) {
+		try {
+			Frame result = out.toFrame(frame.getRequestId(),
+					Protocol.RESULT_OK, 0);
+			connection.send(Compression.compress(result,
+					Compression.chooseLevel(kind, result.getLength(),
+							bandwidth), kind));
+		} catch (IOException e) {
+			logger.debug("   failed to send the result of " + frame + ": " + e);
 		}
 	}
 
+	/**
+	 * Handles an invocation of the framed protocol, the result is written to
+	 * out and sent. An invocation of a registered method starts with the id of the
+	 * method instead of its name and signature, with
+	 * {@link Protocol#FLAG_REGISTER} the method is registered first. An
+	 * invocation with {@link Protocol#FLAG_ENSURE} installs and initializes the service first
+	 * if needed, an invocation with {@link Protocol#FLAG_KEEP_RESULT} keeps
+	 * the result and writes a {@link RemoteHandle} instead. Streamed parameters are replaced by streams that receive the data
+	 * that follows the request, so the method can start before the upload is
+	 * complete. Result sink parameters are replaced by sinks that send the
+	 * partial results right away. Blob parameters are replaced by their value,
+	 * which is added to or taken from the blob cache, delta parameters by the
+	 * value reconstructed from a cached blob. The time that the
+	 * execution and the upload overlapped is written after the execution and
+	 * upload time.
+	 */
+	private void handleInvoke(Connection connection, Frame frame,
+			DataInput in, FrameOutput out) throws Throwable {
+		String[] files = null;
+		if (frame.hasFlag(Protocol.FLAG_ENSURE)) {
+			files = readFileNames(in);
+		}
+		final Invocation invocation;
+		if (frame.getOpcode() == Protocol.OPCODE_INVOKE_REGISTERED) {
+			Invoker invoker;
+			if (frame.hasFlag(Protocol.FLAG_REGISTER)) {
+				invoker = registerMethod(connection, in);
+			} else {
+				invoker = connection.getInvoker(in.readInt());
+			}
+			logger.debug("   invoking registered " + invoker);
+			invocation = Invocation.read(in, mCodec, invoker);
+		} else {
+			invocation = Invocation.read(in, mCodec);
+		}
+		final float bandwidth = in.readFloat();
+		if (files != null) {
+			ensureService(connection, frame, invocation.serviceName, files);
+		}
+		List<StreamInput> streams = new ArrayList<StreamInput>();
+		List<FrameResultSink> sinks = new ArrayList<FrameResultSink>();
+		for (int i = 0; i < invocation.parameters.length; i++) {
+			if (invocation.parameters[i] instanceof BlobParameter) {
+				BlobParameter blob = (BlobParameter) invocation.parameters[i];
+				invocation.parameters[i] = readBlob(blob);
+			} else if (invocation.parameters[i] instanceof RemoteHandle) {
+				RemoteHandle handle = (RemoteHandle) invocation.parameters[i];
+				invocation.parameters[i] = decode(mHandles.get(handle
+						.getId()));
+			} else if (invocation.parameters[i] instanceof DeltaParameter) {
+				DeltaParameter delta = (DeltaParameter) invocation.parameters[i];
+				invocation.parameters[i] = readDelta(delta);
+			} else if (invocation.parameters[i] instanceof ResultSinkParameter) {
+				FrameResultSink sink = new FrameResultSink(connection,
+						mCodec, frame.getRequestId(),
+						((ResultSinkParameter) invocation.parameters[i])
+								.getIndex(), bandwidth, invocation.serviceName
+								+ "." + invocation.methodName);
+				invocation.parameters[i] = sink;
+				sinks.add(sink);
+			} else if (invocation.parameters[i] instanceof StreamParameter) {
+				StreamInput stream = connection.getStream(
+						frame.getRequestId(),
+						((StreamParameter) invocation.parameters[i])
+								.getIndex());
+				invocation.parameters[i] = stream;
+				streams.add(stream);
+			}
+		}
+		final long startMethod = System.currentTimeMillis();
+		Object result;
+		try {
+			result = invokeMethod(invocation.invoker, invocation.parameters);
+		} finally {
+			for (FrameResultSink sink : sinks) {
+				sink.close();
+			}
+		}
+		final long done = System.currentTimeMillis();
+		final long executionTime = done - startMethod;
+		// the upload is complete when the last stream is complete
+		long uploaded = frame.getCompleted();
+		for (StreamInput stream : streams) {
+			uploaded = Math.max(uploaded, stream.getCompleted() == 0 ? done
+					: stream.getCompleted());
+		}
+		final long uploadTime = uploaded - frame.getStarted();
+		final long overlapTime = Math.max(0, Math.min(uploaded, done)
+				- startMethod);
+		if (frame.hasFlag(Protocol.FLAG_KEEP_RESULT)) {
+			FrameOutput value = new FrameOutput();
+			mCodec.writeValue(value, result);
+			Frame encoded = value.toFrame(0, 0, 0);
+			result = mHandles.put(Arrays.copyOf(encoded.getPayload(),
+					encoded.getLength()));
+			logger.debug("     kept result as " + result + " (total: "
+					+ mHandles.getSize() + " bytes)");
+		}
+		logger.debug("     result: " + result);
+		invocation.writeResult(out, mCodec, result);
+		out.writeLong(executionTime);
+		out.writeLong(uploadTime);
+		out.writeLong(overlapTime);
+		logger.debug("   invoking " + invocation + " succeeded");
+		logger.debug("     upload: " + uploadTime);
+		logger.debug("     execution: " + executionTime);
+		logger.debug("     overlap: " + overlapTime);
+		sendResult(connection, frame, out, bandwidth, invocation.serviceName
+				+ "." + invocation.methodName);
+	}
+
+	/**
+	 * Reads the names of the files of a service from a request with
+	 * {@link Protocol#FLAG_ENSURE}.
+	 */
+	private static String[] readFileNames(DataInput in) throws IOException {
+		String[] files = new String[in.readInt()];
+		for (int i = 0; i < files.length; i++) {
+			files[i] = in.readUTF();
+		}
+		return files;
+	}
+
+	/**
+	 * Makes sure that the service of an invocation is installed and
+	 * initialized. If it is not installed, the files are requested from the
+	 * client, which sends them as the {@link Protocol#FILES_STREAM} of the
+	 * request. A service that is installed or initialized by a concurrent
+	 * request in the meantime is fine.
+	 * 
+	 * @param files
+	 *            the names of the files of the service
+	 */
+	private void ensureService(Connection connection, Frame frame,
+			String serviceName, String[] files) throws Exception {
+		if (!isInstalled(serviceName)) {
+			logger.debug("   requesting " + files.length + " files of '"
+					+ serviceName + "'");
+			FrameOutput request = new FrameOutput();
+			request.writeInt(files.length);
+			for (String file : files) {
+				request.writeUTF(file);
+			}
+			connection.send(request.toFrame(frame.getRequestId(),
+					Protocol.RESULT_NEED_FILES, Protocol.FLAG_MORE));
+			Map<String, byte[]> contents = readFiles(new DataInputStream(
+					connection.getStream(frame.getRequestId(),
+							Protocol.FILES_STREAM)));
+			try {
+				installService(serviceName, contents);
+			} catch (AlreadyInstalledException e) {
+				// installed by a concurrent request
+			}
+		}
+		if (!isInitialized(serviceName)) {
+			try {
+				initializeService(serviceName);
+			} catch (AlreadyInitializedException e) {
+				// initialized by a concurrent request
+			}
+		}
+	}
+
+	/**
+	 * Returns the value of a blob parameter. A blob that was sent along is
+	 * added to the cache, otherwise it is taken from the cache.
+	 * 
+	 * @throws BlobMissingException
+	 *             if the blob was not sent and is not in the cache
+	 */
+	private Object readBlob(BlobParameter blob) throws BlobMissingException,
+			IOException, ClassNotFoundException {
+		String hash = BlobParameter.toHex(blob.getHash());
+		byte[] data = blob.getData();
+		if (data == null) {
+			data = mBlobCache.get(hash);
+			if (data == null) {
+				throw new BlobMissingException("Blob " + hash
+						+ " is not in the cache");
+			}
+			logger.debug("     using cached blob " + hash);
+		} else {
+			// the cache is shared by all clients
+			verifyHash(blob);
+			mBlobCache.put(hash, data);
+			logger.debug("     cached blob " + hash + " (cache size: "
+					+ mBlobCache.getSize() + " bytes)");
+		}
+		return decode(data);
+	}
+
+	/**
+	 * Checks that the data of a blob has the hash the client sent with it,
+	 * before it is added to the blob cache under that hash.
+	 * 
+	 * @throws IOException
+	 *             if the data doesn't match the hash
+	 */
+	private static void verifyHash(BlobParameter blob) throws IOException {
+		byte[] hash;
+		try {
+			hash = MessageDigest.getInstance(BlobParameter.HASH_ALGORITHM)
+					.digest(blob.getData());
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException(e.getMessage());
+		}
+		if (!Arrays.equals(hash, blob.getHash())) {
+			throw new IOException("Blob "
+					+ BlobParameter.toHex(blob.getHash())
+					+ " doesn't match its hash");
+		}
+	}
+
+	/**
+	 * Returns the value of a delta parameter, which is added to the cache as
+	 * the base of the next delta.
+	 * 
+	 * @throws BlobMissingException
+	 *             if the base is not in the cache or the result doesn't have
+	 *             the expected hash
+	 */
+	private Object readDelta(DeltaParameter delta) throws Exception {
+		String baseHash = BlobParameter.toHex(delta.getBaseHash());
+		byte[] base = mBlobCache.get(baseHash);
+		if (base == null) {
+			throw new BlobMissingException("Base " + baseHash
+					+ " of delta is not in the cache");
+		}
+		byte[] data = DeltaParameter.patch(base, delta.getDelta());
+		byte[] hash = MessageDigest.getInstance(BlobParameter.HASH_ALGORITHM)
+				.digest(data);
+		if (!Arrays.equals(hash, delta.getHash())) {
+			throw new BlobMissingException("Delta against " + baseHash
+					+ " doesn't match");
+		}
+		mBlobCache.put(BlobParameter.toHex(hash), data);
+		logger.debug("     applied " + delta);
+		return decode(data);
+	}
+
+	/**
+	 * Registers a method for the connection, the request has the id that the
+	 * client assigned, the service name, the method name, the parameter types
+	 * and the out parameters.
+	 */
+	private Invoker registerMethod(Connection connection, DataInput in)
+			throws IOException, ClassNotFoundException {
+		int id = in.readInt();
+		Invoker invoker = new Invoker(in.readUTF(), in.readUTF(),
+				(Class<?>[]) mCodec.readValue(in),
+				(boolean[]) mCodec.readValue(in));
+		connection.register(id, invoker);
+		logger.debug("   registered " + invoker + " as " + id);
+		return invoker;
+	}
+
+	/**
+	 * Adds a blob that the client uploads ahead of the invocations that use
+	 * it to the blob cache, the request is a {@link BlobParameter} with data.
+	 */
+	private void handleStageBlob(DataInput in) throws IOException {
+		BlobParameter blob = new BlobParameter();
+		blob.readFrom(in);
+		if (blob.getData() == null) {
+			throw new IOException("Staged blob without data");
+		}
+		verifyHash(blob);
+		String hash = BlobParameter.toHex(blob.getHash());
+		mBlobCache.put(hash, blob.getData());
+		logger.debug("   staged blob " + hash + " (cache size: "
+				+ mBlobCache.getSize() + " bytes)");
+	}
+
+	/**
+	 * Writes a part of the encoded value of a handle to out, the request has
+	 * the id of the handle and the offset and length of the part. A large
+	 * value is fetched in parts over several connections at once.
+	 */
+	private void handleFetchRange(DataInput in, DataOutput out)
+			throws Exception {
+		byte[] value = mHandles.get(in.readLong());
+		int offset = in.readInt();
+		int length = in.readInt();
+		if (offset < 0 || length < 0 || offset + length > value.length) {
+			throw new IOException("Invalid range " + offset + "+" + length
+					+ " of " + value.length);
+		}
+		out.write(value, offset, length);
+	}
+
+	/**
+	 * Decodes a value that was kept at the server.
+	 */
+	private Object decode(byte[] data) throws IOException,
+			ClassNotFoundException {
+		return mCodec.readValue(new DataInputStream(new ByteArrayInputStream(
+				data)));
+	}
+
+	/**
+	 * Handles a query for blobs, for every hash in the request a boolean is
+	 * written to out that tells whether the blob is in the cache.
+	 */
+	private void handleQueryBlobs(DataInput in, DataOutput out)
+			throws IOException {
+		int count = in.readInt();
+		byte[] hash = new byte[BlobParameter.HASH_LENGTH];
+		for (int i = 0; i < count; i++) {
+			in.readFully(hash);
+			out.writeBoolean(mBlobCache.contains(BlobParameter.toHex(hash)));
+		}
+	}
+
+	/**
+	 * Handles a batch invocation. The invocations are executed in parallel,
+	 * their results are sent in order as separate frames as soon as they are
+	 * available. The execution and upload time are written to out, which is
+	 * sent last. A batch with {@link Protocol#FLAG_ENSURE} installs and
+	 * initializes the service first if needed.
+	 */
+	private void handleInvokeBatch(Connection connection, Frame frame,
+			DataInput in, FrameOutput out) throws Throwable {
+		String[] files = null;
+		if (frame.hasFlag(Protocol.FLAG_ENSURE)) {
+			files = readFileNames(in);
+		}
+		final String serviceName = in.readUTF();
+		final String methodName = in.readUTF();
+		logger.debug("   invoking method '" + methodName + "' on service '"
+				+ serviceName + "' for a batch...");
+		final Class<?>[] parameterTypes = (Class<?>[]) mCodec.readValue(in);
+		final boolean[] outParameters = (boolean[]) mCodec.readValue(in);
+		final Object[][] parameters = new Object[in.readInt()][];
+		logger.debug("     batch size: " + parameters.length);
+		for (int i = 0; i < parameters.length; i++) {
+			parameters[i] = (Object[]) mCodec.readValue(in);
+		}
+		final float bandwidth = in.readFloat();
+		final String kind = serviceName + "." + methodName;
+		if (files != null) {
+			ensureService(connection, frame, serviceName, files);
+		}
+		// fail before starting anything if the service is not available
+		getService(serviceName);
+		final long startMethod = System.currentTimeMillis();
+		List<Future<Object>> results = new ArrayList<Future<Object>>();
+		for (final Object[] tuple : parameters) {
+			results.add(mBatchWorkers.submit(new Callable<Object>() {
+				public Object call() throws Exception {
+					return invokeMethod(serviceName, methodName,
+							parameterTypes, tuple);
+				}
+			}));
+		}
+		try {
+			for (int i = 0; i < parameters.length; i++) {
+				Object result;
+				try {
+					result = results.get(i).get();
+				} catch (ExecutionException e) {
+					throw e.getCause();
+				}
+				FrameOutput partial = new FrameOutput();
+				partial.writeInt(i);
+				mCodec.writeValue(partial, result);
+				for (int j = 0; j < outParameters.length; j++) {
+					if (outParameters[j]) {
+						mCodec.writeValue(partial, parameters[i][j]);
+					}
+				}
+				Frame partialFrame = partial.toFrame(frame.getRequestId(),
+						Protocol.RESULT_OK, Protocol.FLAG_MORE);
+				connection.send(Compression.compress(partialFrame,
+						Compression.chooseLevel(kind, partialFrame.getLength(),
+								bandwidth), kind));
+			}
+		} finally {
+			// stop what's left if one of the invocations failed
+			for (Future<Object> result : results) {
+				result.cancel(true);
+			}
+		}
+		final long executionTime = System.currentTimeMillis() - startMethod;
+		out.writeLong(executionTime);
+		out.writeLong(frame.getReceiveTime());
+		logger.debug("   invoking method '" + methodName + "' on service '"
+				+ serviceName + "' for a batch succeeded");
+		logger.debug("     execution: " + executionTime);
+		sendResult(connection, frame, out, bandwidth, kind);
+	}
+
+	/**
+	 * Handles a pipeline invocation, a number of steps that each invoke a
+	 * method, where {@link StepResult} parameters refer to the result of an
+	 * earlier step. Steps run as soon as the steps they depend on are done,
+	 * so independent steps run in parallel. Only the results that are not
+	 * used by another step are written to out, together with their step
+	 * index, followed by the execution time of each step and the execution
+	 * and upload time of the pipeline, out is sent as the result.
+	 */
+	private void handleInvokePipeline(Connection connection, Frame frame,
+			DataInput in, FrameOutput out) throws Throwable {
+		final Invoker[] invokers = new Invoker[in.readInt()];
+		final Object[][] parameters = new Object[invokers.length][];
+		for (int i = 0; i < invokers.length; i++) {
+			String serviceName = in.readUTF();
+			String methodName = in.readUTF();
+			Class<?>[] parameterTypes = (Class<?>[]) mCodec.readValue(in);
+			invokers[i] = new Invoker(serviceName, methodName,
+					parameterTypes, new boolean[parameterTypes.length]);
+			parameters[i] = (Object[]) mCodec.readValue(in);
+			for (int j = 0; j < parameters[i].length; j++) {
+				if (parameters[i][j] instanceof RemoteHandle) {
+					parameters[i][j] = decode(mHandles
+							.get(((RemoteHandle) parameters[i][j]).getId()));
+				}
+			}
+		}
+		final float bandwidth = in.readFloat();
+		logger.debug("   invoking a pipeline of " + invokers.length
+				+ " steps...");
+		// fail before starting anything if a service is not available
+		for (Invoker invoker : invokers) {
+			getService(invoker.serviceName);
+		}
+		PipelineExecution execution = new PipelineExecution(mBatchWorkers,
+				mCodec, new PipelineExecution.StepInvoker() {
+					public Object invoke(Invoker invoker, Object[] parameters)
+							throws Exception {
+						return invokeMethod(invoker, parameters);
+					}
+				}, invokers, parameters);
+		final long startMethod = System.currentTimeMillis();
+		execution.execute();
+		final long executionTime = System.currentTimeMillis() - startMethod;
+		List<Integer> outputs = new ArrayList<Integer>();
+		for (int i = 0; i < invokers.length; i++) {
+			if (!execution.isIntermediate(i)) {
+				outputs.add(i);
+			}
+		}
+		out.writeInt(outputs.size());
+		for (int step : outputs) {
+			out.writeInt(step);
+			mCodec.writeValue(out, execution.getResult(step));
+		}
+		out.writeInt(invokers.length);
+		for (int i = 0; i < invokers.length; i++) {
+			out.writeLong(execution.getExecutionTime(i));
+		}
+		out.writeLong(executionTime);
+		out.writeLong(frame.getReceiveTime());
+		logger.debug("   invoking a pipeline of " + invokers.length
+				+ " steps succeeded");
+		logger.debug("     execution: " + executionTime);
+		sendResult(connection, frame, out, bandwidth,
+				Protocol.toString(frame.getOpcode()));
+	}
+
+	private void sendException(Connection connection, Frame frame, Throwable t) {
+		try {
+			FrameOutput out = new FrameOutput();
+			mCodec.writeValue(out, t);
+			connection.send(out.toFrame(frame.getRequestId(),
+					Protocol.RESULT_EXCEPTION, 0));
+		} catch (IOException e) {
+			logger.debug("   failed to send the exception of " + frame + ": "
+					+ e);
+		}
+	}
+
+	/**
+	 * Called by the event loop when a connection of the framed protocol is
+	 * closed.
+	 */
+	void connectionClosed(Connection connection) {
+		logger.debug("-> connection with " + connection.getRemoteAddress()
+				+ " closed\n");
+	}
+
+	/**
+	 * Handles a connection of the stream protocol in its own thread.
+	 *
+	 * @param socket
+	 *            the socket, in blocking mode
+	 * @param prefix
+	 *            the bytes that the event loop already read from the socket
+	 */
+	void handleLegacySession(final Socket socket, final byte[] prefix) {
+		new Thread() {
+			public void run() {
+				try {
+					handleSession(socket, prefix);
+				} catch (Exception e) {
+					logger.debug("session with "
+							+ socket.getRemoteSocketAddress() + " failed: " + e);
+				} finally {
+					try {
+						socket.close();
+					} catch (IOException e) {
+						// ignore
+					}
+				}
+			}
+		}.start();
+	}
+
+	private void handleSession(Socket socket, byte[] prefix) throws Exception {
+		socket.setSoTimeout(1000000);
+		socket.setKeepAlive(true);
+		socket.setTcpNoDelay(true);
+		socket.setSendBufferSize(Protocol.SEND_BUFFER);
+		socket.setReceiveBufferSize(1024 * 256);
+		ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(
+				new SequenceInputStream(new ByteArrayInputStream(prefix),
+						socket.getInputStream())));
+		ObjectOutputStream out = new ObjectOutputStream(
+				new BufferedOutputStream(socket.getOutputStream()));
+		boolean sessionEnded = false;
+		while (!sessionEnded) {
+			int opcode = in.read();
+			long start = System.currentTimeMillis();
+			if (opcode == -1) {
+				// the client closed the connection
+				logger.debug("-> session closed by client\n");
+				break;
+			}
+			logger.debug("-> starting " + Protocol.toString(opcode));
+			switch (opcode) {
+			case Protocol.OPCODE_DEBUG:
+				handleDebug(in, out, start);
+				sessionEnded = true;
+				break;
+			case Protocol.OPCODE_INSTALL:
+				sessionEnded = handleInstall(in, out);
+				break;
+			case Protocol.OPCODE_INITIALIZE:
+				sessionEnded = handleInitialize(in, out);
+				break;
+			case Protocol.OPCODE_INVOKE:
+				sessionEnded = handleInvoke(in, out);
+				break;
+			case Protocol.OPCODE_CANCEL:
+				sessionEnded = handleCancel(socket);
+				break;
+			case Protocol.OPCODE_INSTALL_SENSOR:
+				sessionEnded = handleInstallSensor(in, out);
+				break;
+			case Protocol.OPCODE_INITIALIZE_SENSOR:
+				sessionEnded = handleInitializeSensor(in, out);
+				break;
+			case Protocol.OPCODE_REGISTER_SENSOR:
+				sessionEnded = handleRegisterSensor(in, out);
+				break;
+			case Protocol.OPCODE_UNREGISTER_SENSOR:
+				sessionEnded = handleUnregisterSensor(in, out);
+				break;
+			default:
+				break;
+			}
+			logger.debug("   handling " + Protocol.toString(opcode) + " took "
+					+ (System.currentTimeMillis() - start) + " ms. "
+					+ (sessionEnded ? "ENDED" : "CONTINUING") + "\n");
+		}
+
+		in.close();
+		out.close();
+	}
+
 	private void displayIbisIdentifier(final int portNumber) {
 		new Thread() {
 			@SuppressWarnings("deprecation")
@@ -992,9 +1678,24 @@ public class CuckooServer {
 		return false;
 	}
 
+	/**
+	 * Invokes a method, the method is only looked up if the invoker hasn't
+	 * resolved it for the service yet.
+	 */
+	private Object invokeMethod(Invoker invoker, Object[] parameters)
+			throws NotInstalledException, NotInitializedException,
+			NoSuchMethodException, IllegalArgumentException,
+			IllegalAccessException, InvocationTargetException {
+		final Object service = getService(invoker.serviceName);
+		return invoker.resolve(service).invoke(service, parameters);
+	}
+
 	/**
 	 * Invokes a method on a service. The service needs to be installed and
-	 * initialized.
+	 * initialized. The method itself is invoked without holding the lock of
+	 * the server, so invocations from multiple clients, or multiple
+	 * invocations in flight on one connection, run concurrently. Services
+	 * therefore have to be thread safe.
 	 * 
 	 * @param serviceName
 	 *            the name of the service
@@ -1016,24 +1717,14 @@ public class CuckooServer {
 	 * @throws IllegalAccessException
 	 * @throws InvocationTargetException
 	 */
-	private synchronized Object invokeMethod(String serviceName,
+	private Object invokeMethod(String serviceName,
 			String methodName, Class<?>[] parameterTypes, Object[] parameters)
 			throws NotInstalledException, NotInitializedException,
 			SecurityException, NoSuchMethodException, IllegalArgumentException,
 			IllegalAccessException, InvocationTargetException {
 
-		if (!isInstalled(serviceName)) {
-			throw new NotInstalledException("Service is not installed: "
-					+ serviceName);
-		}
-
-		if (!isInitialized(serviceName)) {
-			throw new NotInitializedException("Service is not initialized: "
-					+ serviceName);
-		}
-
 		// retrieve the service
-		final Object service = mInitializedServices.get(serviceName);
+		final Object service = getService(serviceName);
 
 		// then get the defined method
 		Method method = service.getClass()
@@ -1046,4 +1737,30 @@ public class CuckooServer {
 		return result;
 	}
 
+	/**
+	 * Returns an initialized service.
+	 * 
+	 * @param serviceName
+	 *            the name of the service
+	 * @return the service
+	 * @throws NotInstalledException
+	 *             if the service is not installed
+	 * @throws NotInitializedException
+	 *             if the service is not initialized
+	 */
+	private synchronized Object getService(String serviceName)
+			throws NotInstalledException, NotInitializedException {
+		if (!isInstalled(serviceName)) {
+			throw new NotInstalledException("Service is not installed: "
+					+ serviceName);
+		}
+
+		if (!isInitialized(serviceName)) {
+			throw new NotInitializedException("Service is not initialized: "
+					+ serviceName);
+		}
+
+		return mInitializedServices.get(serviceName);
+	}
+
 }
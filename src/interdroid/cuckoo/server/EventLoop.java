@@ -0,0 +1,199 @@
+package interdroid.cuckoo.server;
+
+import interdroid.cuckoo.base.Frame;
+import interdroid.cuckoo.base.Protocol;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Single threaded selector loop that accepts connections and reads and writes
+ * frames for all of them. Complete frames are given to
+ * {@link CuckooServer#handleFrame(Connection, Frame)}, which should not block.
+ * Connections of the stream protocol are handed over to
+ * {@link CuckooServer#handleLegacySession(Socket, byte[])}.
+ */
+class EventLoop {
+
+	private static final Logger logger = LoggerFactory
+			.getLogger("interdroid.cuckoo.server");
+
+	/**
+	 * Connections without any activity for this time are closed
+	 */
+	private static final long IDLE_TIMEOUT = 1000000;
+
+	/**
+	 * How often we check for idle connections
+	 */
+	private static final long IDLE_CHECK_INTERVAL = 10000;
+
+	private final CuckooServer mServer;
+
+	private final Selector mSelector;
+
+	private final ServerSocketChannel mServerChannel;
+
+	private final Set<Connection> mConnections = new HashSet<Connection>();
+
+	/**
+	 * Connections that have frames to write or can read again, of which the
+	 * selector thread updates the interest operations
+	 */
+	private final ConcurrentLinkedQueue<Connection> mUpdateRequests = new ConcurrentLinkedQueue<Connection>();
+
+	/**
+	 * Connections of the stream protocol of which the key has been canceled.
+	 * They can only be made blocking after the next select.
+	 */
+	private final List<Connection> mHandOvers = new ArrayList<Connection>();
+
+	EventLoop(CuckooServer server, int port) throws IOException {
+		mServer = server;
+		mSelector = Selector.open();
+		mServerChannel = ServerSocketChannel.open();
+		mServerChannel.socket().setReuseAddress(true);
+		// accepted sockets inherit the receive buffer, which has to be set
+		// before the connection is made to allow for a large window
+		mServerChannel.socket().setReceiveBufferSize(
+				Integer.getInteger(Protocol.RECEIVE_BUFFER_PROPERTY,
+						Protocol.RECEIVE_BUFFER));
+		mServerChannel.socket().bind(new InetSocketAddress(port));
+		mServerChannel.configureBlocking(false);
+		mServerChannel.register(mSelector, SelectionKey.OP_ACCEPT);
+	}
+
+	/**
+	 * Asks the selector thread to update what it waits for on the
+	 * connection, because frames were queued or it can read again.
+	 */
+	void requestUpdate(Connection connection) {
+		mUpdateRequests.add(connection);
+		mSelector.wakeup();
+	}
+
+	void run() throws IOException {
+		long lastIdleCheck = System.currentTimeMillis();
+		while (true) {
+			mSelector.select(IDLE_CHECK_INTERVAL);
+			for (Connection connection : mHandOvers) {
+				handOver(connection);
+			}
+			mHandOvers.clear();
+			Connection requested;
+			while ((requested = mUpdateRequests.poll()) != null) {
+				if (!requested.isClosed() && requested.getKey() != null
+						&& requested.getKey().isValid()) {
+					requested.getKey().interestOps(requested.getInterestOps());
+				}
+			}
+			Iterator<SelectionKey> keys = mSelector.selectedKeys().iterator();
+			while (keys.hasNext()) {
+				SelectionKey key = keys.next();
+				keys.remove();
+				if (!key.isValid()) {
+					continue;
+				}
+				if (key.isAcceptable()) {
+					accept();
+					continue;
+				}
+				Connection connection = (Connection) key.attachment();
+				try {
+					if (key.isReadable()) {
+						for (Frame frame : connection.read()) {
+							mServer.handleFrame(connection, frame);
+						}
+						if (connection.isLegacy()) {
+							mConnections.remove(connection);
+							key.cancel();
+							mHandOvers.add(connection);
+							// make sure the next select returns immediately
+							mSelector.wakeup();
+							continue;
+						}
+					}
+					if (key.isValid() && key.isWritable()) {
+						connection.write();
+					}
+					if (key.isValid()) {
+						// stops reading while a stream is full
+						key.interestOps(connection.getInterestOps());
+					}
+				} catch (IOException e) {
+					logger.debug("connection with "
+							+ connection.getRemoteAddress() + " closed: " + e);
+					close(connection);
+				}
+			}
+			if (System.currentTimeMillis() - lastIdleCheck > IDLE_CHECK_INTERVAL) {
+				closeIdle();
+				lastIdleCheck = System.currentTimeMillis();
+			}
+		}
+	}
+
+	private void accept() throws IOException {
+		SocketChannel channel = mServerChannel.accept();
+		if (channel == null) {
+			return;
+		}
+		Socket socket = channel.socket();
+		socket.setKeepAlive(true);
+		socket.setTcpNoDelay(true);
+		socket.setSendBufferSize(Integer.getInteger(
+				Protocol.SEND_BUFFER_PROPERTY, Protocol.SEND_BUFFER));
+		channel.configureBlocking(false);
+		Connection connection = new Connection(this, channel);
+		connection.setKey(channel.register(mSelector, SelectionKey.OP_READ,
+				connection));
+		mConnections.add(connection);
+		logger.debug("accepted connection from "
+				+ socket.getRemoteSocketAddress());
+	}
+
+	/**
+	 * Hands a connection of the stream protocol over to a blocking session.
+	 */
+	private void handOver(Connection connection) {
+		try {
+			connection.getChannel().configureBlocking(true);
+			mServer.handleLegacySession(connection.getChannel().socket(),
+					connection.getLegacyPrefix());
+		} catch (IOException e) {
+			logger.debug("failed to hand over connection: " + e);
+			connection.close();
+		}
+	}
+
+	private void close(Connection connection) {
+		mConnections.remove(connection);
+		connection.close();
+		mServer.connectionClosed(connection);
+	}
+
+	private void closeIdle() {
+		for (Connection connection : new ArrayList<Connection>(mConnections)) {
+			if (connection.isIdle(IDLE_TIMEOUT)) {
+				logger.debug("closing idle connection with "
+						+ connection.getRemoteAddress());
+				close(connection);
+			}
+		}
+	}
+
+}
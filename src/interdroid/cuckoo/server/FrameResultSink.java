@@ -0,0 +1,73 @@
+package interdroid.cuckoo.server;
+
+import interdroid.cuckoo.base.Codec;
+import interdroid.cuckoo.base.Compression;
+import interdroid.cuckoo.base.Frame;
+import interdroid.cuckoo.base.FrameOutput;
+import interdroid.cuckoo.base.Protocol;
+import interdroid.cuckoo.base.ResultSink;
+
+/**
+ * The server side of a {@link interdroid.cuckoo.base.ResultSinkParameter},
+ * sends each partial result to the client as soon as it is emitted.
+ */
+class FrameResultSink implements ResultSink {
+
+	private final Connection mConnection;
+	private final Codec mCodec;
+	private final int mRequestId;
+	private final int mIndex;
+
+	/**
+	 * Download bandwidth of the client in bytes per ms
+	 */
+	private final float mBandwidth;
+
+	/**
+	 * The kind of the partial results for their compression, the method and
+	 * the index of the sink
+	 */
+	private final String mKind;
+
+	private boolean mClosed;
+
+	FrameResultSink(Connection connection, Codec codec, int requestId,
+			int index, float bandwidth, String kind) {
+		mConnection = connection;
+		mCodec = codec;
+		mRequestId = requestId;
+		mIndex = index;
+		mBandwidth = bandwidth;
+		mKind = kind + "#" + index;
+	}
+
+	/**
+	 * Closes the sink, called when the invocation returns. The final result
+	 * is sent after this, so nothing can be emitted anymore. An emit that is
+	 * in progress is queued before this returns, so its partial result goes
+	 * ahead of the final result.
+	 */
+	synchronized void close() {
+		mClosed = true;
+	}
+
+	/**
+	 * Sends a partial result, the lock is held until the frame is queued,
+	 * see {@link #close()}.
+	 */
+	public synchronized void emit(Object result) throws Exception {
+		if (mClosed) {
+			throw new IllegalStateException(
+					"Cannot emit after the invocation returned");
+		}
+		FrameOutput out = new FrameOutput();
+		out.writeInt(mIndex);
+		mCodec.writeValue(out, result);
+		Frame frame = out.toFrame(mRequestId, Protocol.RESULT_OK,
+				Protocol.FLAG_MORE);
+		mConnection.send(Compression.compress(frame,
+				Compression.chooseLevel(mKind, frame.getLength(), mBandwidth),
+				mKind));
+	}
+
+}
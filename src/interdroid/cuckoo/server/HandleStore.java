@@ -0,0 +1,138 @@
+package interdroid.cuckoo.server;
+
+import interdroid.cuckoo.base.HandleExpiredException;
+import interdroid.cuckoo.base.RemoteHandle;
+
+import java.security.SecureRandom;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * The results that are kept at the server for {@link RemoteHandle}s. The
+ * values are kept encoded, so the size accounting is exact, a fetch doesn't
+ * have to encode them again and every invocation that gets a value as a
+ * parameter decodes its own copy. A value is released when it hasn't been
+ * used for the time to live, or when the total size exceeds the maximum, in
+ * which case the least recently used values are released first.
+ */
+class HandleStore {
+
+	/**
+	 * System property with the time to live of a handle in ms
+	 */
+	static final String TTL_PROPERTY = "interdroid.cuckoo.handle.ttl";
+
+	static final long DEFAULT_TTL = 10 * 60 * 1000;
+
+	/**
+	 * System property with the maximum total size of the values in bytes
+	 */
+	static final String SIZE_PROPERTY = "interdroid.cuckoo.handle.size";
+
+	static final long DEFAULT_SIZE = 256 * 1024 * 1024;
+
+	private static class Entry {
+
+		final byte[] value;
+
+		long lastUse = System.currentTimeMillis();
+
+		Entry(byte[] value) {
+			this.value = value;
+		}
+
+	}
+
+	private final Map<Long, Entry> mEntries = new LinkedHashMap<Long, Entry>(
+			16, 0.75f, true);
+
+	/**
+	 * Ids are random, so that clients cannot guess each other's handles
+	 */
+	private final Random mRandom = new SecureRandom();
+
+	private final long mTimeToLive;
+
+	private final long mMaxSize;
+
+	private long mSize;
+
+	HandleStore(long timeToLive, long maxSize) {
+		mTimeToLive = timeToLive;
+		mMaxSize = maxSize;
+	}
+
+	/**
+	 * Keeps a value.
+	 *
+	 * @param value
+	 *            the encoded value
+	 * @return the handle of the value
+	 */
+	synchronized RemoteHandle put(byte[] value) {
+		long id;
+		do {
+			id = mRandom.nextLong();
+		} while (mEntries.containsKey(id));
+		mEntries.put(id, new Entry(value));
+		mSize += value.length;
+		release(id);
+		return new RemoteHandle(id, value.length, mTimeToLive);
+	}
+
+	/**
+	 * Returns the encoded value of a handle.
+	 *
+	 * @throws HandleExpiredException
+	 *             if the handle has been released
+	 */
+	synchronized byte[] get(long id) throws HandleExpiredException {
+		release(id);
+		Entry entry = mEntries.get(id);
+		if (entry == null) {
+			throw new HandleExpiredException("Handle "
+					+ Long.toHexString(id) + " has expired");
+		}
+		entry.lastUse = System.currentTimeMillis();
+		return entry.value;
+	}
+
+	/**
+	 * Releases a handle, a handle that has already been released is ignored.
+	 */
+	synchronized void remove(long id) {
+		Entry entry = mEntries.remove(id);
+		if (entry != null) {
+			mSize -= entry.value.length;
+		}
+	}
+
+	synchronized long getSize() {
+		return mSize;
+	}
+
+	/**
+	 * Releases the expired values and, if there are too many, the least
+	 * recently used ones.
+	 *
+	 * @param keep
+	 *            the id of the value that is being used, which is never
+	 *            released for being too large
+	 */
+	private void release(long keep) {
+		long now = System.currentTimeMillis();
+		Iterator<Map.Entry<Long, Entry>> iterator = mEntries.entrySet()
+				.iterator();
+		while (iterator.hasNext()) {
+			Map.Entry<Long, Entry> entry = iterator.next();
+			if (now - entry.getValue().lastUse > mTimeToLive
+					|| (mSize > mMaxSize && entry.getKey() != keep)) {
+				mSize -= entry.getValue().value.length;
+				iterator.remove();
+			}
+		}
+	}
+
+}
@@ -0,0 +1,131 @@
+package interdroid.cuckoo.server;
+
+import interdroid.cuckoo.base.Codec;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A method invocation as it is sent by the client. Both the stream protocol
+ * and the framed protocol use this layout for the invoke request and the
+ * result.
+ */
+class Invocation {
+
+	private static final Logger logger = LoggerFactory
+			.getLogger("interdroid.cuckoo.server");
+
+	final Invoker invoker;
+	final String serviceName;
+	final String methodName;
+	final Class<?>[] parameterTypes;
+	final boolean[] outParameters;
+	final Object[] parameters;
+	final String[] unknownResources;
+
+	private Invocation(Invoker invoker, Object[] parameters,
+			String[] unknownResources) {
+		this.invoker = invoker;
+		this.serviceName = invoker.serviceName;
+		this.methodName = invoker.methodName;
+		this.parameterTypes = invoker.parameterTypes;
+		this.outParameters = invoker.outParameters;
+		this.parameters = parameters;
+		this.unknownResources = unknownResources;
+	}
+
+	/**
+	 * Reads an invocation.
+	 *
+	 * @param in
+	 *            the input to read from
+	 * @param codec
+	 *            the codec for the parameters
+	 * @return the invocation
+	 * @throws IOException
+	 * @throws ClassNotFoundException
+	 *             if a parameter type or value cannot be resolved
+	 */
+	static Invocation read(DataInput in, Codec codec) throws IOException,
+			ClassNotFoundException {
+		// read the service name
+		final String serviceName = in.readUTF();
+		logger.debug("   invoking method on service '" + serviceName + "'...");
+		// the method name
+		final String methodName = in.readUTF();
+		logger.debug("     method: " + methodName);
+		// read the parameter type array
+		final Class<?>[] parameterTypes = (Class<?>[]) codec.readValue(in);
+		logger.debug("     parameter types: " + Arrays.toString(parameterTypes));
+		// read the types of parameters array (in or out/inout)
+		final boolean[] outParameters = (boolean[]) codec.readValue(in);
+		logger.debug("     out parameters: " + Arrays.toString(outParameters));
+		return read(in, codec, new Invoker(serviceName, methodName,
+				parameterTypes, outParameters));
+	}
+
+	/**
+	 * Reads the arguments of an invocation of which the method is already
+	 * known, because the client registered it.
+	 *
+	 * @param in
+	 *            the input to read from
+	 * @param codec
+	 *            the codec for the parameters
+	 * @param invoker
+	 *            the method
+	 * @return the invocation
+	 * @throws IOException
+	 * @throws ClassNotFoundException
+	 *             if a parameter value cannot be resolved
+	 */
+	static Invocation read(DataInput in, Codec codec, Invoker invoker)
+			throws IOException, ClassNotFoundException {
+		// read the actual parameter values
+		final Object[] parameters = (Object[]) codec.readValue(in);
+		logger.debug("     parameter values: " + Arrays.toString(parameters));
+		// do we have to forward?
+		final boolean forwardToUnknownResources = in.readBoolean();
+		logger.debug("     forward to unknown resources: "
+				+ forwardToUnknownResources);
+		// read unknown resources
+		final String[] unknownResources = (forwardToUnknownResources) ? in
+				.readUTF().split(",") : null;
+		logger.debug("       unknownResources: "
+				+ (unknownResources == null ? "n.a." : Arrays
+						.toString(unknownResources)));
+		return new Invocation(invoker, parameters, unknownResources);
+	}
+
+	/**
+	 * Writes the result and the values of the out parameters.
+	 *
+	 * @param out
+	 *            the output to write to
+	 * @param codec
+	 *            the codec for the values
+	 * @param result
+	 *            the result of the invocation
+	 * @throws IOException
+	 */
+	void writeResult(DataOutput out, Codec codec, Object result)
+			throws IOException {
+		codec.writeValue(out, result);
+		for (int i = 0; i < outParameters.length; i++) {
+			if (outParameters[i]) {
+				codec.writeValue(out, parameters[i]);
+			}
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "method '" + methodName + "' on service '" + serviceName + "'";
+	}
+
+}
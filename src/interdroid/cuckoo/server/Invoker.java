@@ -0,0 +1,58 @@
+package interdroid.cuckoo.server;
+
+import java.lang.reflect.Method;
+import java.util.Arrays;
+
+/**
+ * A method of a service as it is identified by the client: the service name,
+ * the method name, the parameter types and which parameters are out
+ * parameters. The reflective lookup of the method is done once per service
+ * instance, so an invoker that is registered for a connection (see
+ * {@link interdroid.cuckoo.base.Protocol#OPCODE_REGISTER_METHOD}) resolves
+ * the method only for its first invocation.
+ */
+class Invoker {
+
+	final String serviceName;
+	final String methodName;
+	final Class<?>[] parameterTypes;
+	final boolean[] outParameters;
+
+	/**
+	 * The service instance the method was resolved for
+	 */
+	private Object mService;
+
+	private Method mMethod;
+
+	Invoker(String serviceName, String methodName, Class<?>[] parameterTypes,
+			boolean[] outParameters) {
+		this.serviceName = serviceName;
+		this.methodName = methodName;
+		this.parameterTypes = parameterTypes;
+		this.outParameters = outParameters;
+	}
+
+	/**
+	 * Returns the method of the service.
+	 *
+	 * @param service
+	 *            the service instance
+	 * @throws NoSuchMethodException
+	 *             if the service has no such method
+	 */
+	synchronized Method resolve(Object service) throws NoSuchMethodException {
+		if (mService != service) {
+			mMethod = service.getClass().getMethod(methodName, parameterTypes);
+			mService = service;
+		}
+		return mMethod;
+	}
+
+	@Override
+	public String toString() {
+		return "method '" + methodName + "' on service '" + serviceName
+				+ "' " + Arrays.toString(parameterTypes);
+	}
+
+}
@@ -0,0 +1,205 @@
+package interdroid.cuckoo.server;
+
+import interdroid.cuckoo.base.Codec;
+import interdroid.cuckoo.base.Frame;
+import interdroid.cuckoo.base.FrameOutput;
+import interdroid.cuckoo.base.StepResult;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * The execution of a pipeline, a small DAG of invocations in which results of
+ * earlier steps are parameters of later steps. A step is submitted as soon as
+ * the steps it depends on are done, so independent branches run in parallel
+ * and no thread ever waits for another step.
+ *
+ * The result of a step that is used more than once is kept encoded and every
+ * use decodes its own copy, so a step that modifies its parameters doesn't
+ * affect the other steps.
+ */
+class PipelineExecution {
+
+	/**
+	 * Invokes the method of a step.
+	 */
+	interface StepInvoker {
+
+		Object invoke(Invoker invoker, Object[] parameters) throws Exception;
+
+	}
+
+	private final ExecutorService mExecutor;
+
+	private final Codec mCodec;
+
+	private final StepInvoker mStepInvoker;
+
+	private final Invoker[] mInvokers;
+
+	private final Object[][] mParameters;
+
+	/**
+	 * The steps that use the result of each step
+	 */
+	private final List<List<Integer>> mDependents = new ArrayList<List<Integer>>();
+
+	/**
+	 * The number of steps that each step still waits for
+	 */
+	private final int[] mWaiting;
+
+	private final Object[] mResults;
+
+	/**
+	 * The encoded results of the steps that are used more than once
+	 */
+	private final Frame[] mEncoded;
+
+	private final long[] mExecutionTimes;
+
+	private int mDone;
+
+	private Throwable mFailure;
+
+	/**
+	 * @param invokers
+	 *            the method of each step
+	 * @param parameters
+	 *            the parameters of each step, results of earlier steps are
+	 *            {@link StepResult}s
+	 * @throws IOException
+	 *             if a step refers to a result that is not of an earlier step
+	 */
+	PipelineExecution(ExecutorService executor, Codec codec,
+			StepInvoker stepInvoker, Invoker[] invokers, Object[][] parameters)
+			throws IOException {
+		mExecutor = executor;
+		mCodec = codec;
+		mStepInvoker = stepInvoker;
+		mInvokers = invokers;
+		mParameters = parameters;
+		mWaiting = new int[invokers.length];
+		mResults = new Object[invokers.length];
+		mEncoded = new Frame[invokers.length];
+		mExecutionTimes = new long[invokers.length];
+		for (int i = 0; i < invokers.length; i++) {
+			mDependents.add(new ArrayList<Integer>());
+		}
+		for (int i = 0; i < invokers.length; i++) {
+			for (Object parameter : parameters[i]) {
+				if (parameter instanceof StepResult) {
+					int step = ((StepResult) parameter).getStep();
+					if (step < 0 || step >= i) {
+						throw new IOException("Step " + i
+								+ " refers to the result of step " + step);
+					}
+					mDependents.get(step).add(i);
+					mWaiting[i]++;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Executes the pipeline and waits until all steps are done.
+	 *
+	 * @throws Throwable
+	 *             the exception of the first step that failed
+	 */
+	synchronized void execute() throws Throwable {
+		for (int i = 0; i < mInvokers.length; i++) {
+			if (mWaiting[i] == 0) {
+				submit(i);
+			}
+		}
+		while (mDone < mInvokers.length && mFailure == null) {
+			wait();
+		}
+		if (mFailure != null) {
+			throw mFailure;
+		}
+	}
+
+	/**
+	 * Returns whether the result of a step is used by another step, only the
+	 * results that are not are sent back to the client.
+	 */
+	boolean isIntermediate(int step) {
+		return !mDependents.get(step).isEmpty();
+	}
+
+	Object getResult(int step) {
+		return mResults[step];
+	}
+
+	long getExecutionTime(int step) {
+		return mExecutionTimes[step];
+	}
+
+	private void submit(final int step) {
+		mExecutor.execute(new Runnable() {
+			public void run() {
+				try {
+					for (int i = 0; i < mParameters[step].length; i++) {
+						if (mParameters[step][i] instanceof StepResult) {
+							mParameters[step][i] = getInput(((StepResult) mParameters[step][i])
+									.getStep());
+						}
+					}
+					long start = System.currentTimeMillis();
+					Object result = mStepInvoker.invoke(mInvokers[step],
+							mParameters[step]);
+					long time = System.currentTimeMillis() - start;
+					if (mDependents.get(step).size() > 1) {
+						FrameOutput out = new FrameOutput();
+						mCodec.writeValue(out, result);
+						mEncoded[step] = out.toFrame(0, 0, 0);
+					}
+					done(step, result, time);
+				} catch (Throwable t) {
+					failed(t);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Returns the result of a step as a parameter of a later step, a copy if
+	 * the result is used more than once.
+	 */
+	private Object getInput(int step) throws IOException,
+			ClassNotFoundException {
+		if (mEncoded[step] == null) {
+			return mResults[step];
+		}
+		return mCodec.readValue(new DataInputStream(new ByteArrayInputStream(
+				mEncoded[step].getPayload(), 0, mEncoded[step].getLength())));
+	}
+
+	private synchronized void done(int step, Object result, long time) {
+		mResults[step] = result;
+		mExecutionTimes[step] = time;
+		mDone++;
+		if (mFailure == null) {
+			for (int dependent : mDependents.get(step)) {
+				if (--mWaiting[dependent] == 0) {
+					submit(dependent);
+				}
+			}
+		}
+		notifyAll();
+	}
+
+	private synchronized void failed(Throwable t) {
+		if (mFailure == null) {
+			mFailure = t;
+		}
+		notifyAll();
+	}
+
+}
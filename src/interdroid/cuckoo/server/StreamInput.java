@@ -0,0 +1,209 @@
+package interdroid.cuckoo.server;
+
+import interdroid.cuckoo.base.Compression;
+import interdroid.cuckoo.base.Frame;
+import interdroid.cuckoo.base.Protocol;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * The server side of a {@link interdroid.cuckoo.base.StreamParameter}. The
+ * event loop adds the data frames as they arrive, the service reads them
+ * while the client is still uploading. Compressed frames are decompressed by
+ * the reader, so the event loop doesn't spend its time inflating.
+ *
+ * Once the service reads a stream, the stream holds at most
+ * {@link #BUFFER_PROPERTY} bytes that haven't been read, after that the
+ * connection stops reading until the reader has caught up, so a client that
+ * uploads faster than the service reads is slowed down by TCP instead of
+ * filling the memory of the server. Before the service reads the stream it
+ * isn't limited, the request may still need other data on the connection,
+ * such as the files of the service (see
+ * {@link interdroid.cuckoo.base.Protocol#FILES_STREAM}).
+ */
+class StreamInput extends InputStream {
+
+	/**
+	 * System property with the number of bytes a stream buffers before the
+	 * connection stops reading
+	 */
+	static final String BUFFER_PROPERTY = "interdroid.cuckoo.stream.buffer";
+
+	static final int DEFAULT_BUFFER = 4 * 1024 * 1024;
+
+	private static final int MAX_BUFFERED = Integer.getInteger(
+			BUFFER_PROPERTY, DEFAULT_BUFFER);
+
+	/**
+	 * Frame that is added if the connection is closed
+	 */
+	private static final Frame CLOSED = new Frame(0, 0, 0, new byte[0]);
+
+	private final LinkedBlockingQueue<Frame> mFrames = new LinkedBlockingQueue<Frame>();
+
+	private final Connection mConnection;
+
+	/**
+	 * The number of bytes of the frames that haven't been taken by the reader
+	 */
+	private long mBuffered;
+
+	/**
+	 * Whether the connection stopped reading because of this stream
+	 */
+	private boolean mFull;
+
+	/**
+	 * Whether the reader started reading
+	 */
+	private boolean mReading;
+
+	private byte[] mBuffer;
+	private int mPosition;
+	private int mLength;
+
+	/**
+	 * Whether the last frame has been read
+	 */
+	private boolean mEnd;
+
+	/**
+	 * The time the last frame was received, 0 if it hasn't been received yet
+	 */
+	private volatile long mCompleted;
+
+	StreamInput(Connection connection) {
+		mConnection = connection;
+	}
+
+	/**
+	 * Adds a data frame, called by the event loop.
+	 *
+	 * @return true if the stream is full now, the connection should stop
+	 *         reading until {@link Connection#resumeReading()} is called
+	 */
+	synchronized boolean add(Frame frame) {
+		if (!frame.hasFlag(Protocol.FLAG_MORE)) {
+			mCompleted = frame.getCompleted();
+		}
+		mFrames.add(frame);
+		mBuffered += frame.getLength();
+		if (mReading && mBuffered > MAX_BUFFERED && !mFull) {
+			mFull = true;
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Called if the stream is dropped.
+	 *
+	 * @return whether the connection stopped reading because of this stream
+	 */
+	synchronized boolean discard() {
+		boolean full = mFull;
+		mFull = false;
+		return full;
+	}
+
+	/**
+	 * Registers that the reader took a frame, the connection resumes reading
+	 * once half of the buffer is free again.
+	 */
+	private void taken(Frame frame) {
+		boolean resume;
+		synchronized (this) {
+			mBuffered -= frame.getLength();
+			resume = mFull && mBuffered <= MAX_BUFFERED / 2;
+			if (resume) {
+				mFull = false;
+			}
+		}
+		if (resume) {
+			mConnection.resumeReading();
+		}
+	}
+
+	/**
+	 * Makes the reader fail, called if the connection is closed.
+	 */
+	void fail() {
+		mFrames.add(CLOSED);
+	}
+
+	/**
+	 * Returns the time the last data of the stream was received, or 0 if the
+	 * stream is not complete yet.
+	 */
+	long getCompleted() {
+		return mCompleted;
+	}
+
+	/**
+	 * Makes sure there is data in the buffer.
+	 *
+	 * @return false at the end of the stream
+	 */
+	private boolean fill() throws IOException {
+		synchronized (this) {
+			mReading = true;
+		}
+		while (mPosition == mLength) {
+			if (mEnd) {
+				return false;
+			}
+			Frame frame;
+			try {
+				frame = mFrames.take();
+			} catch (InterruptedException e) {
+				throw new IOException("Interrupted while reading stream");
+			}
+			if (frame == CLOSED) {
+				// keep failing
+				mFrames.add(CLOSED);
+				throw new IOException("Connection closed while streaming");
+			}
+			taken(frame);
+			mEnd = !frame.hasFlag(Protocol.FLAG_MORE);
+			frame = Compression.decompress(frame);
+			if (frame.getLength() < 4) {
+				throw new IOException("Invalid " + frame);
+			}
+			mBuffer = frame.getPayload();
+			// skip the parameter index
+			mPosition = 4;
+			mLength = frame.getLength();
+		}
+		return true;
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (!fill()) {
+			return -1;
+		}
+		return mBuffer[mPosition++] & 0xFF;
+	}
+
+	@Override
+	public int read(byte[] buffer, int offset, int length) throws IOException {
+		if (length == 0) {
+			return 0;
+		}
+		if (!fill()) {
+			return -1;
+		}
+		int read = Math.min(length, mLength - mPosition);
+		System.arraycopy(mBuffer, mPosition, buffer, offset, read);
+		mPosition += read;
+		return read;
+	}
+
+	@Override
+	public int available() {
+		return mLength - mPosition;
+	}
+
+}
@@ -0,0 +1,164 @@
+package interdroid.cuckoo.server;
+
+import interdroid.cuckoo.base.BlobParameter;
+import interdroid.cuckoo.base.Frame;
+
+import java.io.DataInput;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Reassembles blobs that a client uploads in stripes over several
+ * connections at once, which keeps a link with a large bandwidth-delay
+ * product busy where a single stream is limited by its window. A stripe
+ * request ({@link interdroid.cuckoo.base.Protocol#OPCODE_STAGE_STRIPE}) has
+ * the hash of the blob, the total length, the offset and length of the part
+ * and the bytes of the part. When all parts are in and the hash matches, the
+ * blob is added to the blob cache, where the invocation that uses it finds
+ * it. Blobs of which the parts stop coming are dropped after
+ * {@link #TIMEOUT}. The blobs that are being assembled together take at most
+ * as much memory as the blob cache may hold.
+ */
+class StripeAssembler {
+
+	/**
+	 * Time after which a blob of which no part arrived is dropped
+	 */
+	static final long TIMEOUT = 60 * 1000;
+
+	private static class Assembly {
+
+		final byte[] data;
+
+		/**
+		 * The ranges that have been received, by start and end, a part that
+		 * is sent again is counted once
+		 */
+		final TreeMap<Integer, Integer> ranges = new TreeMap<Integer, Integer>();
+
+		long received;
+
+		long lastUpdate = System.currentTimeMillis();
+
+		Assembly(int length) {
+			data = new byte[length];
+		}
+
+		/**
+		 * Adds a received range, merging it with the ranges it overlaps or
+		 * touches.
+		 */
+		void add(int start, int end) {
+			Map.Entry<Integer, Integer> range = ranges.floorEntry(start);
+			if (range == null || range.getValue() < start) {
+				range = ranges.ceilingEntry(start);
+			}
+			while (range != null && range.getKey() <= end) {
+				start = Math.min(start, range.getKey());
+				end = Math.max(end, range.getValue());
+				received -= range.getValue() - range.getKey();
+				ranges.remove(range.getKey());
+				range = ranges.ceilingEntry(start);
+			}
+			ranges.put(start, end);
+			received += end - start;
+		}
+
+	}
+
+	private final Map<String, Assembly> mAssemblies = new HashMap<String, Assembly>();
+
+	/**
+	 * The number of bytes of the blobs that are being assembled
+	 */
+	private long mHeld;
+
+	private final BlobCache mBlobCache;
+
+	StripeAssembler(BlobCache blobCache) {
+		mBlobCache = blobCache;
+	}
+
+	/**
+	 * Reads a part of a blob, the parts of a blob are read concurrently.
+	 * 
+	 * @return true if this was the last part, the blob is then in the cache
+	 * @throws IOException
+	 *             if the part doesn't fit in the blob or the complete blob
+	 *             doesn't match its hash
+	 */
+	boolean read(DataInput in) throws IOException {
+		byte[] hash = new byte[BlobParameter.HASH_LENGTH];
+		in.readFully(hash);
+		int length = in.readInt();
+		int offset = in.readInt();
+		int partLength = in.readInt();
+		if (length < 0 || length > Frame.MAX_PAYLOAD || offset < 0
+				|| partLength < 0 || partLength > length - offset) {
+			throw new IOException("Invalid stripe " + offset + "+"
+					+ partLength + " of " + length);
+		}
+		String key = BlobParameter.toHex(hash);
+		Assembly assembly;
+		synchronized (this) {
+			dropStale();
+			assembly = mAssemblies.get(key);
+			if (assembly == null) {
+				if (mHeld + length > mBlobCache.getMaxSize()) {
+					throw new IOException("No room to assemble " + key
+							+ " of " + length + " bytes");
+				}
+				assembly = new Assembly(length);
+				mAssemblies.put(key, assembly);
+				mHeld += length;
+			} else if (assembly.data.length != length) {
+				throw new IOException("Stripe of " + key
+						+ " has another length");
+			}
+		}
+		// the parts don't overlap, so they are read without holding the lock,
+		// a part that is sent again has the same bytes
+		in.readFully(assembly.data, offset, partLength);
+		synchronized (this) {
+			assembly.add(offset, offset + partLength);
+			assembly.lastUpdate = System.currentTimeMillis();
+			if (assembly.received < length
+					|| mAssemblies.get(key) != assembly) {
+				return false;
+			}
+			mAssemblies.remove(key);
+			mHeld -= length;
+		}
+		try {
+			if (!Arrays.equals(hash,
+					MessageDigest.getInstance(BlobParameter.HASH_ALGORITHM)
+							.digest(assembly.data))) {
+				throw new IOException("Striped blob " + key
+						+ " doesn't match its hash");
+			}
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException(e.getMessage());
+		}
+		mBlobCache.put(key, assembly.data);
+		return true;
+	}
+
+	private void dropStale() {
+		long now = System.currentTimeMillis();
+		Iterator<Assembly> iterator = mAssemblies.values().iterator();
+		while (iterator.hasNext()) {
+			Assembly assembly = iterator.next();
+			if (now - assembly.lastUpdate > TIMEOUT) {
+				iterator.remove();
+				mHeld -= assembly.data.length;
+			}
+		}
+	}
+
+}